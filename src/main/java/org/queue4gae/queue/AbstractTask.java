@@ -1,6 +1,9 @@
 package org.queue4gae.queue;
 
+import com.google.common.base.Preconditions;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonTypeInfo;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 /**
  * Superclass of all Task implementations.
@@ -20,6 +23,31 @@ public abstract class AbstractTask<T> implements Task {
     /** A number of seconds to wait before execution. May be null. */
     private int delaySeconds;
 
+    /** The time to execute this task, in milliseconds since the epoch. 0 if not set. */
+    private long etaMillis;
+
+    /** The priority of this task within its queue */
+    private TaskPriority priority = TaskPriority.NORMAL;
+
+    /** Tasks with the same affinity key are not executed at the same time. May be null. */
+    private String affinityKey;
+
+    /** The ID used to record the status of this task, assigned when posted. May be null. */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    private String statusId;
+
+    /** true to record the status of this task even if not sampled */
+    @JsonIgnore
+    private boolean statusTracking;
+
+    /** The number of previous attempts to execute this task, set before each execution */
+    @JsonIgnore
+    private int executionCount;
+
+    /** Trace metadata attached when this task was posted. May be null. */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    private TraceContext traceContext;
+
     /**
      * Run this task in the current thread. This method should be called internally by {@link QueueService}.
      * @param queueService the queue service that is invoking this task
@@ -76,4 +104,96 @@ public abstract class AbstractTask<T> implements Task {
     public int getDelaySeconds() {
         return delaySeconds;
     }
+
+    @Override
+    public T withEta(long etaMillis) {
+        this.etaMillis = etaMillis;
+        return (T) this;
+    }
+
+    @Override
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    @Override
+    public T withPriority(TaskPriority priority) {
+        this.priority = Preconditions.checkNotNull(priority);
+        return (T) this;
+    }
+
+    @Override
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public T withAffinityKey(String affinityKey) {
+        this.affinityKey = affinityKey;
+        return (T) this;
+    }
+
+    @Override
+    public String getAffinityKey() {
+        return affinityKey;
+    }
+
+    /**
+     * Record the status of this task when posted, even if the QueueService is only tracking a sample of tasks.
+     * @see TaskHandle
+     */
+    public T withStatusTracking() {
+        this.statusTracking = true;
+        return (T) this;
+    }
+
+    /**
+     * @return true if {@link #withStatusTracking()} has been invoked
+     */
+    public boolean isStatusTracking() {
+        return statusTracking;
+    }
+
+    /**
+     * @return the ID used to record the status of this task, null if not tracked
+     */
+    public String getStatusId() {
+        return statusId;
+    }
+
+    /**
+     * Set the ID used to record the status of this task. This method should be called internally by {@link QueueService}.
+     */
+    public void setStatusId(String statusId) {
+        this.statusId = statusId;
+    }
+
+    /**
+     * @return the number of previous attempts to execute this task, 0 for the first one
+     */
+    public int getExecutionCount() {
+        return executionCount;
+    }
+
+    /**
+     * Set the number of previous attempts to execute this task, before running it. With AppEngine this is the value
+     * of the <code>X-AppEngine-TaskExecutionCount</code> header.
+     */
+    public void setExecutionCount(int executionCount) {
+        this.executionCount = executionCount;
+    }
+
+    /**
+     * @return the trace metadata attached when this task was posted, if any
+     */
+    public TraceContext getTraceContext() {
+        return traceContext;
+    }
+
+    /**
+     * Set the trace metadata of this task. This method should be called internally by {@link QueueService}.
+     */
+    public void setTraceContext(TraceContext traceContext) {
+        this.traceContext = traceContext;
+    }
 }
@@ -0,0 +1,124 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes tasks with the same {@link Task#getAffinityKey() affinity key} one at a time across all instances.
+ * Before executing a task with an affinity key, a lease for the key is stored in memcache. If another task holds
+ * the lease, the task is posted again with a short countdown instead of colliding with it, e.g. to avoid
+ * contention on the same entity group.
+<pre>
+queueService.addInterceptor(new AffinityLeaseInterceptor());
+</pre>
+ * Memcache may evict a lease before it expires, so this is a way to reduce contention and not a replacement for
+ * transactions. Deferred tasks are posted without their task name.
+ */
+public class AffinityLeaseInterceptor implements TaskInterceptor {
+
+    /** default value for {@link #withDeferDelay(long, TimeUnit)}, in milliseconds */
+    public static final long DEFAULT_DEFER_DELAY = 1000;
+
+    /** prefix of the memcache keys of the leases */
+    private static final String KEY_PREFIX = "queue4gae-affinity-";
+
+    private final MemcacheService memcache;
+
+    /** the maximum time a lease is held, in case the instance dies before releasing it */
+    private long leaseMillis = CursorTask.QUEUE_TIMEOUT;
+
+    /** the countdown used to post again a task that could not get the lease */
+    private long deferMillis = DEFAULT_DEFER_DELAY;
+
+    /** keys leased by the current thread, so that tasks executed by other tasks with the same key are not deferred */
+    private final ThreadLocal<Set<String>> leasedKeys = new ThreadLocal<Set<String>>() {
+        @Override
+        protected Set<String> initialValue() {
+            return new HashSet<String>();
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(AffinityLeaseInterceptor.class);
+
+    public AffinityLeaseInterceptor() {
+        this(MemcacheServiceFactory.getMemcacheService());
+    }
+
+    public AffinityLeaseInterceptor(MemcacheService memcache) {
+        this.memcache = memcache;
+    }
+
+    /**
+     * Set the maximum time a lease is held if not released, e.g. when an instance dies. Default is 10 minutes.
+     */
+    public AffinityLeaseInterceptor withLease(long lease, TimeUnit unit) {
+        Preconditions.checkArgument(lease > 0, "lease must be positive");
+        this.leaseMillis = unit.toMillis(lease);
+        return this;
+    }
+
+    /**
+     * Set the countdown used to post again a task that could not get the lease. Default is {@value #DEFAULT_DEFER_DELAY} ms.
+     */
+    public AffinityLeaseInterceptor withDeferDelay(long delay, TimeUnit unit) {
+        this.deferMillis = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * Affinity keys are set per task, so this interceptor applies to all classes
+     */
+    @Override
+    public boolean appliesTo(Class<? extends Task> taskClass) {
+        return true;
+    }
+
+    @Override
+    public void intercept(TaskInvocation invocation) {
+        Task task = invocation.getTask();
+        String key = task.getAffinityKey();
+        if (key == null || leasedKeys.get().contains(key)) {
+            invocation.proceed();
+            return;
+        }
+        String leaseKey = KEY_PREFIX + key;
+        String token = UUID.randomUUID().toString();
+        if (!memcache.put(leaseKey, token, Expiration.byDeltaMillis((int) leaseMillis), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            defer(invocation);
+            return;
+        }
+        leasedKeys.get().add(key);
+        try {
+            invocation.proceed();
+        } finally {
+            leasedKeys.get().remove(key);
+            // the lease may have expired and been taken by someone else
+            if (token.equals(memcache.get(leaseKey))) {
+                memcache.delete(leaseKey);
+            }
+        }
+    }
+
+    /**
+     * Post the task again, to be executed once the lease is released
+     */
+    private void defer(TaskInvocation invocation) {
+        Task task = invocation.getTask();
+        if (log.isDebugEnabled()) {
+            log.debug("Affinity key " + task.getAffinityKey() + " is busy, deferring " + task.getClass().getName());
+        }
+        task.withTaskName(null);
+        task.withEta(System.currentTimeMillis() + deferMillis);
+        invocation.getQueueService().post(task);
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a blob stored in the Blobstore or Google Cloud Storage.
+ */
+public class BlobstoreStreamSource implements StreamSource {
+
+    @JsonProperty
+    private String blobKey;
+
+    private BlobstoreStreamSource() {
+        // for jackson
+    }
+
+    public BlobstoreStreamSource(BlobKey blobKey) {
+        this.blobKey = blobKey.getKeyString();
+    }
+
+    /**
+     * Read a Google Cloud Storage object
+     * @param bucket the bucket name
+     * @param objectName the object name
+     */
+    public static BlobstoreStreamSource forCloudStorage(String bucket, String objectName) {
+        return new BlobstoreStreamSource(BlobstoreServiceFactory.getBlobstoreService().createGsBlobKey("/gs/" + bucket + "/" + objectName));
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        return new BlobstoreInputStream(new BlobKey(blobKey), offset);
+    }
+
+    @Override
+    public String toString() {
+        return blobKey;
+    }
+}
@@ -0,0 +1,118 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops posting tasks while the Task Queue Service is degraded. After a number of consecutive failed posts
+ * the circuit opens, and posts fail immediately with a {@link com.google.appengine.api.taskqueue.TransientFailureException}
+ * instead of waiting for the service and retrying. Once the open time has elapsed, one post is allowed as a probe:
+ * if it succeeds the circuit closes, otherwise it stays open for another period. If the probe ends without
+ * reaching the service, or does not report its outcome within the open time, another probe is allowed.
+<pre>
+queueService.setCircuitBreaker(new CircuitBreaker(5, 30, TimeUnit.SECONDS));
+</pre>
+ * Callers that cannot lose tasks can post through an {@link org.queue4gae.queue.outbox.OutboxQueueService},
+ * which keeps tasks in its log and posts them again when the service recovers.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+
+        /** posts are executed normally */
+        CLOSED,
+
+        /** posts fail immediately */
+        OPEN,
+
+        /** one post is being executed to check if the service has recovered */
+        HALF_OPEN
+    }
+
+    /** the number of consecutive failures that opens the circuit */
+    private final int failureThreshold;
+
+    /** the time the circuit stays open before allowing a probe, in nanoseconds */
+    private final long openNanos;
+
+    private Ticker ticker = Ticker.systemTicker();
+
+    private State state = State.CLOSED;
+
+    /** the number of consecutive failures */
+    private int failures;
+
+    /** the value of the ticker when the circuit was opened */
+    private long openedNanos;
+
+    /** the value of the ticker when the last probe was allowed */
+    private long probeNanos;
+
+    /**
+     * @param failureThreshold the number of consecutive failed posts that opens the circuit
+     * @param openTime the time to wait before checking again if the service has recovered
+     */
+    public CircuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+        Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openTime);
+    }
+
+    /**
+     * @return true if a post can be executed, false if it should fail immediately
+     */
+    public synchronized boolean allowRequest() {
+        long now = ticker.read();
+        if ((state == State.OPEN && now - openedNanos >= openNanos) || (state == State.HALF_OPEN && now - probeNanos >= openNanos)) {
+            state = State.HALF_OPEN;
+            probeNanos = now;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Record a successful post, which closes the circuit
+     */
+    public synchronized void success() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Record a failed post, which may open the circuit
+     */
+    public synchronized void failure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedNanos = ticker.read();
+        }
+    }
+
+    /**
+     * Record a post that ended without reaching the service, for example because it was interrupted.
+     * If it was the probe, another probe is allowed immediately.
+     */
+    public synchronized void abort() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedNanos = ticker.read() - openNanos;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Set the time source, for testing. Default is the system ticker.
+     */
+    public CircuitBreaker withTicker(Ticker ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+}
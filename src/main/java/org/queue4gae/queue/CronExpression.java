@@ -0,0 +1,147 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Preconditions;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A cron expression with the five standard fields: minute, hour, day of month, month and day of week.
+ * Each field may be <code>*</code>, a number, a range like <code>1-5</code>, a step like <code>*&#47;15</code>
+ * or <code>0-30/10</code>, or a comma-separated list of those. Days of week go from 0 (Sunday) to 7 (also Sunday).
+ * Like in Unix cron, if both the day of month and the day of week are restricted, either of them may match.
+<pre>
+// every 15 minutes during office hours, Monday to Friday
+new CronExpression("*&#47;15 9-17 * * 1-5");
+</pre>
+ */
+public class CronExpression {
+
+    private final String expression;
+
+    private final BitSet minutes;
+
+    private final BitSet hours;
+
+    private final BitSet daysOfMonth;
+
+    private final BitSet months;
+
+    private final BitSet daysOfWeek;
+
+    private final boolean dayOfMonthRestricted;
+
+    private final boolean dayOfWeekRestricted;
+
+    /** the number of years to search for a matching time, e.g. for February 30th */
+    private static final int MAX_YEARS = 5;
+
+    /**
+     * @throws IllegalArgumentException if the expression cannot be parsed
+     */
+    public CronExpression(String expression) {
+        this.expression = Preconditions.checkNotNull(expression);
+        String[] fields = expression.trim().split("\\s+");
+        Preconditions.checkArgument(fields.length == 5, "Expected five fields in cron expression: %s", expression);
+        this.minutes = parseField(fields[0], 0, 59);
+        this.hours = parseField(fields[1], 0, 23);
+        this.daysOfMonth = parseField(fields[2], 1, 31);
+        this.months = parseField(fields[3], 1, 12);
+        this.daysOfWeek = parseField(fields[4], 0, 7);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        this.dayOfMonthRestricted = !fields[2].equals("*");
+        this.dayOfWeekRestricted = !fields[4].equals("*");
+    }
+
+    /**
+     * @return the first matching time strictly after the provided time, in milliseconds since the epoch
+     * @throws IllegalArgumentException if the expression does not match any time in the following years
+     */
+    public long next(long afterMillis, TimeZone timeZone) {
+        Calendar c = Calendar.getInstance(timeZone);
+        c.setTimeInMillis(afterMillis);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        c.add(Calendar.MINUTE, 1);
+        int maxYear = c.get(Calendar.YEAR) + MAX_YEARS;
+        while (c.get(Calendar.YEAR) <= maxYear) {
+            if (!months.get(c.get(Calendar.MONTH) + 1)) {
+                c.set(Calendar.DAY_OF_MONTH, 1);
+                c.set(Calendar.HOUR_OF_DAY, 0);
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.MONTH, 1);
+            } else if (!matchesDay(c)) {
+                c.set(Calendar.HOUR_OF_DAY, 0);
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.DAY_OF_MONTH, 1);
+            } else if (!hours.get(c.get(Calendar.HOUR_OF_DAY))) {
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.HOUR_OF_DAY, 1);
+            } else if (!minutes.get(c.get(Calendar.MINUTE))) {
+                c.add(Calendar.MINUTE, 1);
+            } else {
+                return c.getTimeInMillis();
+            }
+        }
+        throw new IllegalArgumentException("Cron expression does not match any time: " + expression);
+    }
+
+    private boolean matchesDay(Calendar c) {
+        boolean dayOfMonth = daysOfMonth.get(c.get(Calendar.DAY_OF_MONTH));
+        boolean dayOfWeek = daysOfWeek.get(c.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY);
+        if (dayOfMonthRestricted && dayOfWeekRestricted) {
+            return dayOfMonth || dayOfWeek;
+        }
+        return dayOfMonth && dayOfWeek;
+    }
+
+    /**
+     * @return the values allowed by a field of the expression
+     */
+    private BitSet parseField(String field, int min, int max) {
+        BitSet values = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            try {
+                int step = 1;
+                int slash = part.indexOf('/');
+                if (slash != -1) {
+                    step = Integer.parseInt(part.substring(slash + 1));
+                    part = part.substring(0, slash);
+                }
+                int from;
+                int to;
+                if (part.equals("*")) {
+                    from = min;
+                    to = max;
+                } else {
+                    int dash = part.indexOf('-');
+                    if (dash != -1) {
+                        from = Integer.parseInt(part.substring(0, dash));
+                        to = Integer.parseInt(part.substring(dash + 1));
+                    } else {
+                        from = Integer.parseInt(part);
+                        // "5/10" means from 5 to the maximum in steps of 10
+                        to = slash == -1? from : max;
+                    }
+                }
+                Preconditions.checkArgument(from >= min && to <= max && from <= to && step > 0,
+                        "Invalid value '%s' in cron expression: %s", part, expression);
+                for (int i = from; i <= to; i += step) {
+                    values.set(i);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value '" + part + "' in cron expression: " + expression, e);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+}
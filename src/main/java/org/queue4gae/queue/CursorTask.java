@@ -2,6 +2,7 @@ package org.queue4gae.queue;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
@@ -23,6 +24,10 @@ public abstract class CursorTask extends InjectedTask {
     @JsonProperty
     private Cursor cursor;
 
+    /** the time source used to measure timeouts. Null means the system ticker */
+    @JsonIgnore
+    private Ticker ticker;
+
     /** time consumed by the current {@link #run} execution */
     @JsonIgnore
     private Stopwatch queueWatch;
@@ -31,6 +36,14 @@ public abstract class CursorTask extends InjectedTask {
     @JsonIgnore
     private Stopwatch queryWatch;
 
+    /** the number of buffered mutations that trigger a datastore write */
+    @JsonProperty
+    private int mutationBatchSize = MutationBuffer.DEFAULT_BATCH_SIZE;
+
+    /** mutations buffered by the current {@link #run} execution, created on demand */
+    @JsonIgnore
+    private MutationBuffer mutations;
+
     protected CursorTask() {
     }
 
@@ -43,6 +56,24 @@ public abstract class CursorTask extends InjectedTask {
         return (T) this;
     }
 
+    /**
+     * Set the time source used to check the 10-minute and 30-second limits. This value is not serialized.
+     * Intended for testing, where a virtual clock can be used to simulate long executions.
+     */
+    public <T extends InjectedTask> T withTicker(Ticker ticker) {
+        this.ticker = ticker;
+        return (T) this;
+    }
+
+    /**
+     * Set the number of mutations collected by {@link #getMutations()} that will trigger a datastore write.
+     * Default is {@value MutationBuffer#DEFAULT_BATCH_SIZE}.
+     */
+    public <T extends InjectedTask> T withMutationBatchSize(int mutationBatchSize) {
+        this.mutationBatchSize = mutationBatchSize;
+        return (T) this;
+    }
+
     /**
      * Executes a batch. This method will execute for 10 minutes invoking repeatedly {@link #runQuery} until
      * it returns null or the time is out
@@ -50,10 +81,18 @@ public abstract class CursorTask extends InjectedTask {
     @Override
     public void run(QueueService queueService) {
         startQueueWatch();
-        do {
-            startQueryWatch();
-            cursor = runQuery(cursor);
-        } while (cursor != null && !queueTimeOut());
+        try {
+            do {
+                startQueryWatch();
+                Cursor next = runQuery(cursor);
+
+                // the cursor is only advanced once the mutations of this query have been stored
+                flushMutations();
+                cursor = next;
+            } while (cursor != null && !queueTimeOut());
+        } finally {
+            mutations = null;
+        }
 
         // if there is still work to do, re-enqueue this task with the new cursor value
         if (cursor != null) {
@@ -66,12 +105,34 @@ public abstract class CursorTask extends InjectedTask {
         }
     }
 
+    /**
+     * Buffer for datastore puts and deletes, to be used inside {@link #runQuery} instead of writing one entity
+     * at a time. Mutations are written asynchronously in batches, and the buffer is flushed every time
+     * {@link #runQuery} returns, so a cursor is never stored before the mutations of the rows it skips.
+     */
+    protected MutationBuffer getMutations() {
+        if (mutations == null) {
+            mutations = new MutationBuffer(mutationBatchSize);
+        }
+        return mutations;
+    }
+
+    private void flushMutations() {
+        if (mutations != null) {
+            mutations.flush();
+        }
+    }
+
     private void startQueryWatch() {
-        queryWatch = Stopwatch.createStarted();
+        queryWatch = Stopwatch.createStarted(getTicker());
     }
 
     private void startQueueWatch() {
-        queueWatch = Stopwatch.createStarted();
+        queueWatch = Stopwatch.createStarted(getTicker());
+    }
+
+    private Ticker getTicker() {
+        return ticker == null? Ticker.systemTicker() : ticker;
     }
 
     /**
@@ -0,0 +1,139 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stores the status of tasks in the datastore, one entity per task. The status of tasks posted together is
+ * written in a single batch, in the current transaction if any. Each attempt is recorded with a single write
+ * outside of the current transaction. Entities are not deleted, use the indexed <code>updated</code> property
+ * to purge old entries.
+ */
+public class DatastoreTaskStatusStore implements TaskStatusStore {
+
+    /** the entity kind used to store the status of tasks */
+    public static final String KIND = "Queue4GaeStatus";
+
+    private static final String STATE = "state";
+
+    private static final String ATTEMPTS = "attempts";
+
+    private static final String UPDATED = "updated";
+
+    private static final String ERROR = "error";
+
+    /** the initial interval between reads in {@link #await}, in milliseconds */
+    private static final long MIN_POLL_INTERVAL = 50;
+
+    /** the maximum interval between reads in {@link #await}, in milliseconds */
+    private static final long MAX_POLL_INTERVAL = 1000;
+
+    private final DatastoreService datastore;
+
+    public DatastoreTaskStatusStore() {
+        this(DatastoreServiceFactory.getDatastoreService());
+    }
+
+    public DatastoreTaskStatusStore(DatastoreService datastore) {
+        this.datastore = datastore;
+    }
+
+    /**
+     * Write the status of tasks added in a transaction in the same transaction, since they cannot start before
+     * it commits. These entities count towards the entity groups of the transaction, which must be cross-group
+     * if it already uses another one. Outside of a transaction, only the tasks that have not started are written.
+     */
+    @Override
+    public void queued(Collection<String> statusIds) {
+        Transaction txn = datastore.getCurrentTransaction(null);
+        List<Key> keys = new ArrayList<Key>(statusIds.size());
+        for (String statusId : statusIds) {
+            keys.add(getKey(statusId));
+        }
+        if (txn == null) {
+            keys.removeAll(datastore.get((Transaction) null, keys).keySet());
+        }
+        List<Entity> entities = new ArrayList<Entity>(keys.size());
+        for (Key key : keys) {
+            entities.add(toEntity(key.getName(), TaskStatus.State.QUEUED, 0, null));
+        }
+        datastore.put(txn, entities);
+    }
+
+    @Override
+    public void running(String statusId, int attempt) {
+        datastore.put((Transaction) null, toEntity(statusId, TaskStatus.State.RUNNING, attempt, null));
+    }
+
+    @Override
+    public void finished(String statusId, int attempt, Throwable failure, boolean retried) {
+        TaskStatus.State state = failure == null? TaskStatus.State.SUCCEEDED : retried? TaskStatus.State.RETRYING : TaskStatus.State.FAILED;
+        datastore.put((Transaction) null, toEntity(statusId, state, attempt, failure == null? null : failure.toString()));
+    }
+
+    @Override
+    public TaskStatus get(String statusId) {
+        try {
+            Entity entity = datastore.get((Transaction) null, getKey(statusId));
+            Text error = (Text) entity.getProperty(ERROR);
+            return new TaskStatus(
+                    TaskStatus.State.valueOf((String) entity.getProperty(STATE)),
+                    ((Long) entity.getProperty(ATTEMPTS)).intValue(),
+                    ((Date) entity.getProperty(UPDATED)).getTime(),
+                    error == null? null : error.getValue()
+            );
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the status repeatedly, doubling the interval between reads up to one second
+     */
+    @Override
+    public TaskStatus await(String statusId, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        long interval = MIN_POLL_INTERVAL;
+        while (true) {
+            TaskStatus status = get(statusId);
+            if (status != null && status.isDone()) {
+                return status;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException("Task " + statusId + " has not finished: " + status);
+            }
+            Thread.sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    private Entity toEntity(String statusId, TaskStatus.State state, int attempts, String error) {
+        Entity entity = new Entity(getKey(statusId));
+        entity.setUnindexedProperty(STATE, state.name());
+        entity.setUnindexedProperty(ATTEMPTS, (long) attempts);
+        entity.setProperty(UPDATED, new Date());
+        if (error != null) {
+            entity.setUnindexedProperty(ERROR, new Text(error));
+        }
+        return entity;
+    }
+
+    private Key getKey(String statusId) {
+        return KeyFactory.createKey(KIND, statusId);
+    }
+
+}
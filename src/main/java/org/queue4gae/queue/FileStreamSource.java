@@ -0,0 +1,38 @@
+package org.queue4gae.queue;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+
+/**
+ * Reads a local file. Intended for testing, since AppEngine instances cannot share files.
+ */
+public class FileStreamSource implements StreamSource {
+
+    @JsonProperty
+    private String path;
+
+    private FileStreamSource() {
+        // for jackson
+    }
+
+    public FileStreamSource(File file) {
+        this.path = file.getAbsolutePath();
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        file.seek(offset);
+        return Channels.newInputStream(file.getChannel());
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
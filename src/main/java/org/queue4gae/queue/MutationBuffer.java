@@ -0,0 +1,168 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Collects datastore puts and deletes and writes them in batches using asynchronous calls, so that
+ * processing can continue while the previous batches are being written.
+ * Several mutations of the same key are collapsed into the last one, and a key is never mutated
+ * while a previous mutation of the same key is still being written.
+ * Entities should not be modified after being added to the buffer.
+ * This class is not thread-safe.
+ * @see CursorTask#getMutations()
+ */
+public class MutationBuffer {
+
+    /** default value for the batch size */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** the maximum number of batches being written at the same time */
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private final AsyncDatastoreService datastore;
+
+    /** the number of mutations that will trigger a write */
+    private final int batchSize;
+
+    /** entities to put, by key. Entities with incomplete keys are stored separately */
+    private final Map<Key, Entity> puts = new LinkedHashMap<Key, Entity>();
+
+    /** entities to put that do not have a complete key yet */
+    private final List<Entity> incompletePuts = new ArrayList<Entity>();
+
+    /** keys to delete */
+    private final Set<Key> deletes = new LinkedHashSet<Key>();
+
+    /** the batches being written */
+    private final LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
+
+    /** the keys of the batches being written */
+    private final Set<Key> pendingKeys = new HashSet<Key>();
+
+    public MutationBuffer() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public MutationBuffer(int batchSize) {
+        this(DatastoreServiceFactory.getAsyncDatastoreService(), batchSize);
+    }
+
+    public MutationBuffer(AsyncDatastoreService datastore, int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.datastore = datastore;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Store an entity
+     */
+    public void put(Entity entity) {
+        Key key = entity.getKey();
+        if (!key.isComplete()) {
+            incompletePuts.add(entity);
+        } else {
+            beforeMutation(key);
+            deletes.remove(key);
+            puts.put(key, entity);
+        }
+        writeIfFull();
+    }
+
+    /**
+     * Delete an entity
+     */
+    public void delete(Key key) {
+        beforeMutation(key);
+        puts.remove(key);
+        deletes.add(key);
+        writeIfFull();
+    }
+
+    /**
+     * Write all mutations and wait until they have been stored
+     * @throws RuntimeException if any write failed
+     */
+    public void flush() {
+        write();
+        while (!pending.isEmpty()) {
+            waitForOldest();
+        }
+    }
+
+    /**
+     * @return the number of mutations that have not been written yet
+     */
+    public int size() {
+        return puts.size() + incompletePuts.size() + deletes.size();
+    }
+
+    /**
+     * Avoid reordering mutations of a key that is still being written
+     */
+    private void beforeMutation(Key key) {
+        if (pendingKeys.contains(key)) {
+            flush();
+        }
+    }
+
+    private void writeIfFull() {
+        if (size() >= batchSize) {
+            write();
+        }
+    }
+
+    /**
+     * Start writing the buffered mutations, waiting for the oldest batch if there are too many batches pending
+     */
+    private void write() {
+        if (size() == 0) {
+            return;
+        }
+        while (pending.size() >= MAX_PENDING_BATCHES) {
+            waitForOldest();
+        }
+        if (!puts.isEmpty() || !incompletePuts.isEmpty()) {
+            List<Entity> entities = new ArrayList<Entity>(puts.values());
+            entities.addAll(incompletePuts);
+            pending.add(datastore.put(null, entities));
+            pendingKeys.addAll(puts.keySet());
+            puts.clear();
+            incompletePuts.clear();
+        }
+        if (!deletes.isEmpty()) {
+            pending.add(datastore.delete(null, new ArrayList<Key>(deletes)));
+            pendingKeys.addAll(deletes);
+            deletes.clear();
+        }
+    }
+
+    private void waitForOldest() {
+        try {
+            pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error writing mutations", e.getCause());
+        } finally {
+            if (pending.isEmpty()) {
+                pendingKeys.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Preconditions;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Default options for all the tasks posted to a queue. Attributes of each task (task name, tag, delay) take
+ * precedence over the values configured here.
+<pre>
+queueService.registerQueue("mail", new QueueOptions()
+    .withUrl("/mail-task")
+    .withTarget("mail.myapp.appspot.com")
+    .withRetryOptions(RetryOptions.Builder.withTaskRetryLimit(5))
+    .withLane(TaskPriority.HIGH, "mail-high")
+);
+</pre>
+ * @see QueueServiceImpl#registerQueue(String, QueueOptions)
+ */
+public class QueueOptions {
+
+    /** the Host header used to route tasks to a specific version or backend */
+    static final String TARGET_HEADER = "Host";
+
+    /** the URL that will receive the tasks. If null, the default task URL will be used */
+    private String url;
+
+    /** the host that will receive the tasks, e.g. "v2.myapp.appspot.com". May be null. */
+    private String target;
+
+    /** retry options for the tasks. May be null, in which case the queue configuration will be used */
+    private RetryOptions retryOptions;
+
+    /** the number of milliseconds to wait before executing tasks that do not specify a delay */
+    private long countdownMillis;
+
+    /** if positive, unnamed tasks with the same payload posted within this number of seconds are discarded */
+    private int deduplicationSeconds;
+
+    /** if positive, the maximum number of tasks per second posted to this queue by each instance */
+    private double enqueueRate;
+
+    /** the queue that receives the tasks of each priority, if different from this one */
+    private final Map<TaskPriority, String> lanes = new EnumMap<TaskPriority, String>(TaskPriority.class);
+
+    /**
+     * Set the URL that will receive the tasks of this queue, instead of the default task URL.
+     */
+    public QueueOptions withUrl(String url) {
+        this.url = url;
+        return this;
+    }
+
+    /**
+     * Set the host that will receive the tasks of this queue, to route them to a specific version or backend.
+     */
+    public QueueOptions withTarget(String target) {
+        this.target = target;
+        return this;
+    }
+
+    /**
+     * Set the retry options for the tasks of this queue, overriding the configuration in queue.xml
+     */
+    public QueueOptions withRetryOptions(RetryOptions retryOptions) {
+        this.retryOptions = retryOptions;
+        return this;
+    }
+
+    /**
+     * Set a number of milliseconds to wait before executing tasks that do not specify a delay
+     */
+    public QueueOptions withCountdownMillis(long countdownMillis) {
+        this.countdownMillis = countdownMillis;
+        return this;
+    }
+
+    /**
+     * Discard unnamed tasks with the same contents as another task posted to this queue during the same time window.
+     * Tasks get a name derived from a hash of their JSON payload and the current time window, and duplicates
+     * are discarded silently. Explicitly named tasks are not affected, and neither are tasks posted inside a datastore
+     * transaction: AppEngine does not accept named transactional tasks, which are only added if the transaction commits.
+     * @param windowSeconds the size of the time window, in seconds
+     */
+    public QueueOptions withDeduplication(int windowSeconds) {
+        this.deduplicationSeconds = windowSeconds;
+        return this;
+    }
+
+    /**
+     * Limit the number of tasks posted to this queue per second by each instance, to stay below the enqueue
+     * rate quota during bursts. Posting blocks the caller until there is room, following a token bucket that
+     * accumulates up to one second of unused capacity. Each lane is limited separately.
+     * @see QueueServiceImpl#getThrottledPostCount()
+     */
+    public QueueOptions withEnqueueRate(double tasksPerSecond) {
+        Preconditions.checkArgument(tasksPerSecond > 0, "tasksPerSecond must be positive");
+        this.enqueueRate = tasksPerSecond;
+        return this;
+    }
+
+    /**
+     * Post the tasks of this queue with the given priority to a separate lane queue. The lane should be declared
+     * in queue.xml with its own rate and concurrency, so that tasks in one lane do not wait behind the tasks
+     * of another. Unless registered separately, the lane queue uses the options of this queue.
+     */
+    public QueueOptions withLane(TaskPriority priority, String queueName) {
+        lanes.put(priority, queueName);
+        return this;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public RetryOptions getRetryOptions() {
+        return retryOptions;
+    }
+
+    public long getCountdownMillis() {
+        return countdownMillis;
+    }
+
+    public int getDeduplicationSeconds() {
+        return deduplicationSeconds;
+    }
+
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+
+    /**
+     * @return the name of the lane queue for the given priority, null if tasks should be posted to this queue
+     */
+    public String getLane(TaskPriority priority) {
+        return lanes.get(priority);
+    }
+
+    /**
+     * Create the TaskOptions to use as a template for all tasks of this queue
+     * @param defaultUrl the URL to use if none has been configured
+     */
+    TaskOptions toTaskOptions(String defaultUrl) {
+        TaskOptions options = TaskOptions.Builder.withDefaults()
+                .method(TaskOptions.Method.POST)
+                .url(url == null? defaultUrl : url);
+        if (target != null) {
+            options.header(TARGET_HEADER, target);
+        }
+        if (retryOptions != null) {
+            options.retryOptions(retryOptions);
+        }
+        return options;
+    }
+
+}
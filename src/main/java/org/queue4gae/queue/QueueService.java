@@ -10,8 +10,14 @@ public interface QueueService {
 
     /**
      * Post the task in a queue for a deferred execution
+     * @return a handle to check the status of the task
      */
-    public void post(Task task);
+    public TaskHandle post(Task task);
+
+    /**
+     * Post a number of tasks for a deferred execution, using as few calls as possible
+     */
+    public void postAll(Iterable<? extends Task> tasks);
 
     /**
      * Execute the task in the current Thread.
@@ -1,13 +1,37 @@
 package org.queue4gae.queue;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueueServiceImpl implements QueueService {
 
@@ -20,34 +44,320 @@ public class QueueServiceImpl implements QueueService {
     /** the URL that will handle our queue requests */
     private String taskUrl;
 
+    /** options registered for each queue name */
+    private final ConcurrentMap<String, QueueOptions> queueOptions = new ConcurrentHashMap<String, QueueOptions>();
+
+    /** the maximum number of tasks that can be added to a queue in a single call */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /** default value for {@link #setDeduplicationCacheSize(int)} */
+    public static final int DEFAULT_DEDUPLICATION_CACHE_SIZE = 10000;
+
+    /** recently posted deduplicated task names, prefixed with the queue name */
+    private volatile Cache<String, Boolean> postedTaskNames = CacheBuilder.newBuilder().maximumSize(DEFAULT_DEDUPLICATION_CACHE_SIZE).build();
+
+    /** the current time in nanoseconds since the epoch, used for deduplication windows. Null means the system clock */
+    private volatile Ticker clock;
+
+    /** the queue handle and options template for each queue name or lane, created when the first task is posted */
+    private final ConcurrentMap<String, QueueTemplate> templates = new ConcurrentHashMap<String, QueueTemplate>();
+
+    /** interceptors that wrap the execution of tasks */
+    private final TaskInterceptors interceptors = new TaskInterceptors();
+
+    /** if not null, attaches trace metadata to posted tasks */
+    private volatile Tracer tracer;
+
+    /** if not null, records the status of posted tasks */
+    private volatile TaskStatusStore statusStore;
+
+    /** the fraction of posted tasks whose status is recorded */
+    private volatile double statusSampleRate = 1;
+
+    /** default value for the maximum number of attempts of {@link #setPostRetries(int, long, TimeUnit)} */
+    public static final int DEFAULT_POST_ATTEMPTS = 3;
+
+    /** default value for the initial backoff of {@link #setPostRetries(int, long, TimeUnit)}, in milliseconds */
+    public static final long DEFAULT_POST_BACKOFF = 100;
+
+    /** the maximum time to wait before retrying a post, in milliseconds */
+    private static final long MAX_POST_BACKOFF = 5000;
+
+    /** the maximum number of times a post is attempted when the Task Queue Service fails transiently */
+    private volatile int maxPostAttempts = DEFAULT_POST_ATTEMPTS;
+
+    /** the time to wait before the first retry, doubled on each retry */
+    private volatile long postBackoffMillis = DEFAULT_POST_BACKOFF;
+
+    /** if not null, stops posting while the Task Queue Service is failing */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /** number of tasks delayed by the enqueue rate of their queue */
+    private final AtomicLong throttledPostCount = new AtomicLong();
+
+    /** number of tasks whose post was retried, once for each retry */
+    private final AtomicLong retriedPostCount = new AtomicLong();
+
+    /** number of tasks that could not be posted after retrying */
+    private final AtomicLong failedPostCount = new AtomicLong();
+
+    /** number of tasks rejected without posting while the circuit breaker was open */
+    private final AtomicLong shedPostCount = new AtomicLong();
+
+    private static final Logger log = LoggerFactory.getLogger(QueueServiceImpl.class);
+
     @Override
-    public void post(Task task) {
-        try {
-            String queueName = task.getQueueName();
-            Preconditions.checkArgument(queueName != null, "task.getQueueName() cannot be null");
-            TaskOptions options = TaskOptions.Builder.withDefaults()
-                    .method(TaskOptions.Method.POST)
-                    .url(taskUrl)
-                    .payload(objectMapper.writeValueAsString(task).getBytes("utf-8"), "application/json");
-            if (task.getTaskName() != null) {
-                options = options.taskName(task.getTaskName());
-            }
-            if (task.getTag() != null) {
-                options = options.tag(task.getTag());
+    public TaskHandle post(Task task) {
+        Batch batch = new Batch(getTemplate(task));
+        batch.add(task);
+        List<com.google.appengine.api.taskqueue.TaskHandle> added = batch.flush();
+        if (added.isEmpty()) {
+            // discarded as a duplicate
+            return new TaskHandle(null, 0, null, null);
+        }
+        return new TaskHandle(added.get(0).getName(), added.get(0).getEtaMillis(), ((AbstractTask) task).getStatusId(), statusStore);
+    }
+
+    /**
+     * Post tasks grouped by queue name, in batches of up to {@value #MAX_BATCH_SIZE} tasks.
+     * If a batch fails, the rest of batches are posted anyway before throwing the exception.
+     */
+    @Override
+    public void postAll(Iterable<? extends Task> tasks) {
+        Map<QueueTemplate, Batch> batches = new LinkedHashMap<QueueTemplate, Batch>();
+        RuntimeException failure = null;
+        for (Task task : tasks) {
+            QueueTemplate template = getTemplate(task);
+            Batch batch = batches.get(template);
+            if (batch == null) {
+                batch = new Batch(template);
+                batches.put(template, batch);
             }
-            if (task.getDelaySeconds() != 0) {
-                options = options.countdownMillis(task.getDelaySeconds() * 1000L);
+            batch.add(task);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                failure = flush(batch, failure);
             }
-            QueueFactory.getQueue(queueName).add(options);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        }
+        for (Batch batch : batches.values()) {
+            failure = flush(batch, failure);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Flush a batch, without throwing any exception
+     * @param failure the exception thrown by a previous batch, if any
+     * @return the exception to throw once all batches have been flushed. A {@link TaskAlreadyExistsException}
+     * is only returned if no batch failed for other reasons, since the rest of tasks of its batch were added
+     */
+    private RuntimeException flush(Batch batch, RuntimeException failure) {
+        try {
+            batch.flush();
+            return failure;
+        } catch (RuntimeException e) {
+            return failure == null || (failure instanceof TaskAlreadyExistsException && !(e instanceof TaskAlreadyExistsException))? e : failure;
         }
     }
 
     @Override
     public void run(Task task) {
         injectionService.injectMembers(task);
-        ((AbstractTask)task).run(this);
+        interceptors.run((AbstractTask) task, this);
+    }
+
+    /**
+     * Wrap the execution of tasks with an interceptor. Interceptors are invoked in the order they were added,
+     * and should be added before executing any task.
+     */
+    public void addInterceptor(TaskInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Attach trace metadata to posted tasks, and record a span for each executed task.
+     * Should be invoked before posting or executing any task.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        addInterceptor(tracer);
+    }
+
+    /**
+     * Record the status of posted tasks, so that it can be checked using the {@link TaskHandle} returned by
+     * {@link #post(Task)}. Tasks are assumed to be retried until they succeed, so failed attempts are recorded
+     * as {@link TaskStatus.State#RETRYING}. Should be invoked before posting or executing any task.
+     */
+    public void setStatusStore(TaskStatusStore statusStore) {
+        setStatusStore(statusStore, StatusTrackingInterceptor.UNLIMITED_ATTEMPTS);
+    }
+
+    /**
+     * Record the status of posted tasks, marking them as {@link TaskStatus.State#FAILED} when the last attempt fails.
+     * @param maxAttempts the number of attempts configured in queue.xml (<code>task-retry-limit</code> plus one),
+     * or {@link StatusTrackingInterceptor#UNLIMITED_ATTEMPTS}
+     */
+    public void setStatusStore(TaskStatusStore statusStore, int maxAttempts) {
+        this.statusStore = statusStore;
+        addInterceptor(new StatusTrackingInterceptor(statusStore, maxAttempts));
+    }
+
+    /**
+     * Record the status of only a fraction of the posted tasks, to reduce the number of writes.
+     * Tasks posted with {@link AbstractTask#withStatusTracking()} are always tracked. Default is 1.
+     */
+    public void setStatusSampleRate(double statusSampleRate) {
+        Preconditions.checkArgument(statusSampleRate >= 0 && statusSampleRate <= 1, "statusSampleRate must be between 0 and 1");
+        this.statusSampleRate = statusSampleRate;
+    }
+
+    /**
+     * @return true if the status of the task should be recorded
+     */
+    private boolean isStatusTracked(AbstractTask task) {
+        return statusStore != null && (task.isStatusTracking() || ThreadLocalRandom.current().nextDouble() < statusSampleRate);
+    }
+
+    /**
+     * Set how posts are retried when the Task Queue Service fails with a {@link TransientFailureException} or
+     * a deadline. Each retry waits a random time between half and all of the backoff, which is doubled
+     * after each retry. Default is {@value #DEFAULT_POST_ATTEMPTS} attempts and {@value #DEFAULT_POST_BACKOFF} ms.
+     * Since a failed attempt may have added the tasks anyway, only batches where every task has a name, given
+     * explicitly or by {@link QueueOptions#withDeduplication}, are retried; the Task Queue Service rejects the
+     * second copy of a named task.
+     * @param maxAttempts the maximum number of attempts, 1 to disable retries
+     * @param initialBackoff the backoff of the first retry
+     */
+    public void setPostRetries(int maxAttempts, long initialBackoff, TimeUnit unit) {
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+        this.maxPostAttempts = maxAttempts;
+        this.postBackoffMillis = unit.toMillis(initialBackoff);
+    }
+
+    /**
+     * Fail posts immediately while the Task Queue Service is degraded, instead of retrying them.
+     * Posts rejected by the circuit breaker throw a {@link TransientFailureException}.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the number of tasks that had to wait because of the enqueue rate of their queue
+     * @see QueueOptions#withEnqueueRate(double)
+     */
+    public long getThrottledPostCount() {
+        return throttledPostCount.get();
+    }
+
+    /**
+     * @return the number of tasks posted again after a transient failure, counting each retry
+     */
+    public long getRetriedPostCount() {
+        return retriedPostCount.get();
+    }
+
+    /**
+     * @return the number of tasks that could not be posted after all attempts
+     */
+    public long getFailedPostCount() {
+        return failedPostCount.get();
+    }
+
+    /**
+     * @return the number of tasks rejected without posting because the circuit breaker was open
+     */
+    public long getShedPostCount() {
+        return shedPostCount.get();
+    }
+
+    /**
+     * @return the time to wait before a retry, with random jitter so that instances do not retry in sync
+     * @param retry the number of the retry, starting with 1
+     */
+    private long getPostBackoff(int retry) {
+        long backoff = Math.min(MAX_POST_BACKOFF, postBackoffMillis << Math.min(retry - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * @return a task name derived from the payload and the current time window
+     */
+    private String getDeduplicationTaskName(byte[] payload, long windowMillis) {
+        return "dedup-" + Hashing.sha1().hashBytes(payload) + "-" + currentTimeMillis() / windowMillis;
+    }
+
+    private long currentTimeMillis() {
+        Ticker clock = this.clock;
+        return clock == null? System.currentTimeMillis() : TimeUnit.NANOSECONDS.toMillis(clock.read());
+    }
+
+    /**
+     * @return true if tasks would be added as part of the current datastore transaction
+     */
+    private boolean isTransactionActive() {
+        return DatastoreServiceFactory.getDatastoreService().getCurrentTransaction(null) != null;
+    }
+
+    /**
+     * Set the clock used to calculate deduplication windows, in nanoseconds since the epoch.
+     * Intended for testing, where a virtual clock can be used to avoid crossing a window boundary.
+     */
+    public void setClock(Ticker clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Set the maximum number of deduplicated task names to remember, to discard duplicates without invoking
+     * the Task Queue Service. Default is {@value #DEFAULT_DEDUPLICATION_CACHE_SIZE}.
+     * @see QueueOptions#withDeduplication(int)
+     */
+    public void setDeduplicationCacheSize(int size) {
+        this.postedTaskNames = CacheBuilder.newBuilder().maximumSize(size).<String, Boolean>build();
+    }
+
+    /**
+     * Configure the default options for all tasks posted to a queue. Queues without options use the default
+     * task URL and the configuration in queue.xml. The options should not be modified after registering them.
+     */
+    public void registerQueue(String queueName, QueueOptions options) {
+        queueOptions.put(queueName, options);
+        // lanes of other queues may inherit these options
+        templates.clear();
+    }
+
+    /**
+     * @return the cached queue handle and options template for the provided task, taking into account
+     * the lane configured for its priority
+     */
+    private QueueTemplate getTemplate(Task task) {
+        String queueName = task.getQueueName();
+        Preconditions.checkArgument(queueName != null, "task.getQueueName() cannot be null");
+        QueueOptions options = queueOptions.get(queueName);
+        String lane = options == null? null : options.getLane(task.getPriority());
+        if (lane == null || lane.equals(queueName)) {
+            return getTemplate(queueName, queueName, options);
+        }
+        // the lane may also be used directly, or by other queues with different options
+        QueueOptions laneOptions = queueOptions.get(lane);
+        return getTemplate(queueName + "/" + task.getPriority(), lane, laneOptions == null? options : laneOptions);
+    }
+
+    /**
+     * @param key the key of the template in the cache
+     * @return the cached queue handle and options template for the provided queue name
+     */
+    private QueueTemplate getTemplate(String key, String queueName, QueueOptions options) {
+        QueueTemplate template = templates.get(key);
+        if (template == null) {
+            template = new QueueTemplate(QueueFactory.getQueue(queueName), options == null? new QueueOptions() : options, taskUrl);
+            QueueTemplate previous = templates.putIfAbsent(key, template);
+            if (previous != null) {
+                template = previous;
+            }
+        }
+        return template;
     }
 
     @Inject
@@ -63,6 +373,250 @@ public class QueueServiceImpl implements QueueService {
     @Inject
     public void setTaskUrl(@Named(TASK_URL) String taskUrl) {
         this.taskUrl = taskUrl;
+        templates.clear();
+    }
+
+    /**
+     * The values used for every task posted to a queue. Each post works on a copy of the options.
+     */
+    private static class QueueTemplate {
+
+        private final Queue queue;
+
+        private final TaskOptions options;
+
+        private final long countdownMillis;
+
+        private final long deduplicationMillis;
+
+        /** limits the number of tasks posted per second, null if unlimited */
+        private final RateLimiter rateLimiter;
+
+        private QueueTemplate(Queue queue, QueueOptions queueOptions, String defaultUrl) {
+            this.queue = queue;
+            this.options = queueOptions.toTaskOptions(defaultUrl);
+            this.countdownMillis = queueOptions.getCountdownMillis();
+            this.deduplicationMillis = queueOptions.getDeduplicationSeconds() * 1000L;
+            this.rateLimiter = queueOptions.getEnqueueRate() > 0? RateLimiter.create(queueOptions.getEnqueueRate()) : null;
+        }
+    }
+
+    /**
+     * Tasks to be added to the same queue with the same template in a single call
+     */
+    private class Batch {
+
+        private final QueueTemplate template;
+
+        private final List<TaskOptions> options = new ArrayList<TaskOptions>();
+
+        /** keys of deduplicated tasks in this batch, to be remembered once posted */
+        private final List<String> deduplicationKeys = new ArrayList<String>();
+
+        /** status IDs of the tracked tasks in this batch */
+        private final List<String> statusIds = new ArrayList<String>();
+
+        /** true if this batch includes tasks named explicitly */
+        private boolean named;
+
+        /** true if this batch includes tasks without a name, which could be added twice if retried */
+        private boolean unnamed;
+
+        /** the expected handles of the named tasks in this batch, in case they were added by a failed attempt */
+        private final List<com.google.appengine.api.taskqueue.TaskHandle> namedHandles = new ArrayList<com.google.appengine.api.taskqueue.TaskHandle>();
+
+        private Batch(QueueTemplate template) {
+            this.template = template;
+        }
+
+        private void add(Task task) {
+            try {
+                AbstractTask abstractTask = (AbstractTask) task;
+                Tracer tracer = QueueServiceImpl.this.tracer;
+                if (tracer != null) {
+                    tracer.attach(task);
+                }
+                // tasks that post themselves again get a new status
+                String statusId = isStatusTracked(abstractTask)? UUID.randomUUID().toString() : null;
+                abstractTask.setStatusId(statusId);
+                byte[] payload = toPayload(task);
+                TaskOptions taskOptions = new TaskOptions(template.options).payload(payload, "application/json");
+                String taskName = task.getTaskName();
+                if (taskName != null) {
+                    taskOptions = taskOptions.taskName(taskName);
+                    named = true;
+                } else if (template.deduplicationMillis > 0 && !isTransactionActive()) {
+                    // AppEngine does not accept named tasks in a transaction, which are only added once anyway
+                    taskName = getDeduplicationTaskName(getDeduplicationPayload(abstractTask, payload), template.deduplicationMillis);
+                    String deduplicationKey = template.queue.getQueueName() + "/" + taskName;
+                    if (postedTaskNames.getIfPresent(deduplicationKey) != null || deduplicationKeys.contains(deduplicationKey)) {
+                        // duplicate of a task that we already posted
+                        abstractTask.setStatusId(null);
+                        return;
+                    }
+                    deduplicationKeys.add(deduplicationKey);
+                    taskOptions = taskOptions.taskName(taskName);
+                } else {
+                    unnamed = true;
+                }
+                if (task.getTag() != null) {
+                    taskOptions = taskOptions.tag(task.getTag());
+                }
+                long etaMillis = System.currentTimeMillis();
+                if (task.getEtaMillis() != 0) {
+                    taskOptions = taskOptions.etaMillis(task.getEtaMillis());
+                    etaMillis = task.getEtaMillis();
+                } else if (task.getDelaySeconds() != 0) {
+                    taskOptions = taskOptions.countdownMillis(task.getDelaySeconds() * 1000L);
+                    etaMillis += task.getDelaySeconds() * 1000L;
+                } else if (template.countdownMillis != 0) {
+                    taskOptions = taskOptions.countdownMillis(template.countdownMillis);
+                    etaMillis += template.countdownMillis;
+                }
+                options.add(taskOptions);
+                if (taskName != null) {
+                    namedHandles.add(new com.google.appengine.api.taskqueue.TaskHandle(taskName, template.queue.getQueueName(), etaMillis));
+                }
+                if (statusId != null) {
+                    statusIds.add(statusId);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private byte[] toPayload(Task task) throws IOException {
+            return objectMapper.writeValueAsString(task).getBytes("utf-8");
+        }
+
+        /**
+         * @return the payload of the task without trace and status metadata, which are different for each post
+         */
+        private byte[] getDeduplicationPayload(AbstractTask task, byte[] payload) throws IOException {
+            TraceContext traceContext = task.getTraceContext();
+            String statusId = task.getStatusId();
+            if (traceContext == null && statusId == null) {
+                return payload;
+            }
+            task.setTraceContext(null);
+            task.setStatusId(null);
+            try {
+                return toPayload(task);
+            } finally {
+                task.setTraceContext(traceContext);
+                task.setStatusId(statusId);
+            }
+        }
+
+        private int size() {
+            return options.size();
+        }
+
+        /**
+         * Add the tasks to the queue, retrying transient failures
+         */
+        private List<com.google.appengine.api.taskqueue.TaskHandle> add(CircuitBreaker circuitBreaker) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    List<com.google.appengine.api.taskqueue.TaskHandle> added;
+                    if (options.size() == 1) {
+                        added = Collections.singletonList(template.queue.add(options.get(0)));
+                    } else {
+                        added = template.queue.add(options);
+                    }
+                    if (circuitBreaker != null) {
+                        circuitBreaker.success();
+                    }
+                    return added;
+                } catch (TransientFailureException | ApiProxy.ApiDeadlineExceededException e) {
+                    if (attempt >= maxPostAttempts || unnamed) {
+                        failedPostCount.addAndGet(options.size());
+                        if (circuitBreaker != null) {
+                            circuitBreaker.failure();
+                        }
+                        throw e;
+                    }
+                    long backoff = getPostBackoff(attempt);
+                    log.warn("Cannot post " + options.size() + " tasks to " + template.queue.getQueueName() + ", retrying in " + backoff + " ms: " + e);
+                    retriedPostCount.addAndGet(options.size());
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                } catch (RuntimeException e) {
+                    // the service is responding
+                    if (circuitBreaker != null) {
+                        circuitBreaker.success();
+                    }
+                    if (e instanceof TaskAlreadyExistsException && attempt > 1) {
+                        // a failed attempt may have added the tasks anyway. All of them are named
+                        return new ArrayList<com.google.appengine.api.taskqueue.TaskHandle>(namedHandles);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Add all tasks to the queue, and empty this batch even if it fails
+         * @return the handles of the tasks added, empty if some of them were discarded as duplicates
+         */
+        private List<com.google.appengine.api.taskqueue.TaskHandle> flush() {
+            if (options.isEmpty()) {
+                return Collections.emptyList();
+            }
+            try {
+                return post();
+            } finally {
+                options.clear();
+                deduplicationKeys.clear();
+                statusIds.clear();
+                namedHandles.clear();
+                named = false;
+                unnamed = false;
+            }
+        }
+
+        private List<com.google.appengine.api.taskqueue.TaskHandle> post() {
+            List<com.google.appengine.api.taskqueue.TaskHandle> added = Collections.emptyList();
+            CircuitBreaker circuitBreaker = QueueServiceImpl.this.circuitBreaker;
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                shedPostCount.addAndGet(options.size());
+                throw new TransientFailureException("Circuit breaker is open, discarding " + options.size() + " tasks for " + template.queue.getQueueName());
+            }
+            boolean completed = false;
+            try {
+                RateLimiter rateLimiter = template.rateLimiter;
+                if (rateLimiter != null && !rateLimiter.tryAcquire(options.size())) {
+                    throttledPostCount.addAndGet(options.size());
+                    rateLimiter.acquire(options.size());
+                }
+                try {
+                    added = add(circuitBreaker);
+                } catch (TaskAlreadyExistsException e) {
+                    if (named) {
+                        throw e;
+                    }
+                    // duplicates of tasks posted by another instance. The rest of tasks have been added
+                }
+                if (!statusIds.isEmpty()) {
+                    // after adding the tasks, so that failed posts are not recorded as queued
+                    statusStore.queued(statusIds);
+                }
+                completed = true;
+            } finally {
+                if (!completed && circuitBreaker != null) {
+                    // if this was the probe and it did not report its outcome, allow another one
+                    circuitBreaker.abort();
+                }
+            }
+            for (String deduplicationKey : deduplicationKeys) {
+                postedTaskNames.put(deduplicationKey, Boolean.TRUE);
+            }
+            return added;
+        }
     }
 
 }
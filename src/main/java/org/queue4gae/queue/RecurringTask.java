@@ -0,0 +1,203 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.math.LongMath;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.RoundingMode;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task that is executed repeatedly at a fixed rate or following a cron expression. Each execution posts
+ * the task again with the ETA of the next slot, before invoking {@link #runSlot(long)}.
+ *
+ * Slots are calculated from the schedule and not from the current time, so a late execution does not delay
+ * the rest. If the task falls behind, missed slots are skipped. Each slot is posted with a task name derived
+ * from the schedule name and the slot time, so duplicate executions or calls to {@link #schedule(QueueService)}
+ * from several instances do not fork the schedule.
+<pre>
+queueService.post(new PurgeTask().withCron("0 3 * * *").withScheduleName("purge"));
+</pre>
+ */
+public abstract class RecurringTask extends InjectedTask {
+
+    /** the time between slots, in milliseconds. 0 if using a cron expression */
+    @JsonProperty
+    private long periodMillis;
+
+    /** the time of a slot of a fixed-rate schedule, the others are separated by multiples of the period. 0 means the epoch */
+    @JsonProperty
+    private long startMillis;
+
+    /** the cron expression, if any */
+    @JsonProperty
+    private String cron;
+
+    /** the ID of the time zone of the cron expression */
+    @JsonProperty
+    private String timeZone = "UTC";
+
+    /** prefix of the task name of each slot. If null, the simple class name will be used */
+    @JsonProperty
+    private String scheduleName;
+
+    /** the time of the slot this task has been posted for. 0 if posted directly */
+    @JsonProperty
+    private long slotMillis;
+
+    /** the current time in nanoseconds since the epoch. Null means the system clock */
+    @JsonIgnore
+    private Ticker clock;
+
+    /** the parsed cron expression */
+    @JsonIgnore
+    private CronExpression cronExpression;
+
+    private static final Logger log = LoggerFactory.getLogger(RecurringTask.class);
+
+    protected RecurringTask() {
+    }
+
+    protected RecurringTask(String queueName) {
+        super(queueName);
+    }
+
+    /**
+     * Execute this task at a fixed rate, with slots at multiples of the period since the epoch. Slots do not depend
+     * on the time of the call to {@link #schedule(QueueService)}, so instances that start at different times
+     * schedule the same slots.
+     */
+    public <T extends InjectedTask> T withFixedRate(long period, TimeUnit unit) {
+        return withFixedRate(period, unit, 0);
+    }
+
+    /**
+     * Execute this task at a fixed rate, with slots separated by multiples of the period from the provided time
+     * @param startMillis the time of any slot of the schedule, in milliseconds since the epoch
+     */
+    public <T extends InjectedTask> T withFixedRate(long period, TimeUnit unit, long startMillis) {
+        Preconditions.checkArgument(period > 0, "period must be positive");
+        this.periodMillis = unit.toMillis(period);
+        this.startMillis = startMillis;
+        this.cron = null;
+        this.cronExpression = null;
+        return (T) this;
+    }
+
+    /**
+     * Execute this task following a cron expression, in UTC unless a time zone is specified.
+     * @see CronExpression
+     */
+    public <T extends InjectedTask> T withCron(String cron) {
+        this.cronExpression = new CronExpression(cron);
+        this.cron = cron;
+        this.periodMillis = 0;
+        return (T) this;
+    }
+
+    /**
+     * Set the time zone used to evaluate the cron expression. Default is UTC.
+     */
+    public <T extends InjectedTask> T withTimeZone(TimeZone timeZone) {
+        this.timeZone = timeZone.getID();
+        return (T) this;
+    }
+
+    /**
+     * Set the prefix of the task name used for each slot. Tasks of different schedules of the same class
+     * must use different names.
+     */
+    public <T extends InjectedTask> T withScheduleName(String scheduleName) {
+        this.scheduleName = scheduleName;
+        return (T) this;
+    }
+
+    /**
+     * Set the time source used to calculate slots, measuring nanoseconds since the epoch. This value is not serialized.
+     * Intended for testing, where a virtual clock can be used to simulate the passing of time.
+     */
+    public <T extends InjectedTask> T withClock(Ticker clock) {
+        this.clock = clock;
+        return (T) this;
+    }
+
+    /**
+     * Post this task for the next slot of its schedule. Nothing is posted if the slot is already scheduled,
+     * so it is safe to invoke this method every time the application starts.
+     */
+    public void schedule(QueueService queueService) {
+        long now = currentTimeMillis();
+        postSlot(queueService, nextSlot(now, now));
+    }
+
+    /**
+     * Post the next slot and execute the current one
+     */
+    @Override
+    public final void run(QueueService queueService) {
+        long now = currentTimeMillis();
+        long slot = slotMillis == 0? now : slotMillis;
+        // post first, so that a failed execution does not break the schedule. Retries post the same slot again
+        postSlot(queueService, nextSlot(slot, now));
+        runSlot(slot);
+    }
+
+    /**
+     * Execute the work of one slot of the schedule
+     * @param slotMillis the time this execution was scheduled for, in milliseconds since the epoch
+     */
+    protected abstract void runSlot(long slotMillis);
+
+    /**
+     * @return the first slot after the provided slot that is not in the past
+     */
+    private long nextSlot(long slot, long now) {
+        long next = nextSlot(slot);
+        if (next <= now) {
+            next = nextSlot(now);
+            log.warn(getScheduleName() + " is late, skipping slots until " + next);
+        }
+        return next;
+    }
+
+    /**
+     * @return the first slot of the schedule strictly after the provided time
+     */
+    private long nextSlot(long after) {
+        if (periodMillis > 0) {
+            return startMillis + (LongMath.divide(after - startMillis, periodMillis, RoundingMode.FLOOR) + 1) * periodMillis;
+        }
+        Preconditions.checkState(cron != null, "Either withFixedRate() or withCron() must be invoked");
+        if (cronExpression == null) {
+            cronExpression = new CronExpression(cron);
+        }
+        return cronExpression.next(after, TimeZone.getTimeZone(timeZone));
+    }
+
+    private void postSlot(QueueService queueService, long slot) {
+        slotMillis = slot;
+        taskName = getScheduleName() + "-" + slot;
+        withEta(slot);
+        try {
+            queueService.post(this);
+        } catch (TaskAlreadyExistsException e) {
+            // this slot has already been posted by another execution
+            log.debug("Slot already scheduled: " + taskName);
+        }
+    }
+
+    private long currentTimeMillis() {
+        return clock == null? System.currentTimeMillis() : TimeUnit.NANOSECONDS.toMillis(clock.read());
+    }
+
+    private String getScheduleName() {
+        return scheduleName == null? getClass().getSimpleName() : scheduleName;
+    }
+
+}
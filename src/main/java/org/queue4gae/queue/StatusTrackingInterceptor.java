@@ -0,0 +1,66 @@
+package org.queue4gae.queue;
+
+/**
+ * Records the start and end of each attempt to execute a tracked task in a {@link TaskStatusStore}.
+ * Registered by the QueueService implementations when status tracking is enabled.
+ * A failed attempt is recorded as {@link TaskStatus.State#RETRYING} unless it was the last one. The number of the
+ * attempt is taken from {@link AbstractTask#getExecutionCount()}, and tasks that are not tracked are not recorded.
+ */
+public class StatusTrackingInterceptor implements TaskInterceptor {
+
+    /** value of maxAttempts for tasks that are retried until they succeed, the default of AppEngine */
+    public static final int UNLIMITED_ATTEMPTS = 0;
+
+    private final TaskStatusStore statusStore;
+
+    /** the number of attempts after which a failed task is not retried */
+    private final int maxAttempts;
+
+    public StatusTrackingInterceptor(TaskStatusStore statusStore) {
+        this(statusStore, UNLIMITED_ATTEMPTS);
+    }
+
+    /**
+     * @param maxAttempts the number of attempts after which a failed task is not retried, or
+     * {@value #UNLIMITED_ATTEMPTS} if tasks are retried until they succeed
+     */
+    public StatusTrackingInterceptor(TaskStatusStore statusStore, int maxAttempts) {
+        this.statusStore = statusStore;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Tasks are tracked individually, so this interceptor applies to all classes
+     */
+    @Override
+    public boolean appliesTo(Class<? extends Task> taskClass) {
+        return true;
+    }
+
+    @Override
+    public void intercept(TaskInvocation invocation) {
+        String statusId = ((AbstractTask) invocation.getTask()).getStatusId();
+        if (statusId == null) {
+            invocation.proceed();
+            return;
+        }
+        int attempt = ((AbstractTask) invocation.getTask()).getExecutionCount() + 1;
+        statusStore.running(statusId, attempt);
+        try {
+            invocation.proceed();
+        } catch (RuntimeException e) {
+            statusStore.finished(statusId, attempt, e, isRetried(invocation.getTask(), attempt));
+            throw e;
+        }
+        statusStore.finished(statusId, attempt, null, false);
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @return true if the task will be retried after failing
+     */
+    protected boolean isRetried(Task task, int attempt) {
+        return maxAttempts == UNLIMITED_ATTEMPTS || attempt < maxAttempts;
+    }
+
+}
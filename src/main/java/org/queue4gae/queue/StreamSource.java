@@ -0,0 +1,21 @@
+package org.queue4gae.queue;
+
+import org.codehaus.jackson.annotate.JsonTypeInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The storage backend read by a {@link StreamTask}. Implementations are serialized as part of the task,
+ * so they should only contain the information required to locate the stream (a file name, a blob key...).
+ */
+@JsonTypeInfo(use=JsonTypeInfo.Id.CLASS, include=JsonTypeInfo.As.PROPERTY, property="@class")
+public interface StreamSource {
+
+    /**
+     * Open the stream for reading
+     * @param offset the number of bytes to skip from the beginning of the stream
+     */
+    InputStream open(long offset) throws IOException;
+
+}
@@ -0,0 +1,189 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task that processes a large line-oriented input (e.g. a CSV export) one line at a time.
+ * This is the equivalent of {@link CursorTask} for streams: close to the 10-minute limit the task will be
+ * re-posted with the byte offset of the first line that has not been processed yet, so the input
+ * is never loaded entirely in memory.
+ * Lines are decoded as UTF-8, and the line terminator ("\n" or "\r\n") is not included.
+ */
+public abstract class StreamTask extends InjectedTask {
+
+    /** default value for {@link #withChunkSize(int)} */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** the input to read */
+    @JsonProperty
+    private StreamSource source;
+
+    /** the byte offset of the next line to process */
+    @JsonProperty
+    private long offset;
+
+    /** the number of lines processed by previous executions */
+    @JsonProperty
+    private long lineNumber;
+
+    /** the number of bytes to read from the stream at a time */
+    @JsonProperty
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /** the time source used to measure timeouts. Null means the system ticker */
+    @JsonIgnore
+    private Ticker ticker;
+
+    /** time consumed by the current {@link #run} execution */
+    @JsonIgnore
+    private Stopwatch queueWatch;
+
+    protected StreamTask() {
+    }
+
+    protected StreamTask(String queueName, StreamSource source) {
+        super(queueName);
+        this.source = source;
+    }
+
+    /**
+     * Set the number of bytes to read from the stream at a time. Default is {@value #DEFAULT_CHUNK_SIZE}.
+     */
+    public <T extends InjectedTask> T withChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return (T) this;
+    }
+
+    /**
+     * Set the byte offset to start reading. It must be the start of a line.
+     */
+    public <T extends InjectedTask> T withOffset(long offset) {
+        this.offset = offset;
+        return (T) this;
+    }
+
+    /**
+     * Set the time source used to check the 10-minute limit. This value is not serialized.
+     * Intended for testing, where a virtual clock can be used to simulate long executions.
+     */
+    public <T extends InjectedTask> T withTicker(Ticker ticker) {
+        this.ticker = ticker;
+        return (T) this;
+    }
+
+    /**
+     * Process lines until the end of the stream or the time is out, in which case the task
+     * is re-posted to continue with the next line.
+     */
+    @Override
+    public void run(QueueService queueService) {
+        queueWatch = Stopwatch.createStarted(ticker == null? Ticker.systemTicker() : ticker);
+        boolean finished;
+        try {
+            InputStream in = source.open(offset);
+            try {
+                finished = processLines(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + source + " at offset " + offset, e);
+        }
+
+        if (!finished) {
+            if (taskName != null) {
+                // Clear the taskname to re-post this task, which would not be possible with the current task name
+                taskName = null;
+            }
+            queueService.post(this);
+        }
+    }
+
+    /**
+     * Read the stream in chunks and process each complete line
+     * @return true if the end of the stream was reached
+     */
+    private boolean processLines(InputStream in) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int position = 0;
+        int limit = 0;
+        while (!queueTimeOut()) {
+            // find the end of the next line, reading more chunks if needed
+            line.reset();
+            boolean eof = false;
+            int end = -1;
+            while (end == -1) {
+                if (position == limit) {
+                    limit = in.read(chunk);
+                    position = 0;
+                    if (limit == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                for (int i = position; i < limit; i++) {
+                    if (chunk[i] == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                line.write(chunk, position, (end == -1? limit : end) - position);
+                position = end == -1? limit : end + 1;
+            }
+            if (eof && line.size() == 0) {
+                return true;
+            }
+            long nextOffset = offset + line.size() + (eof? 0 : 1);
+            processLine(decode(line), lineNumber);
+
+            // only advance once the line has been processed
+            offset = nextOffset;
+            lineNumber++;
+            if (eof) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String decode(ByteArrayOutputStream line) throws IOException {
+        String value = line.toString(Charsets.UTF_8.name());
+        return value.endsWith("\r")? value.substring(0, value.length() - 1) : value;
+    }
+
+    /**
+     * @return true if the current execution of {@link #run} is close to the 10-minute limit
+     * and should exit.
+     */
+    boolean queueTimeOut() {
+        // the definition of "close to the 10-minute limit" here is 1 minute, same as CursorTask
+        return queueWatch.elapsed(TimeUnit.MILLISECONDS) > CursorTask.QUEUE_TIMEOUT - 1 * 60 * 1000L;
+    }
+
+    /**
+     * Process one line of the input. This method should take far less than a minute to complete.
+     * Since a line may be processed again if the task fails, implementations must be idempotent.
+     * @param line the contents of the line, without the line terminator
+     * @param lineNumber the number of the line in the input, starting at 0
+     */
+    protected abstract void processLine(String line, long lineNumber);
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+}
@@ -54,4 +54,36 @@ public interface Task<T> {
      */
     int getDelaySeconds();
 
+    /**
+     * Set the absolute time when this task should be executed, in milliseconds since the epoch.
+     * Takes precedence over {@link #withDelaySeconds(int)}.
+     */
+    T withEta(long etaMillis);
+
+    /**
+     * @return the time when this task should be executed, in milliseconds since the epoch. 0 if not set.
+     */
+    long getEtaMillis();
+
+    /**
+     * Set the priority of this task within its queue. Default is {@link TaskPriority#NORMAL}.
+     */
+    T withPriority(TaskPriority priority);
+
+    /**
+     * @return the priority of this task within its queue.
+     */
+    TaskPriority getPriority();
+
+    /**
+     * Set a key shared by tasks that should not be executed at the same time, e.g. tasks that modify the same
+     * entity group. May be null.
+     */
+    T withAffinityKey(String affinityKey);
+
+    /**
+     * @return the affinity key of this task, if any.
+     */
+    String getAffinityKey();
+
 }
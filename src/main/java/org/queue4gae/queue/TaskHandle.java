@@ -0,0 +1,91 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Returned when a task is posted, to check its status. The status is only available if the QueueService
+ * is tracking the task, see {@link #isTracked()}.
+<pre>
+TaskHandle handle = queueService.post(new ImportTask().withStatusTracking());
+...
+if (handle.getStatus().isDone()) {
+    ...
+}
+</pre>
+ */
+public class TaskHandle {
+
+    /** the name of the task, null if not known */
+    private final String taskName;
+
+    /** when the task is expected to be executed, 0 if not known */
+    private final long etaMillis;
+
+    /** the ID of the task in the status store, null if not tracked */
+    private final String statusId;
+
+    private final TaskStatusStore statusStore;
+
+    public TaskHandle(String taskName, long etaMillis, String statusId, TaskStatusStore statusStore) {
+        this.taskName = taskName;
+        this.etaMillis = etaMillis;
+        this.statusId = statusId;
+        this.statusStore = statusStore;
+    }
+
+    /**
+     * @return the name of the task, as assigned by the queue. May be null if the queue does not report it.
+     */
+    public String getTaskName() {
+        return taskName;
+    }
+
+    /**
+     * @return when the task is expected to be executed, in milliseconds since the epoch. 0 if not known.
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    /**
+     * @return the ID of the task in the status store, null if not tracked
+     */
+    public String getStatusId() {
+        return statusId;
+    }
+
+    /**
+     * @return true if the status of the task is being recorded
+     */
+    public boolean isTracked() {
+        return statusId != null;
+    }
+
+    /**
+     * @return the last known status of the task
+     * @throws IllegalStateException if the task is not being tracked
+     */
+    public TaskStatus getStatus() {
+        Preconditions.checkState(isTracked(), "Task status is not being tracked");
+        return statusStore.get(statusId);
+    }
+
+    /**
+     * Wait until the last attempt to execute the task has finished
+     * @throws IllegalStateException if the task is not being tracked
+     * @throws TimeoutException if the task has not finished after waiting the provided time
+     */
+    public TaskStatus await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        Preconditions.checkState(isTracked(), "Task status is not being tracked");
+        return statusStore.await(statusId, timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return taskName == null? "unnamed task" : taskName;
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.queue4gae.queue;
+
+/**
+ * Wraps the execution of tasks, e.g. to measure time, set up ThreadLocal variables or the datastore
+ * namespace, or to classify errors. Interceptors are registered with the {@link QueueService} implementation
+ * and invoked in registration order.
+<pre>
+public class NamespaceInterceptor implements TaskInterceptor {
+
+    public boolean appliesTo(Class&lt;? extends Task&gt; taskClass) {
+        return TenantTask.class.isAssignableFrom(taskClass);
+    }
+
+    public void intercept(TaskInvocation invocation) {
+        String previous = NamespaceManager.get();
+        NamespaceManager.set(((TenantTask) invocation.getTask()).getTenant());
+        try {
+            invocation.proceed();
+        } finally {
+            NamespaceManager.set(previous);
+        }
+    }
+}
+</pre>
+ * @see TaskInterceptors
+ */
+public interface TaskInterceptor {
+
+    /**
+     * Invoked once per task class, the result is cached.
+     * @return true if this interceptor should wrap the execution of tasks of the provided class
+     */
+    boolean appliesTo(Class<? extends Task> taskClass);
+
+    /**
+     * Execute the task, or skip it by not invoking {@link TaskInvocation#proceed()}.
+     */
+    void intercept(TaskInvocation invocation);
+
+}
@@ -0,0 +1,95 @@
+package org.queue4gae.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The interceptors registered with a {@link QueueService}. The chain of interceptors that apply to each task class
+ * is calculated the first time the class is executed, and classes without interceptors are executed directly.
+ */
+public class TaskInterceptors {
+
+    /** the registered interceptors, in order */
+    private final List<TaskInterceptor> interceptors = new CopyOnWriteArrayList<TaskInterceptor>();
+
+    /** the interceptors that apply to each task class */
+    private final ConcurrentMap<Class<?>, TaskInterceptor[]> chains = new ConcurrentHashMap<Class<?>, TaskInterceptor[]>();
+
+    private static final TaskInterceptor[] EMPTY_CHAIN = new TaskInterceptor[0];
+
+    /**
+     * Add an interceptor at the end of the chain. Interceptors should be registered before executing any task.
+     */
+    public void add(TaskInterceptor interceptor) {
+        interceptors.add(interceptor);
+        chains.clear();
+    }
+
+    /**
+     * Execute the task wrapped by the interceptors that apply to its class
+     */
+    public void run(AbstractTask task, QueueService queueService) {
+        TaskInterceptor[] chain = getChain(task.getClass());
+        if (chain.length == 0) {
+            task.run(queueService);
+        } else {
+            new Invocation(chain, task, queueService).proceed();
+        }
+    }
+
+    private TaskInterceptor[] getChain(Class<? extends Task> taskClass) {
+        TaskInterceptor[] chain = chains.get(taskClass);
+        if (chain == null) {
+            List<TaskInterceptor> applicable = new ArrayList<TaskInterceptor>();
+            for (TaskInterceptor interceptor : interceptors) {
+                if (interceptor.appliesTo(taskClass)) {
+                    applicable.add(interceptor);
+                }
+            }
+            chain = applicable.isEmpty()? EMPTY_CHAIN : applicable.toArray(new TaskInterceptor[applicable.size()]);
+            chains.put(taskClass, chain);
+        }
+        return chain;
+    }
+
+    private static class Invocation implements TaskInvocation {
+
+        private final TaskInterceptor[] chain;
+
+        private final AbstractTask task;
+
+        private final QueueService queueService;
+
+        /** the position of the next interceptor to invoke */
+        private int position;
+
+        private Invocation(TaskInterceptor[] chain, AbstractTask task, QueueService queueService) {
+            this.chain = chain;
+            this.task = task;
+            this.queueService = queueService;
+        }
+
+        @Override
+        public Task getTask() {
+            return task;
+        }
+
+        @Override
+        public QueueService getQueueService() {
+            return queueService;
+        }
+
+        @Override
+        public void proceed() {
+            if (position < chain.length) {
+                chain[position++].intercept(this);
+            } else {
+                task.run(queueService);
+            }
+        }
+    }
+
+}
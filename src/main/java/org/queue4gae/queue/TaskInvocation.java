@@ -0,0 +1,23 @@
+package org.queue4gae.queue;
+
+/**
+ * The execution of a task, as seen by a {@link TaskInterceptor}
+ */
+public interface TaskInvocation {
+
+    /**
+     * @return the task being executed
+     */
+    Task getTask();
+
+    /**
+     * @return the QueueService executing the task
+     */
+    QueueService getQueueService();
+
+    /**
+     * Invoke the next interceptor, or the task itself if this is the last one
+     */
+    void proceed();
+
+}
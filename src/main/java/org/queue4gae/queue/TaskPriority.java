@@ -0,0 +1,20 @@
+package org.queue4gae.queue;
+
+/**
+ * The priority of a task within its queue.
+ * In production each priority may be mapped to a separate lane queue using
+ * {@link QueueOptions#withLane(TaskPriority, String)}. {@link org.queue4gae.queue.mock.MockAsyncQueueService}
+ * executes tasks with higher priority first.
+ */
+public enum TaskPriority {
+
+    /** latency-sensitive tasks, e.g. triggered by a user request */
+    HIGH,
+
+    /** the default priority */
+    NORMAL,
+
+    /** background tasks that can wait, e.g. large backfill batches */
+    LOW
+
+}
@@ -0,0 +1,72 @@
+package org.queue4gae.queue;
+
+/**
+ * The last known state of a posted task, as recorded in a {@link TaskStatusStore}
+ */
+public class TaskStatus {
+
+    public enum State {
+
+        /** the task has been posted and not started yet */
+        QUEUED,
+
+        /** an attempt to execute the task has started */
+        RUNNING,
+
+        /** the last attempt finished successfully */
+        SUCCEEDED,
+
+        /** the last attempt failed, and the task will be retried */
+        RETRYING,
+
+        /** the last attempt failed, and the task will not be retried */
+        FAILED
+    }
+
+    private final State state;
+
+    /** the number of times the task has been started */
+    private final int attempts;
+
+    /** when this status was recorded, in milliseconds since the epoch */
+    private final long updatedMillis;
+
+    /** the exception that caused the last failure, if any */
+    private final String error;
+
+    public TaskStatus(State state, int attempts, long updatedMillis, String error) {
+        this.state = state;
+        this.attempts = attempts;
+        this.updatedMillis = updatedMillis;
+        this.error = error;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the task has finished and will not be retried, either successfully or not
+     */
+    public boolean isDone() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return state + " (" + attempts + " attempts)" + (error == null? "" : ": " + error);
+    }
+
+}
@@ -0,0 +1,46 @@
+package org.queue4gae.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stores the status of posted tasks, so that producers can check when they finish.
+ * Implementations must be thread-safe.
+ * @see TaskHandle
+ */
+public interface TaskStatusStore {
+
+    /**
+     * Record that the tasks have been posted, with a single write if possible. Invoked after adding the tasks
+     * to the queue, so the status of tasks that already started must not be overwritten.
+     */
+    void queued(Collection<String> statusIds);
+
+    /**
+     * Record that an attempt to execute the task has started
+     * @param attempt the number of this attempt, starting at 1
+     */
+    void running(String statusId, int attempt);
+
+    /**
+     * Record that an attempt to execute the task has finished
+     * @param attempt the number of this attempt, starting at 1
+     * @param failure the exception thrown by the task, null if it finished successfully
+     * @param retried true if the task failed and will be retried
+     */
+    void finished(String statusId, int attempt, Throwable failure, boolean retried);
+
+    /**
+     * @return the last known status of the task, null if not found
+     */
+    TaskStatus get(String statusId);
+
+    /**
+     * Wait until the task has finished and will not be retried
+     * @return the status of the task
+     * @throws TimeoutException if the task has not finished after waiting the provided time
+     */
+    TaskStatus await(String statusId, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException;
+
+}
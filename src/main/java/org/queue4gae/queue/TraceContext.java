@@ -0,0 +1,60 @@
+package org.queue4gae.queue;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Trace metadata attached to a task when it is posted, to link its execution with the request or task
+ * that posted it.
+ * @see org.queue4gae.queue.trace.Tracer
+ */
+public class TraceContext {
+
+    /** the ID of the trace, shared by all spans of the same request */
+    @JsonProperty
+    private String traceId;
+
+    /** the ID of the span that posted the task */
+    @JsonProperty
+    private String spanId;
+
+    /** the name of the span that posted the task, e.g. the class of the producer task */
+    @JsonProperty
+    private String producer;
+
+    /** when the task was posted, in milliseconds since the epoch */
+    @JsonProperty
+    private long enqueuedMillis;
+
+    private TraceContext() {
+        // for jackson
+    }
+
+    public TraceContext(String traceId, String spanId, String producer, long enqueuedMillis) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.producer = producer;
+        this.enqueuedMillis = enqueuedMillis;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getProducer() {
+        return producer;
+    }
+
+    public long getEnqueuedMillis() {
+        return enqueuedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return traceId + "/" + spanId;
+    }
+
+}
@@ -1,25 +1,40 @@
 package org.queue4gae.queue.mock;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.CursorTask;
+import org.queue4gae.queue.StreamTask;
 import org.queue4gae.queue.InjectionService;
 import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.QueueServiceImpl;
+import org.queue4gae.queue.RecurringTask;
+import org.queue4gae.queue.StatusTrackingInterceptor;
 import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInterceptors;
+import org.queue4gae.queue.TaskStatusStore;
+import org.queue4gae.queue.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueServiceImpl> implements QueueService {
 
@@ -38,8 +53,52 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
     /** count of completed tasks */
     private Multiset<String> completedTaskCount = ConcurrentHashMultiset.create();
 
+    /** the time source used to schedule delayed tasks and passed to executed tasks */
+    private Ticker ticker = Ticker.systemTicker();
+
+    /** the wall clock time when the ticker was set, used to translate task ETAs into ticker time */
+    private long epochMillis = System.currentTimeMillis();
+
+    /** the value of the ticker at {@link #epochMillis} */
+    private long epochNanos = ticker.read();
+
+    /** the time returned by {@link #currentTimeMillis()}, in nanoseconds */
+    private final Ticker clock = new Ticker() {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(currentTimeMillis());
+        }
+    };
+
+    /** the time when each delayed task is due, according to the ticker. Weak keys are compared by identity */
+    private final ConcurrentMap<Task, Long> dueTimes = new MapMaker().weakKeys().makeMap();
+
+    /** sorts tasks by due time. Tasks that are not delayed go first */
+    private final Comparator<Task> dueTimeComparator = new Comparator<Task>() {
+        @Override
+        public int compare(Task t1, Task t2) {
+            return Long.compare(getDueTime(t1), getDueTime(t2));
+        }
+    };
+
+    /** the due time of each task, when it is added to a {@link TaskIndex} */
+    private final Function<Task, Long> dueTimeFunction = new Function<Task, Long>() {
+        @Override
+        public Long apply(Task task) {
+            return getDueTime(task);
+        }
+    };
+
+    /** selects the delayed tasks that are due according to the ticker */
+    private final Predicate<Task> dueTasks = new Predicate<Task>() {
+        @Override
+        public boolean apply(Task task) {
+            return getDueTime(task) <= ticker.read();
+        }
+    };
+
     /** delayed tasks */
-    private Queue<Task> delayedTasks = new PriorityBlockingQueue<Task>(100, new DelayedTaskComparator());
+    private final TaskIndex delayedTasks = newTaskIndex();
 
     /** if not null, applies this delay to all queued tasks */
     protected Integer delaySeconds;
@@ -47,6 +106,51 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
     /** the number of times a task will be retried, by default 0 (any exception will fail the test) */
     protected int retries = 0;
 
+    /** when to check that tasks can be serialized as JSON */
+    private ValidationMode validationMode = ValidationMode.ALWAYS;
+
+    /** task classes that have been serialized at least once */
+    private Set<Class<?>> validatedClasses = Sets.newConcurrentHashSet();
+
+    /** number of threads used to execute each wave of tasks, 1 to execute them in the current thread */
+    private int parallelism = 1;
+
+    /** used to shuffle each wave of tasks when executing them in parallel */
+    private Random random = new Random();
+
+    /** the wave slot being executed by the current thread, if any */
+    private final ThreadLocal<WaveSlot> currentSlot = new ThreadLocal<WaveSlot>();
+
+    /** if not null, task executions are recorded here */
+    private volatile ScheduleLog scheduleLog;
+
+    /** true to assign an ordinal to each posted task */
+    private volatile boolean trackingOrdinals;
+
+    /** the ordinal of each posted task. Weak keys are compared by identity */
+    private final ConcurrentMap<Task, Integer> ordinals = new MapMaker().weakKeys().makeMap();
+
+    /** the ordinal to assign to the next posted task */
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    /** interceptors that wrap the execution of tasks */
+    private final TaskInterceptors interceptors = new TaskInterceptors();
+
+    /** the status of tracked tasks */
+    private final InMemoryTaskStatusStore statusStore = new InMemoryTaskStatusStore();
+
+    /** true to track the status of all posted tasks, not only those posted with {@link AbstractTask#withStatusTracking()} */
+    private volatile boolean statusTracking;
+
+    /** true after registering the interceptor that records the status of tracked tasks */
+    private final AtomicBoolean statusInterceptorAdded = new AtomicBoolean();
+
+    /** if not null, attaches trace metadata to posted tasks */
+    private volatile Tracer tracer;
+
+    /** if not null, will be notified about posted and completed tasks */
+    private volatile TaskListener taskListener;
+
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
     /**
@@ -78,28 +182,81 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
     }
 
     /**
-     * Serializes, deserializes and executes the task
+     * Post each task. Like the Task Queue Service, if a task name is already in use the rest of tasks are still
+     * posted, and the exception is thrown at the end.
+     */
+    @Override
+    public void postAll(Iterable<? extends Task> tasks) {
+        TaskAlreadyExistsException duplicate = null;
+        for (Task task : tasks) {
+            try {
+                post(task);
+            } catch (TaskAlreadyExistsException e) {
+                duplicate = e;
+            }
+        }
+        if (duplicate != null) {
+            throw duplicate;
+        }
+    }
+
+    /**
+     * Serializes, deserializes and executes the task, according to the configured {@link ValidationMode}
      */
     public void run(Task task) {
+        AbstractTask executed = prepare(task);
+        setupTask(task);
+        ScheduleLog schedule = scheduleLog;
+        ScheduleLog.Entry entry = schedule == null? null : schedule.start(getOrdinal(task), task.getClass().getName());
+        try {
+            interceptors.run(executed, this);
+            incCompletedTaskCount(task.getQueueName());
+            TaskListener listener = taskListener;
+            if (listener != null) {
+                listener.taskCompleted(task);
+            }
+        } catch (RuntimeException e) {
+            if (entry != null) {
+                entry.failed(e);
+            }
+            throw e;
+        } finally {
+            teardownTask(task);
+        }
+    }
+
+    /**
+     * Inject the task and validate that it can be serialized as JSON
+     * @return the instance to execute
+     */
+    private AbstractTask prepare(Task task) {
         try {
             // inject before serializing, to check that all fields are serializable as JSON
             injectionService.injectMembers(task);
 
-            String s = objectMapper.writeValueAsString(task);
-            log.info("Executing " + s);
-
-            // inject after deserializing, for proper execution
-            AbstractTask deserialized = objectMapper.readValue(s, AbstractTask.class);
-            injectionService.injectMembers(deserialized);
-            setupTask(task);
+            AbstractTask executed = (AbstractTask) task;
+            if (validationMode == ValidationMode.ALWAYS
+                    || (validationMode == ValidationMode.FIRST_PER_CLASS && validatedClasses.add(task.getClass()))) {
+                String s = objectMapper.writeValueAsString(task);
+                if (log.isDebugEnabled()) {
+                    log.debug("Executing " + s);
+                }
 
-            try {
-                ((AbstractTask)deserialized).run(this);
-                incCompletedTaskCount(task.getQueueName());
-            } finally {
-                teardownTask(task);
+                // inject after deserializing, for proper execution
+                executed = objectMapper.readValue(s, AbstractTask.class);
+                executed.setExecutionCount(((AbstractTask) task).getExecutionCount());
+                injectionService.injectMembers(executed);
+            } else if (log.isDebugEnabled()) {
+                log.debug("Executing " + task.getClass().getName());
             }
-
+            if (executed instanceof CursorTask) {
+                ((CursorTask) executed).withTicker(ticker);
+            } else if (executed instanceof StreamTask) {
+                ((StreamTask) executed).withTicker(ticker);
+            } else if (executed instanceof RecurringTask) {
+                ((RecurringTask) executed).withClock(clock);
+            }
+            return executed;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -109,6 +266,36 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
         queuedTaskCount.add(queueNameOrDefault(queueName));
     }
 
+    /**
+     * Notify that a task has been accepted for execution. Must be invoked before the task is made available
+     * to be executed.
+     * @return the handle to return from post()
+     */
+    protected TaskHandle taskPosted(Task task) {
+        Tracer tracer = this.tracer;
+        if (tracer != null) {
+            tracer.attach(task);
+        }
+        AbstractTask abstractTask = (AbstractTask) task;
+        String statusId = null;
+        if (statusTracking || abstractTask.isStatusTracking()) {
+            addStatusInterceptor();
+            statusId = UUID.randomUUID().toString();
+            statusStore.queued(Collections.singleton(statusId));
+        }
+        // tasks that post themselves again get a new status
+        abstractTask.setStatusId(statusId);
+        if (trackingOrdinals) {
+            ordinals.put(task, nextOrdinal.getAndIncrement());
+        }
+        TaskListener listener = taskListener;
+        if (listener != null) {
+            listener.taskPosted(task);
+        }
+        long etaMillis = task.getEtaMillis() != 0? task.getEtaMillis() : currentTimeMillis() + task.getDelaySeconds() * 1000L;
+        return new TaskHandle(task.getTaskName(), etaMillis, statusId, statusStore);
+    }
+
     private String queueNameOrDefault(String queueName) {
         return queueName == null? DEFAULT_QUEUE_NAME : queueName;
     }
@@ -162,10 +349,114 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
         this.injectionService = injectionService;
     }
 
+    /**
+     * @return the order in which the task was posted, starting at 0. Only available if a schedule is being
+     * recorded or replayed, otherwise returns -1.
+     */
+    protected int getOrdinal(Task task) {
+        Integer ordinal = ordinals.get(task);
+        return ordinal == null? -1 : ordinal;
+    }
+
+    /**
+     * Notify that a posted task has been replaced by a copy deserialized from JSON, e.g. after being spilled
+     * to disk. State kept by identity for the original task is moved to the copy.
+     * @param ordinal the ordinal of the original task
+     * @param postNanos the value of {@link System#nanoTime()} when the original task was posted
+     */
+    void taskReloaded(Task copy, int ordinal, long postNanos) {
+        if (ordinal >= 0) {
+            ordinals.put(copy, ordinal);
+        }
+        TaskListener listener = taskListener;
+        if (listener != null) {
+            listener.taskReloaded(copy, postNanos);
+        }
+    }
+
+    /**
+     * @return the task serialized as JSON
+     */
+    String toJson(Task task) throws IOException {
+        return objectMapper.writeValueAsString(task);
+    }
+
+    /**
+     * @return a task deserialized from JSON
+     */
+    Task fromJson(String json) throws IOException {
+        return objectMapper.readValue(json, AbstractTask.class);
+    }
+
+    /**
+     * Start assigning ordinals to posted tasks
+     */
+    protected void trackOrdinals() {
+        this.trackingOrdinals = true;
+    }
+
+    /**
+     * @return the executions recorded since {@link #withScheduleRecording()} was invoked, null if not enabled
+     */
+    public ScheduleLog getScheduleLog() {
+        return scheduleLog;
+    }
+
+    void setTaskListener(TaskListener taskListener) {
+        this.taskListener = taskListener;
+    }
+
     protected void pushDelayedTask(Task task) {
+        long dueTime = task.getEtaMillis() != 0?
+                epochNanos + TimeUnit.MILLISECONDS.toNanos(task.getEtaMillis() - epochMillis) :
+                ticker.read() + TimeUnit.SECONDS.toNanos(task.getDelaySeconds());
+        dueTimes.put(task, dueTime);
         delayedTasks.add(task);
     }
 
+    /**
+     * @return true if the task should wait in the delayed queue: it has a positive delay, or an ETA
+     * in the future according to {@link #currentTimeMillis()}
+     */
+    protected boolean isDelayed(Task task) {
+        return task.getEtaMillis() != 0? task.getEtaMillis() > currentTimeMillis() : task.getDelaySeconds() > 0;
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch, as measured by the configured ticker. With
+     * a {@link VirtualTicker} this time advances only when the ticker does.
+     */
+    public long currentTimeMillis() {
+        return epochMillis + TimeUnit.NANOSECONDS.toMillis(ticker.read() - epochNanos);
+    }
+
+    /**
+     * Remove all delayed tasks without executing them
+     * @return the removed tasks, sorted by due time
+     */
+    protected List<Task> removeDelayedTasks() {
+        List<Task> tasks = new ArrayList<Task>();
+        for (Task task = delayedTasks.poll(); task != null; task = delayedTasks.poll()) {
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * @return the time when the task is due according to the ticker, or Long.MIN_VALUE if it is not a delayed task
+     */
+    private long getDueTime(Task task) {
+        Long dueTime = dueTimes.get(task);
+        return dueTime == null? Long.MIN_VALUE : dueTime;
+    }
+
+    /**
+     * @return an empty queue of tasks sorted by due time, indexed to find tasks using a {@link TaskFilter}
+     */
+    protected TaskIndex newTaskIndex() {
+        return new TaskIndex(dueTimeFunction);
+    }
+
     /**
      * Execute delayed tasks
      */
@@ -177,40 +468,220 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
      * Execute delayed tasks of the given type
      */
     public void runDelayedTasks(Class<? extends Task> taskClass) {
-        log.info("Running delayed tasks...");
-        serializeExecutionOfTasks(delayedTasks, taskClass);
+        runTasks(new TaskFilter().withTaskClass(taskClass));
+    }
+
+    /**
+     * Execute the delayed tasks that match the filter regardless of their due time, including matching
+     * delayed tasks posted meanwhile.
+     */
+    public void runTasks(TaskFilter filter) {
+        log.info("Running delayed tasks " + filter + "...");
+        executeWaves(delayedTasks, filter);
+    }
+
+    /**
+     * Execute the delayed tasks of a queue, class and tag regardless of their due time.
+     * @param queueName the queue name, null for any queue
+     * @param taskClass the task class, including subclasses
+     * @param tag the tag, null for any tag
+     */
+    public void runTasks(String queueName, Class<? extends Task> taskClass, String tag) {
+        runTasks(new TaskFilter().withQueueName(queueName).withTaskClass(taskClass).withTag(tag));
+    }
+
+    /**
+     * @return the tasks that have been posted but not executed yet, without executing them. Tasks waiting for
+     * execution go first, followed by delayed tasks sorted by due time.
+     */
+    public List<Task> getPendingTasks() {
+        return getPendingTasks(new TaskFilter());
+    }
+
+    /**
+     * @return the tasks that match the filter and have been posted but not executed yet, without executing them.
+     * Tasks waiting for execution go first, followed by delayed tasks sorted by due time.
+     */
+    public List<Task> getPendingTasks(TaskFilter filter) {
+        List<Task> pending = new ArrayList<Task>(getReadyTasks(filter));
+        pending.addAll(delayedTasks.find(filter));
+        return pending;
+    }
+
+    /**
+     * @return the tasks that match the filter and are waiting for execution, excluding delayed tasks
+     */
+    protected List<Task> getReadyTasks(TaskFilter filter) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the tasks in the collection that match the filter, using the index if available
+     */
+    protected List<Task> findTasks(Collection<Task> tasks, TaskFilter filter) {
+        if (tasks instanceof TaskIndex) {
+            return ((TaskIndex) tasks).find(filter);
+        }
+        List<Task> found = new ArrayList<Task>();
+        for (Task task : tasks) {
+            if (filter.apply(task)) {
+                found.add(task);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Execute the delayed tasks that are due according to the configured ticker, including delayed tasks
+     * posted meanwhile that are also due.
+     * @see #withTicker(Ticker)
+     */
+    public void runDueDelayedTasks() {
+        log.info("Running due delayed tasks...");
+        executeWaves(delayedTasks, dueTasks);
     }
 
     /**
      * Serialize the execution of all tasks in the queue. If one tasks create a new task, it will be executed too.
+     * Tasks are executed in waves: each wave is taken from the collection in a single pass, and tasks posted
+     * while a wave is executing will be part of the next one.
+     * If parallel execution is enabled, the tasks of each wave will be executed concurrently.
      * This method will return when the tasks list is empty
      * @param tasks
      */
     public void serializeExecutionOfTasks(Collection<Task> tasks, Class<? extends Task> taskClass) {
-        int tasksRun = 1;
-        while (tasksRun > 0) {
-            tasksRun = 0;
+        executeWaves(tasks, new TaskFilter().withTaskClass(taskClass));
+    }
+
+    /**
+     * Execute in waves all tasks in the collection that match the predicate, including new tasks posted meanwhile
+     */
+    private void executeWaves(Collection<Task> tasks, Predicate<? super Task> predicate) {
+        ExecutorService executor = null;
+        try {
+            for (List<Task> wave = nextWave(tasks, predicate); !wave.isEmpty(); wave = nextWave(tasks, predicate)) {
+                if (parallelism > 1 && wave.size() > 1) {
+                    if (executor == null) {
+                        executor = Executors.newFixedThreadPool(parallelism, ThreadManager.currentRequestThreadFactory());
+                    }
+                    runParallelWave(executor, tasks, wave);
+                } else {
+                    runSequentialWave(tasks, wave);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Remove from the collection all tasks that match the predicate, in a single pass.
+     * @return the tasks removed, sorted by due time
+     */
+    private List<Task> nextWave(Collection<Task> tasks, Predicate<? super Task> predicate) {
+        List<Task> wave = new ArrayList<Task>();
+        if (tasks instanceof TaskIndex && predicate instanceof TaskFilter) {
+            // already sorted
+            return ((TaskIndex) tasks).removeMatching((TaskFilter) predicate);
+        } else if (tasks instanceof TaskIndex && predicate == dueTasks) {
+            // use the due time of each entry, in case the task was posted again with a different delay
+            return ((TaskIndex) tasks).removeUntil(ticker.read());
+        } else if (predicate instanceof TaskFilter && ((TaskFilter) predicate).isEmpty() && tasks instanceof BlockingQueue) {
+            ((BlockingQueue<Task>) tasks).drainTo(wave);
+        } else {
             for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
-                int attempts = 0;
                 Task t = it.next();
-                while (true) {
-                    try {
-                        if (taskClass.isAssignableFrom(t.getClass())) {
-                            tasksRun++;
-                            run(t);
-                            it.remove();
-                        }
-                        break;
-                    } catch (RuntimeException e) {
-                        if (attempts++ >= retries) {
-                            throw e;
-                        }
-                        log.error(e.toString(), e);
-                        log.info("Retrying " + attempts + " of " + retries);
-                    }
+                if (predicate.apply(t)) {
+                    wave.add(t);
+                    it.remove();
                 }
             }
         }
+        // stable sort, tasks with the same due time keep their order
+        Collections.sort(wave, dueTimeComparator);
+        return wave;
+    }
+
+    private void runSequentialWave(Collection<Task> tasks, List<Task> wave) {
+        for (int i = 0; i < wave.size(); i++) {
+            try {
+                runWithRetries(wave.get(i));
+            } catch (RuntimeException e) {
+                // return the pending tasks to the queue
+                tasks.addAll(wave.subList(i, wave.size()));
+                throw e;
+            }
+        }
+    }
+
+    private void runParallelWave(ExecutorService executor, Collection<Task> tasks, List<Task> wave) {
+        Collections.shuffle(wave, random);
+        List<WaveSlot> slots = new ArrayList<WaveSlot>(wave.size());
+        for (Task task : wave) {
+            slots.add(new WaveSlot(tasks, task));
+        }
+        try {
+            executor.invokeAll(slots);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        // tasks posted during this wave are queued in a fixed order, regardless of thread scheduling
+        RuntimeException failure = null;
+        for (WaveSlot slot : slots) {
+            tasks.addAll(slot.posted);
+            if (slot.failure != null) {
+                tasks.add(slot.task);
+                if (failure == null) {
+                    failure = slot.failure;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param attempt the number of the attempt that failed, starting at 1
+     * @return true if a failed task will be executed again
+     * @see #withRetries(int)
+     */
+    protected boolean isRetried(Task task, int attempt) {
+        return attempt <= retries;
+    }
+
+    private void runWithRetries(Task task) {
+        int attempts = 0;
+        while (true) {
+            try {
+                ((AbstractTask) task).setExecutionCount(attempts);
+                run(task);
+                return;
+            } catch (RuntimeException e) {
+                if (attempts++ >= retries) {
+                    throw e;
+                }
+                log.error(e.toString(), e);
+                log.info("Retrying " + attempts + " of " + retries);
+            }
+        }
+    }
+
+    /**
+     * If the current thread is executing a parallel wave of tasks taken from the provided collection, keep
+     * the task to be added to the collection when the wave finishes.
+     * @return true if the task has been kept for the next wave, false otherwise
+     */
+    protected boolean deferToNextWave(Collection<Task> tasks, Task task) {
+        WaveSlot slot = currentSlot.get();
+        if (slot != null && slot.tasks == tasks) {
+            slot.posted.add(task);
+            return true;
+        }
+        return false;
     }
 
     public T withDelaySeconds(Integer delaySeconds) {
@@ -223,4 +694,137 @@ public abstract class AbstractMockQueueServiceImpl <T extends AbstractMockQueueS
         return (T) this;
     }
 
+    /**
+     * Record the execution order of tasks, the thread that executes them and the failures.
+     * Should be invoked before posting any task.
+     * @see #getScheduleLog()
+     */
+    public T withScheduleRecording() {
+        trackOrdinals();
+        this.scheduleLog = new ScheduleLog();
+        return (T) this;
+    }
+
+    /**
+     * Set the time source used to schedule delayed tasks, to check timeouts in {@link CursorTask} and {@link StreamTask}
+     * and to calculate the slots of {@link RecurringTask}.
+     * Default is the system ticker.
+     * @see VirtualTicker
+     */
+    public T withTicker(Ticker ticker) {
+        this.epochMillis = System.currentTimeMillis();
+        this.epochNanos = ticker.read();
+        this.ticker = ticker;
+        return (T) this;
+    }
+
+    /**
+     * Wrap the execution of tasks with an interceptor, including tasks executed by other tasks.
+     * Should be invoked before posting any task.
+     */
+    public T withInterceptor(TaskInterceptor interceptor) {
+        interceptors.add(interceptor);
+        return (T) this;
+    }
+
+    /**
+     * Track the status of all posted tasks in memory, so that it can be checked using the {@link TaskHandle}
+     * returned by post(). By default only tasks posted with {@link AbstractTask#withStatusTracking()} are tracked.
+     * @see #clearTaskStatus()
+     */
+    public T withStatusTracking() {
+        this.statusTracking = true;
+        addStatusInterceptor();
+        return (T) this;
+    }
+
+    /**
+     * Register the interceptor that records the status of tracked tasks, the first time a task is tracked
+     */
+    private void addStatusInterceptor() {
+        if (statusInterceptorAdded.compareAndSet(false, true)) {
+            interceptors.add(new StatusTrackingInterceptor(statusStore) {
+                @Override
+                protected boolean isRetried(Task task, int attempt) {
+                    return AbstractMockQueueServiceImpl.this.isRetried(task, attempt);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forget the status of all tracked tasks. Handles of tasks posted before will not find their status.
+     */
+    public void clearTaskStatus() {
+        statusStore.clear();
+    }
+
+    /**
+     * Attach trace metadata to posted tasks and record a span for each executed task, like {@link QueueServiceImpl}.
+     * Should be invoked before posting any task.
+     */
+    public T withTracer(Tracer tracer) {
+        this.tracer = tracer;
+        interceptors.add(tracer);
+        return (T) this;
+    }
+
+    /**
+     * Execute the tasks of each wave concurrently in {@link #serializeExecutionOfTasks}.
+     * Tasks in a wave are submitted in a random order, generated using the provided seed. The same seed will
+     * produce the same waves in the same order.
+     * @param threads the maximum number of tasks to execute at the same time. 1 disables parallel execution.
+     * @param seed the seed used to shuffle each wave
+     */
+    public T withParallelExecution(int threads, long seed) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        this.parallelism = threads;
+        this.random = new Random(seed);
+        return (T) this;
+    }
+
+    /**
+     * Set when tasks should be serialized and deserialized before execution. Skipping the JSON round trip
+     * speeds up large test suites, but tasks are then executed with the same instance that was posted.
+     */
+    public T withValidationMode(ValidationMode validationMode) {
+        this.validationMode = validationMode;
+        return (T) this;
+    }
+
+    /**
+     * The execution of one task that is part of a parallel wave
+     */
+    private class WaveSlot implements Callable<Void> {
+
+        /** the collection the task was taken from */
+        private final Collection<Task> tasks;
+
+        private final Task task;
+
+        /** tasks posted by this task for the collection it was taken from */
+        private final List<Task> posted = new ArrayList<Task>();
+
+        /** the exception thrown by the task, if any */
+        private RuntimeException failure;
+
+        private WaveSlot(Collection<Task> tasks, Task task) {
+            this.tasks = tasks;
+            this.task = task;
+        }
+
+        @Override
+        public Void call() {
+            currentSlot.set(this);
+            try {
+                runWithRetries(task);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                currentSlot.remove();
+            }
+            return null;
+        }
+    }
+
 }
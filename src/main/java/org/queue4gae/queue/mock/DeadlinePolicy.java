@@ -0,0 +1,17 @@
+package org.queue4gae.queue.mock;
+
+/**
+ * What {@link DeadlineWatchdog} does when a task runs past its deadline.
+ */
+public enum DeadlinePolicy {
+
+    /** Log a warning with the stack trace of the task, and let it finish */
+    REPORT,
+
+    /**
+     * Log a warning and interrupt the thread executing the task. When the task returns, it fails with a
+     * {@link com.google.apphosting.api.DeadlineExceededException} like it would in production.
+     */
+    INTERRUPT
+
+}
@@ -0,0 +1,235 @@
+package org.queue4gae.queue.mock;
+
+import com.google.apphosting.api.DeadlineExceededException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.queue4gae.queue.CursorTask;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the request deadline of the Task Queue Service in the mock queue services. Production kills a task
+ * that runs for more than 10 minutes, but mocks would let it run forever, hiding e.g. {@link CursorTask}
+ * implementations that ignore {@link CursorTask#queryTimeOut()}. This interceptor reports or interrupts
+ * tasks that run past their deadline, and records the execution time of each task class.
+<pre>
+DeadlineWatchdog watchdog = new DeadlineWatchdog()
+    .withDeadline(ReindexTask.class, 30, TimeUnit.SECONDS)
+    .withPolicy(DeadlinePolicy.INTERRUPT);
+queueService.withInterceptor(watchdog);
+...
+assertEquals(0, watchdog.getOverrunCount());
+log.info("ReindexTask: " + watchdog.getTimings(ReindexTask.class));
+</pre>
+ * Execution times are measured in milliseconds of real time. Tasks executed by other tasks are measured separately,
+ * but their time is also included in the task that executed them.
+ */
+public class DeadlineWatchdog implements TaskInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadlineWatchdog.class);
+
+    /** the deadline of tasks without a specific deadline, in milliseconds */
+    private long defaultDeadlineMillis = CursorTask.QUEUE_TIMEOUT;
+
+    /** deadlines of specific task classes, in milliseconds */
+    private final Map<Class<? extends Task>, Long> deadlines = new ConcurrentHashMap<Class<? extends Task>, Long>();
+
+    private DeadlinePolicy policy = DeadlinePolicy.REPORT;
+
+    /** execution times of each task class, in milliseconds */
+    private final ConcurrentMap<Class<? extends Task>, TimingStatistics> timings = new ConcurrentHashMap<Class<? extends Task>, TimingStatistics>();
+
+    /** number of tasks that ran past their deadline, by class name */
+    private final Multiset<String> overruns = ConcurrentHashMultiset.create();
+
+    /** checks running tasks when they reach their deadline. Shared by all instances, so none has to be shut down */
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    /**
+     * Set the deadline of all tasks without a specific deadline. Default is 10 minutes.
+     */
+    public DeadlineWatchdog withDeadline(long deadline, TimeUnit unit) {
+        Preconditions.checkArgument(deadline > 0, "deadline must be positive");
+        this.defaultDeadlineMillis = unit.toMillis(deadline);
+        return this;
+    }
+
+    /**
+     * Set the deadline of a task class, e.g. to make tests fail faster than 10 minutes
+     */
+    public DeadlineWatchdog withDeadline(Class<? extends Task> taskClass, long deadline, TimeUnit unit) {
+        Preconditions.checkArgument(deadline > 0, "deadline must be positive");
+        deadlines.put(taskClass, unit.toMillis(deadline));
+        return this;
+    }
+
+    /**
+     * Set what to do with tasks that run past their deadline. Default is {@link DeadlinePolicy#REPORT}.
+     */
+    public DeadlineWatchdog withPolicy(DeadlinePolicy policy) {
+        this.policy = Preconditions.checkNotNull(policy);
+        return this;
+    }
+
+    @Override
+    public boolean appliesTo(Class<? extends Task> taskClass) {
+        return true;
+    }
+
+    @Override
+    public void intercept(TaskInvocation invocation) {
+        Class<? extends Task> taskClass = invocation.getTask().getClass();
+        long deadline = getDeadlineMillis(taskClass);
+        Execution execution = new Execution(taskClass, deadline, Thread.currentThread());
+        Stopwatch watch = Stopwatch.createStarted();
+        RuntimeException failure = null;
+        boolean interrupted;
+        ScheduledFuture<?> check = scheduler.schedule(execution, deadline, TimeUnit.MILLISECONDS);
+        try {
+            invocation.proceed();
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            check.cancel(false);
+            interrupted = execution.finish();
+            getTimings(taskClass).add(watch.elapsed(TimeUnit.MILLISECONDS));
+        }
+        if (interrupted) {
+            DeadlineExceededException e = new DeadlineExceededException(taskClass.getName() + " exceeded its deadline of " + deadline + " ms");
+            if (failure != null) {
+                e.initCause(failure);
+            }
+            throw e;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the execution times of a task class in milliseconds, including executions that failed
+     */
+    public TimingStatistics getTimings(Class<? extends Task> taskClass) {
+        TimingStatistics statistics = timings.get(taskClass);
+        if (statistics == null) {
+            TimingStatistics created = new TimingStatistics();
+            statistics = timings.putIfAbsent(taskClass, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @return the execution times of all task classes executed so far, in milliseconds
+     */
+    public Map<Class<? extends Task>, TimingStatistics> getTimings() {
+        return ImmutableMap.copyOf(timings);
+    }
+
+    /**
+     * @return the number of tasks that ran past their deadline
+     */
+    public int getOverrunCount() {
+        return overruns.size();
+    }
+
+    /**
+     * @return the number of tasks of a class that ran past their deadline
+     */
+    public int getOverrunCount(Class<? extends Task> taskClass) {
+        return overruns.count(taskClass.getName());
+    }
+
+    /**
+     * @return the number of deadline checks of running tasks, in all instances
+     */
+    static int getPendingCheckCount() {
+        return scheduler.getQueue().size();
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("queue4gae-watchdog").setDaemon(true).build());
+        // most tasks finish long before their deadline, do not keep their checks until then
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private long getDeadlineMillis(Class<? extends Task> taskClass) {
+        Long deadline = deadlines.get(taskClass);
+        return deadline == null? defaultDeadlineMillis : deadline;
+    }
+
+    /**
+     * A running task, checked when it reaches its deadline
+     */
+    private class Execution implements Runnable {
+
+        private final Class<? extends Task> taskClass;
+
+        private final long deadlineMillis;
+
+        private final Thread thread;
+
+        /** true once the task has returned. Guarded by this */
+        private boolean finished;
+
+        /** true if the thread was interrupted because of the deadline. Guarded by this */
+        private boolean interrupted;
+
+        private Execution(Class<? extends Task> taskClass, long deadlineMillis, Thread thread) {
+            this.taskClass = taskClass;
+            this.deadlineMillis = deadlineMillis;
+            this.thread = thread;
+        }
+
+        /**
+         * Invoked by the scheduler at the deadline
+         */
+        @Override
+        public synchronized void run() {
+            if (finished) {
+                return;
+            }
+            overruns.add(taskClass.getName());
+            Exception trace = new Exception("Stack trace of " + thread.getName());
+            trace.setStackTrace(thread.getStackTrace());
+            log.warn(taskClass.getName() + " is still running after its deadline of " + deadlineMillis + " ms" +
+                    (policy == DeadlinePolicy.INTERRUPT? ", interrupting it" : ""), trace);
+            if (policy == DeadlinePolicy.INTERRUPT) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Mark the task as finished, clearing the interruption caused by the deadline
+         * @return true if the task was interrupted because of the deadline
+         */
+        private synchronized boolean finish() {
+            finished = true;
+            if (interrupted) {
+                // the task may not have checked the interrupted flag, leave the thread ready for the next task
+                Thread.interrupted();
+            }
+            return interrupted;
+        }
+    }
+
+}
@@ -6,7 +6,9 @@ import java.util.Comparator;
 
 /**
  * Used to sort tasks acording to the specified delay
+ * @deprecated the mock queue services sort delayed tasks by due time, which also considers when each task was posted
  */
+@Deprecated
 public class DelayedTaskComparator implements Comparator<Task> {
 
     @Override
@@ -0,0 +1,543 @@
+package org.queue4gae.queue.mock;
+
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.CursorTask;
+import org.queue4gae.queue.InjectionService;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInterceptors;
+import org.queue4gae.queue.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A queue service that stores tasks as files in a local directory, so that several JVMs running on the same
+ * machine can post and consume tasks from the same named queues. Intended for integration tests of horizontally
+ * scaled workers, without the real Task Queue Service.
+ *
+ * Each task is a JSON file in {@code queues/{queue name}/ready}. A consumer claims a task by moving its file to
+ * {@code leased} with an atomic rename, so each attempt is executed by exactly one consumer. If the consumer does not
+ * complete the task before the lease expires (e.g. because its JVM died) the attempt counts as failed.
+ * Tasks that fail are retried with a delay until they reach the maximum number of attempts, and then are
+ * moved to {@code failed}. Task names are reserved by creating a file in {@code names}.
+<pre>
+queue = new FileSystemQueueService(new File("/tmp/queue4gae"), 4)
+    .withLease(1, TimeUnit.MINUTES);
+queue.setInjectionService(injectionService);
+queue.setObjectMapper(objectMapper);
+queue.start();
+</pre>
+ */
+public class FileSystemQueueService implements QueueService {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSystemQueueService.class);
+
+    /** prefix of the names of consumer threads */
+    static final String CONSUMER_THREAD_NAME = "queue4gae-fs-consumer-";
+
+    private static final String READY = "ready";
+
+    private static final String LEASED = "leased";
+
+    private static final String FAILED = "failed";
+
+    /** the time to wait for consumer threads to exit when stopping, in milliseconds */
+    private static final int STOP_TIMEOUT = 5000;
+
+    private ObjectMapper objectMapper;
+
+    private InjectionService injectionService;
+
+    /** interceptors that wrap the execution of tasks */
+    private final TaskInterceptors interceptors = new TaskInterceptors();
+
+    /** if not null, attaches trace metadata to posted tasks */
+    private volatile Tracer tracer;
+
+    /** the directory that contains queues, task names and temporary files */
+    private final Path root;
+
+    /** number of consumer threads to span */
+    private final int numThreads;
+
+    /** true to run consumers on virtual threads, if supported by the JVM */
+    private boolean virtualThreads;
+
+    /** the time a consumer has to execute a task before it is made available to other consumers */
+    private long leaseMillis = CursorTask.QUEUE_TIMEOUT;
+
+    /** the time to wait when there are no tasks to execute */
+    private long pollIntervalMillis = 50;
+
+    /** the maximum number of times a task will be executed */
+    private int maxAttempts = 5;
+
+    /** the delay before retrying a failed task, multiplied by the number of attempts */
+    private long retryDelayMillis = 1000;
+
+    private volatile ExecutorService executorService;
+
+    /** number of tasks completed by this instance */
+    private final AtomicInteger completedTaskCount = new AtomicInteger();
+
+    public FileSystemQueueService(File root) {
+        this(root, 2);
+    }
+
+    public FileSystemQueueService(File root, int numThreads) {
+        this.root = root.toPath();
+        this.numThreads = numThreads;
+        try {
+            Files.createDirectories(this.root.resolve("queues"));
+            Files.createDirectories(this.root.resolve("names"));
+            Files.createDirectories(this.root.resolve("tmp"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Start the consumer threads of this instance. Tasks can be posted without starting the consumers.
+     */
+    public synchronized void start() {
+        Preconditions.checkState(executorService == null, "Already started");
+        executorService = Executors.newFixedThreadPool(numThreads, VirtualThreads.consumerThreadFactory(virtualThreads));
+        for (int i = 0; i < numThreads; i++) {
+            executorService.execute(new Consumer(i));
+        }
+    }
+
+    /**
+     * Interrupt the consumer threads and wait until they exit. Tasks being executed are leased, and will be
+     * available again when the lease expires.
+     */
+    public synchronized void stop() {
+        if (executorService == null) {
+            return;
+        }
+        executorService.shutdownNow();
+        try {
+            if (!executorService.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("Consumer threads did not stop after " + STOP_TIMEOUT + "ms");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        executorService = null;
+    }
+
+    /**
+     * Store the task in the ready directory of its queue. The file is written in a temporary location first,
+     * so consumers never see incomplete files. If the task cannot be stored, its name is released.
+     * @throws TaskAlreadyExistsException if the task name is already in use
+     */
+    @Override
+    public TaskHandle post(Task task) {
+        try {
+            Path name = null;
+            if (task.getTaskName() != null) {
+                try {
+                    name = Files.createFile(root.resolve("names").resolve(task.getTaskName()));
+                } catch (FileAlreadyExistsException e) {
+                    throw new TaskAlreadyExistsException("Task name '" + task.getTaskName() + "' is already in the queue");
+                }
+            }
+            boolean posted = false;
+            try {
+                Tracer tracer = this.tracer;
+                if (tracer != null) {
+                    tracer.attach(task);
+                }
+                Path tmp = root.resolve("tmp").resolve(UUID.randomUUID() + ".json");
+                Files.write(tmp, objectMapper.writeValueAsBytes(task));
+                long due = task.getEtaMillis() != 0? task.getEtaMillis() : System.currentTimeMillis() + task.getDelaySeconds() * 1000L;
+                String fileName = new TaskFile(task.getPriority().ordinal(), due, 1, UUID.randomUUID().toString()).toString();
+                Files.move(tmp, getQueueDirectory(task.getQueueName(), READY).resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+                posted = true;
+                return new TaskHandle(task.getTaskName(), due, null, null);
+            } finally {
+                if (!posted && name != null) {
+                    Files.deleteIfExists(name);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Post each task. If a task name is already in use the rest of tasks are still posted, and the exception
+     * is thrown at the end.
+     */
+    @Override
+    public void postAll(Iterable<? extends Task> tasks) {
+        TaskAlreadyExistsException duplicate = null;
+        for (Task task : tasks) {
+            try {
+                post(task);
+            } catch (TaskAlreadyExistsException e) {
+                duplicate = e;
+            }
+        }
+        if (duplicate != null) {
+            throw duplicate;
+        }
+    }
+
+    @Override
+    public void run(Task task) {
+        injectionService.injectMembers(task);
+        interceptors.run((AbstractTask) task, this);
+    }
+
+    /**
+     * Wait until there are no ready or leased tasks in any queue, including delayed tasks and tasks
+     * posted by other JVMs.
+     * @throws TimeoutException if there are still tasks after waiting timeoutInMillis.
+     */
+    public void waitUntilEmpty(int timeoutInMillis) throws TimeoutException {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        try {
+            int pending;
+            while ((pending = getPendingTaskCount()) > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new TimeoutException("Timeout waiting for " + pending + " queue tasks to complete.");
+                }
+                Thread.sleep(pollIntervalMillis);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of tasks ready or leased in all queues
+     */
+    public int getPendingTaskCount() {
+        int count = 0;
+        for (Path queue : listFiles(root.resolve("queues"))) {
+            count += listFiles(queue.resolve(READY)).size() + listFiles(queue.resolve(LEASED)).size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of tasks that reached the maximum number of attempts in all queues
+     */
+    public int getFailedTaskCount() {
+        int count = 0;
+        for (Path queue : listFiles(root.resolve("queues"))) {
+            count += listFiles(queue.resolve(FAILED)).size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of tasks completed by the consumers of this instance
+     */
+    public int getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    /**
+     * Claim the next task that is due in any queue, making available again the tasks with an expired lease.
+     * Each claim lists the ready directory of every queue and sorts the tasks that are due, so its cost grows
+     * with the number of queued tasks. This is fine for the volumes of integration tests.
+     * @return the claimed task, null if there is none
+     */
+    Claim claim() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Path queue : listFiles(root.resolve("queues"))) {
+            releaseExpiredLeases(queue, now);
+            List<Path> due = new ArrayList<Path>();
+            for (Path file : listFiles(queue.resolve(READY))) {
+                if (TaskFile.parse(file.getFileName().toString()).due <= now) {
+                    due.add(file);
+                }
+            }
+            Collections.sort(due);
+            for (Path file : due) {
+                TaskFile taskFile = TaskFile.parse(file.getFileName().toString());
+                Path leased = queue.resolve(LEASED).resolve((now + leaseMillis) + "-" + taskFile);
+                try {
+                    Files.move(file, leased, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    // claimed by another consumer
+                    continue;
+                }
+                return new Claim(queue, leased, taskFile);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retry the tasks whose lease has expired, as if their attempt had failed
+     */
+    private void releaseExpiredLeases(Path queue, long now) throws IOException {
+        for (Path file : listFiles(queue.resolve(LEASED))) {
+            String name = file.getFileName().toString();
+            int separator = name.indexOf('-');
+            if (Long.parseLong(name.substring(0, separator)) < now) {
+                log.warn("Lease expired for " + file);
+                retry(queue, file, TaskFile.parse(name.substring(separator + 1)));
+            }
+        }
+    }
+
+    /**
+     * Execute a claimed task, then delete it or schedule a retry
+     */
+    private void execute(Claim claim) throws IOException {
+        Task task;
+        try {
+            task = objectMapper.readValue(Files.readAllBytes(claim.leased), AbstractTask.class);
+        } catch (IOException e) {
+            log.error("Cannot read " + claim.leased + ", moving to " + FAILED, e);
+            moveIfExists(claim.leased, claim.queue.resolve(FAILED).resolve(claim.taskFile.toString()));
+            return;
+        }
+        try {
+            ((AbstractTask) task).setExecutionCount(claim.taskFile.attempt - 1);
+            run(task);
+            completedTaskCount.incrementAndGet();
+            if (!Files.deleteIfExists(claim.leased)) {
+                log.warn("Lease expired while executing " + claim.leased + ", the task may be executed again");
+            }
+        } catch (RuntimeException e) {
+            log.error(e.toString(), e);
+            retry(claim.queue, claim.leased, claim.taskFile);
+        }
+    }
+
+    /**
+     * Move a leased task back to the ready directory with a delay, or to the failed directory if it has reached
+     * the maximum number of attempts
+     */
+    private void retry(Path queue, Path leased, TaskFile taskFile) throws IOException {
+        if (taskFile.attempt >= maxAttempts) {
+            log.warn(taskFile + " has reached " + maxAttempts + " attempts, moving to " + FAILED);
+            moveIfExists(leased, queue.resolve(FAILED).resolve(taskFile.toString()));
+        } else {
+            long due = System.currentTimeMillis() + retryDelayMillis * taskFile.attempt;
+            TaskFile retry = new TaskFile(taskFile.priority, due, taskFile.attempt + 1, taskFile.id);
+            moveIfExists(leased, queue.resolve(READY).resolve(retry.toString()));
+        }
+    }
+
+    private static boolean moveIfExists(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private Path getQueueDirectory(String queueName, String directory) throws IOException {
+        Path queue = root.resolve("queues").resolve(queueName == null? "default" : queueName);
+        if (!Files.isDirectory(queue)) {
+            Files.createDirectories(queue.resolve(READY));
+            Files.createDirectories(queue.resolve(LEASED));
+            Files.createDirectories(queue.resolve(FAILED));
+        }
+        return queue.resolve(directory);
+    }
+
+    private static List<Path> listFiles(Path directory) {
+        List<Path> files = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+            try {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return files;
+    }
+
+    /**
+     * Set the time a consumer has to execute a task before it is made available to other consumers.
+     * Default is 10 minutes.
+     */
+    public FileSystemQueueService withLease(long lease, TimeUnit unit) {
+        this.leaseMillis = unit.toMillis(lease);
+        return this;
+    }
+
+    /**
+     * Set the time to wait when there are no tasks to execute. Default is 50 milliseconds.
+     */
+    public FileSystemQueueService withPollInterval(long interval, TimeUnit unit) {
+        this.pollIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * Run consumers on virtual threads if the JVM supports them (Java 21 or later), and platform threads otherwise.
+     * Should be invoked before starting the consumers.
+     */
+    public FileSystemQueueService withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Wrap the execution of tasks with an interceptor. Should be invoked before starting the consumers.
+     */
+    public FileSystemQueueService withInterceptor(TaskInterceptor interceptor) {
+        interceptors.add(interceptor);
+        return this;
+    }
+
+    /**
+     * Attach trace metadata to posted tasks and record a span for each executed task.
+     * Should be invoked before starting the consumers.
+     */
+    public FileSystemQueueService withTracer(Tracer tracer) {
+        this.tracer = tracer;
+        interceptors.add(tracer);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of times a task will be executed before moving it to the failed directory,
+     * and the delay before retrying it (multiplied by the number of attempts). Default is 5 attempts and 1 second.
+     */
+    public FileSystemQueueService withRetries(int maxAttempts, long retryDelay, TimeUnit unit) {
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = unit.toMillis(retryDelay);
+        return this;
+    }
+
+    @Inject
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Inject
+    public void setInjectionService(InjectionService injectionService) {
+        this.injectionService = injectionService;
+    }
+
+    /**
+     * The name of a task file: {priority}-{due time}-{attempt}-{id}.json
+     * Sorting file names sorts tasks by priority and due time.
+     */
+    static class TaskFile {
+
+        private final int priority;
+
+        private final long due;
+
+        private final int attempt;
+
+        private final String id;
+
+        TaskFile(int priority, long due, int attempt, String id) {
+            this.priority = priority;
+            this.due = due;
+            this.attempt = attempt;
+            this.id = id;
+        }
+
+        static TaskFile parse(String name) {
+            List<String> parts = Splitter.on('-').limit(4).splitToList(name.substring(0, name.length() - ".json".length()));
+            return new TaskFile(Integer.parseInt(parts.get(0)), Long.parseLong(parts.get(1)), Integer.parseInt(parts.get(2)), parts.get(3));
+        }
+
+        @Override
+        public String toString() {
+            return priority + "-" + String.format("%015d", due) + "-" + attempt + "-" + id + ".json";
+        }
+    }
+
+    /**
+     * A task leased by a consumer
+     */
+    static class Claim {
+
+        private final Path queue;
+
+        private final Path leased;
+
+        private final TaskFile taskFile;
+
+        private Claim(Path queue, Path leased, TaskFile taskFile) {
+            this.queue = queue;
+            this.leased = leased;
+            this.taskFile = taskFile;
+        }
+    }
+
+    /**
+     * Claim and execute tasks until the executor is stopped
+     */
+    private class Consumer implements Runnable {
+
+        /** the index of this consumer, used to name the thread */
+        private final int index;
+
+        private Consumer(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setName(CONSUMER_THREAD_NAME + index);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Claim claim = claim();
+                        if (claim == null) {
+                            Thread.sleep(pollIntervalMillis);
+                        } else {
+                            execute(claim);
+                        }
+                    } catch (IOException e) {
+                        // e.g. files removed by another process
+                        log.error(e.toString(), e);
+                        Thread.sleep(pollIntervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.queue4gae.queue.mock;
+
+import org.queue4gae.queue.TaskStatus;
+import org.queue4gae.queue.TaskStatusStore;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps the status of tasks in memory until {@link #clear()} is invoked. Used by the mock QueueService implementations.
+ */
+public class InMemoryTaskStatusStore implements TaskStatusStore {
+
+    /** the status of each task. Guarded by this */
+    private final Map<String, TaskStatus> statuses = new HashMap<String, TaskStatus>();
+
+    @Override
+    public synchronized void queued(Collection<String> statusIds) {
+        for (String statusId : statusIds) {
+            if (!statuses.containsKey(statusId)) {
+                statuses.put(statusId, new TaskStatus(TaskStatus.State.QUEUED, 0, System.currentTimeMillis(), null));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void running(String statusId, int attempt) {
+        statuses.put(statusId, new TaskStatus(TaskStatus.State.RUNNING, attempt, System.currentTimeMillis(), null));
+    }
+
+    @Override
+    public synchronized void finished(String statusId, int attempt, Throwable failure, boolean retried) {
+        TaskStatus.State state = failure == null? TaskStatus.State.SUCCEEDED : retried? TaskStatus.State.RETRYING : TaskStatus.State.FAILED;
+        String error = failure == null? null : failure.toString();
+        statuses.put(statusId, new TaskStatus(state, attempt, System.currentTimeMillis(), error));
+        notifyAll();
+    }
+
+    /**
+     * Forget the status of all tasks
+     */
+    public synchronized void clear() {
+        statuses.clear();
+    }
+
+    @Override
+    public synchronized TaskStatus get(String statusId) {
+        return statuses.get(statusId);
+    }
+
+    @Override
+    public synchronized TaskStatus await(String statusId, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (TaskStatus status = statuses.get(statusId); status == null || !status.isDone(); status = statuses.get(statusId)) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new TimeoutException("Task " + statusId + " has not finished: " + status);
+            }
+            wait(remaining);
+        }
+        return statuses.get(statusId);
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.queue4gae.queue.mock;
+
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.MapMaker;
+import org.queue4gae.queue.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Posts tasks into a {@link MockAsyncQueueService} at a target rate and measures how the queue copes with it.
+ * Tasks are created by a {@link Workload}, which can be used to reproduce realistic task graphs: fan-out,
+ * chains of {@link org.queue4gae.queue.CursorTask} continuations, named tasks that get deduplicated, etc.
+ * Tasks rejected because the queue is full (see {@link MockAsyncQueueService#withCapacity}) are counted
+ * instead of failing the test.
+ * The queue service must be started, and the AppEngine environment set up (e.g. using LocalServiceTestHelper)
+ * before invoking {@link #run(Workload)}.
+<pre>
+LoadReport report = new LoadGenerator(queue)
+    .withRate(200)
+    .withDuration(30, TimeUnit.SECONDS)
+    .run(new Workload() {
+        public Task createTask(int index) {
+            return new FanOutTask(index);
+        }
+    });
+log.info(report.toString());
+</pre>
+ */
+public class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final MockAsyncQueueService queueService;
+
+    /** the number of tasks to post per second */
+    private double tasksPerSecond = 100;
+
+    /** the time spent posting tasks, in milliseconds */
+    private long durationMillis = 10000;
+
+    /** the interval to sample the queue backlog, in milliseconds */
+    private long sampleIntervalMillis = 100;
+
+    /** the time to wait for the queue to be empty after posting all tasks, in milliseconds */
+    private int drainTimeoutMillis = 60000;
+
+    public LoadGenerator(MockAsyncQueueService queueService) {
+        this.queueService = queueService;
+    }
+
+    /**
+     * Post tasks using the provided workload, then wait until the queue is empty.
+     * @return the report of this execution
+     * @throws TimeoutException if the queue could not be emptied in time
+     */
+    public LoadReport run(Workload workload) throws TimeoutException {
+        final TimingStatistics latency = new TimingStatistics();
+        final List<LoadReport.BacklogSample> backlog = new CopyOnWriteArrayList<LoadReport.BacklogSample>();
+
+        // weak keys are compared by identity
+        final ConcurrentMap<Task, Long> postTimes = new MapMaker().weakKeys().makeMap();
+        queueService.setTaskListener(new TaskListener() {
+
+            @Override
+            public void taskPosted(Task task) {
+                postTimes.put(task, System.nanoTime());
+            }
+
+            @Override
+            public void taskReloaded(Task copy, long postNanos) {
+                postTimes.put(copy, postNanos);
+            }
+
+            @Override
+            public void taskCompleted(Task task) {
+                Long postTime = postTimes.remove(task);
+                if (postTime != null) {
+                    latency.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - postTime));
+                }
+            }
+        });
+
+        final int initialQueued = queueService.getQueuedTaskCount();
+        final int initialCompleted = queueService.getCompletedTaskCount();
+        final Stopwatch watch = Stopwatch.createStarted();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        int duplicates = 0;
+        int rejected = 0;
+        try {
+            sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    int pending = queueService.getQueuedTaskCount() - queueService.getCompletedTaskCount() - queueService.getDelayedTaskCount();
+                    backlog.add(new LoadReport.BacklogSample(watch.elapsed(TimeUnit.MILLISECONDS), pending));
+                }
+            }, 0, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / tasksPerSecond);
+            long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            for (int index = 0; index * intervalNanos < durationNanos; index++) {
+                long wait = index * intervalNanos - watch.elapsed(TimeUnit.NANOSECONDS);
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                try {
+                    queueService.post(workload.createTask(index));
+                } catch (TaskAlreadyExistsException e) {
+                    duplicates++;
+                } catch (TransientFailureException e) {
+                    // the queue is full, see MockAsyncQueueService.withCapacity()
+                    rejected++;
+                }
+            }
+            queueService.waitUntilEmpty(drainTimeoutMillis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            sampler.shutdownNow();
+            queueService.setTaskListener(null);
+        }
+
+        LoadReport report = new LoadReport(
+                queueService.getQueuedTaskCount() - initialQueued,
+                duplicates,
+                rejected,
+                queueService.getCompletedTaskCount() - initialCompleted,
+                watch.elapsed(TimeUnit.MILLISECONDS),
+                latency,
+                backlog
+        );
+        log.info("Load test finished: " + report);
+        return report;
+    }
+
+    /**
+     * Set the number of tasks to post per second. Default is 100.
+     */
+    public LoadGenerator withRate(double tasksPerSecond) {
+        this.tasksPerSecond = tasksPerSecond;
+        return this;
+    }
+
+    /**
+     * Set the time spent posting tasks. Default is 10 seconds.
+     */
+    public LoadGenerator withDuration(long duration, TimeUnit unit) {
+        this.durationMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Set the interval to sample the queue backlog. Default is 100 milliseconds.
+     */
+    public LoadGenerator withSampleInterval(long interval, TimeUnit unit) {
+        this.sampleIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * Set the time to wait for the queue to be empty after posting all tasks. Default is 60 seconds.
+     */
+    public LoadGenerator withDrainTimeout(int drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        return this;
+    }
+
+}
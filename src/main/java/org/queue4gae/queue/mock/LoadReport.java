@@ -0,0 +1,127 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * The results of a {@link LoadGenerator} execution.
+ * Latency is measured in milliseconds from the moment a task is posted until it completes execution.
+ */
+public class LoadReport {
+
+    /** number of tasks posted, including tasks posted by other tasks */
+    private final int postedCount;
+
+    /** number of tasks rejected because their task name was already in use */
+    private final int duplicateCount;
+
+    /** number of tasks rejected because the queue was full */
+    private final int rejectedCount;
+
+    /** number of tasks completed */
+    private final int completedCount;
+
+    /** the time spent generating load and draining the queue, in milliseconds */
+    private final long elapsedMillis;
+
+    /** latency of completed tasks, in milliseconds */
+    private final TimingStatistics latency;
+
+    /** backlog measured periodically during the execution */
+    private final List<BacklogSample> backlog;
+
+    LoadReport(int postedCount, int duplicateCount, int rejectedCount, int completedCount, long elapsedMillis, TimingStatistics latency, List<BacklogSample> backlog) {
+        this.postedCount = postedCount;
+        this.duplicateCount = duplicateCount;
+        this.rejectedCount = rejectedCount;
+        this.completedCount = completedCount;
+        this.elapsedMillis = elapsedMillis;
+        this.latency = latency;
+        this.backlog = ImmutableList.copyOf(backlog);
+    }
+
+    /**
+     * @return the sustained throughput, in completed tasks per second
+     */
+    public double getThroughput() {
+        return elapsedMillis == 0? 0 : completedCount * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * @return the maximum backlog observed during the execution
+     */
+    public int getMaxBacklog() {
+        int max = 0;
+        for (BacklogSample sample : backlog) {
+            max = Math.max(max, sample.getBacklog());
+        }
+        return max;
+    }
+
+    public int getPostedCount() {
+        return postedCount;
+    }
+
+    public int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public int getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public TimingStatistics getLatency() {
+        return latency;
+    }
+
+    public List<BacklogSample> getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public String toString() {
+        return "posted=" + postedCount + ", duplicates=" + duplicateCount + ", rejected=" + rejectedCount + ", completed=" + completedCount +
+                ", elapsed=" + elapsedMillis + "ms, throughput=" + String.format("%.1f", getThroughput()) + " tasks/s" +
+                ", maxBacklog=" + getMaxBacklog() + ", latency(ms)=[" + latency + "]";
+    }
+
+    /**
+     * Number of tasks waiting for execution at a given point in time
+     */
+    public static class BacklogSample {
+
+        /** milliseconds since the start of the execution */
+        private final long elapsedMillis;
+
+        /** number of tasks posted but not completed, excluding delayed tasks */
+        private final int backlog;
+
+        BacklogSample(long elapsedMillis, int backlog) {
+            this.elapsedMillis = elapsedMillis;
+            this.backlog = backlog;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public String toString() {
+            return elapsedMillis + "ms: " + backlog;
+        }
+    }
+
+}
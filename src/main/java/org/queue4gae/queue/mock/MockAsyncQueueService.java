@@ -1,16 +1,42 @@
 package org.queue4gae.queue.mock;
 
-import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.TreeMultiset;
 import com.google.common.base.Stopwatch;
+import org.queue4gae.queue.AbstractTask;
 import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInvocation;
 
 import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Intended for testing your Task classes.
  * Invoking {@link #post(org.queue4gae.queue.Task)} will execute Task.run() in a separate Thread. Threads are launched using {@link #start()},
  * and are stopped invoking {@link #stop()}.
+ * Tasks with higher {@link org.queue4gae.queue.TaskPriority} are executed first, see {@link #withStarvationLimit(int)}.
+ * Tasks with the same {@link Task#getAffinityKey() affinity key} are executed one at a time, by the same consumer thread.
+ * The status of all posted tasks is recorded in memory, and {@link TaskHandle#await} can be used to wait for a task.
+ * By default the number of consumer threads is fixed, see {@link #withScaling(ScalingOptions)} to make it follow the backlog.
 <pre>
 \@Before
 public void setupServices() {
@@ -34,9 +60,96 @@ public class MockAsyncQueueService extends AbstractMockQueueServiceImpl<MockAsyn
     /** number of consumer threads to span */
     private int numThreads;
 
-    private ExecutorService executorService;
+    /** true to run consumers on virtual threads, if supported by the JVM */
+    private boolean virtualThreads;
 
-    private BlockingDeque<Task> queue = new LinkedBlockingDeque<Task>();
+    /** if not null, consumers are added and removed depending on the backlog */
+    private ScalingOptions scaling;
+
+    /** the number of running consumers. Guarded by {@link #scalingLock} */
+    private int consumerCount;
+
+    /** the index of the next consumer to launch, used to name the thread. Guarded by {@link #scalingLock} */
+    private int nextConsumerIndex;
+
+    /** guards the number of consumers */
+    private final Object scalingLock = new Object();
+
+    /** consumers added and removed since this instance was created */
+    private final List<ScalingEvent> scalingLog = new CopyOnWriteArrayList<ScalingEvent>();
+
+    /** the value of System.nanoTime() when each waiting task was posted, when scaling. Weak keys are compared by identity */
+    private final ConcurrentMap<Task, Long> postTimes = new MapMaker().weakKeys().makeMap();
+
+    private volatile ExecutorService executorService;
+
+    /** default value for {@link #withStarvationLimit(int)} */
+    public static final int DEFAULT_STARVATION_LIMIT = 10;
+
+    private final PriorityTaskQueue queue = new PriorityTaskQueue(DEFAULT_STARVATION_LIMIT);
+
+    /** the maximum time to wait for room in the queue with {@link OverflowPolicy#BLOCK}, in milliseconds */
+    public static final int BLOCK_TIMEOUT = 10000;
+
+    /** the maximum number of tasks waiting in memory, and the maximum number of delayed tasks. 0 means unbounded */
+    private int capacity;
+
+    /** what to do when the queue is full */
+    private OverflowPolicy overflowPolicy;
+
+    /** one permit for each free slot in the queue, null if unbounded */
+    private volatile Semaphore permits;
+
+    /** tasks that did not fit in memory with {@link OverflowPolicy#SPILL}, created on demand */
+    private volatile SpillQueue spillQueue;
+
+    /** guards the creation and removal of {@link #spillQueue} */
+    private final Object spillLock = new Object();
+
+    /** tasks waiting for the task being executed with the same affinity key, indexed by key. Guarded by itself */
+    private final Map<String, Queue<Task>> busyKeys = new HashMap<String, Queue<Task>>();
+
+    /** the time to wait for consumer threads to exit when stopping, in milliseconds */
+    private static final int STOP_TIMEOUT = 5000;
+
+    /** the consumer running in the current thread, if any */
+    private final ThreadLocal<Consumer> currentConsumer = new ThreadLocal<Consumer>();
+
+    /** tasks interrupted during execution by {@link #stopNow()} */
+    private final Queue<Task> interruptedTasks = new ConcurrentLinkedQueue<Task>();
+
+    /** number of tasks discarded when stopping */
+    private final AtomicInteger droppedTaskCount = new AtomicInteger();
+
+    /** number of tasks rejected because the queue was full */
+    private final AtomicInteger rejectedTaskCount = new AtomicInteger();
+
+    /** the maximum number of tasks waiting in memory at the same time */
+    private final AtomicInteger maxReadyTaskCount = new AtomicInteger();
+
+    /** prefix of the names of consumer threads */
+    static final String CONSUMER_THREAD_NAME = "queue4gae-consumer-";
+
+    /** the time to wait for a task or a consumer that is expected by the replayed schedule, in milliseconds */
+    private static final int REPLAY_TIMEOUT = 200;
+
+    /** held by the consumer executing a task, when task execution is scheduled */
+    private final Lock scheduleLock = new ReentrantLock(true);
+
+    /** signalled when the next replayed execution changes */
+    private final Condition replayTurn = scheduleLock.newCondition();
+
+    /** if not null, consumers choose randomly the next task using this instance */
+    private Random scheduleRandom;
+
+    /** if not null, consumers execute tasks following these executions, including the consumer and the failures */
+    private List<ScheduleLog.Entry> replayEntries;
+
+    /** the position in {@link #replayEntries} of the next execution */
+    private int replayPosition;
+
+    /** the replayed execution of the task about to be executed, consumed by {@link ReplayInterceptor} */
+    private ScheduleLog.Entry replayedEntry;
 
     public MockAsyncQueueService() {
         this(10);
@@ -49,45 +162,369 @@ public class MockAsyncQueueService extends AbstractMockQueueServiceImpl<MockAsyn
     /**
      * Start the consumer threads
      */
-    public void start() {
-        this.executorService = Executors.newFixedThreadPool(numThreads, ThreadManager.currentRequestThreadFactory());
-        for (int i = 0; i < numThreads; i++) {
-            executorService.execute(new Consumer());
+    public synchronized void start() {
+        Preconditions.checkState(executorService == null, "Already started");
+        int initialCount = scaling == null? numThreads : scaling.getMinConsumers();
+        int maxCount = scaling == null? numThreads : scaling.getMaxConsumers();
+        this.executorService = Executors.newFixedThreadPool(maxCount, VirtualThreads.consumerThreadFactory(virtualThreads));
+        synchronized (scalingLock) {
+            consumerCount = initialCount;
+            nextConsumerIndex = initialCount;
+        }
+        for (int i = 0; i < initialCount; i++) {
+            executorService.execute(new Consumer(i));
         }
     }
 
     /**
-     * Stop all consumer threads
+     * @return true if consumers are added and removed depending on the backlog. Scheduled executions use a fixed
+     * number of consumers
+     */
+    private boolean isScaling() {
+        return scaling != null && scheduleRandom == null && replayEntries == null;
+    }
+
+    /**
+     * Add a consumer, unless the maximum has been reached
+     */
+    private void scaleUp(ScalingEvent.Reason reason) {
+        ExecutorService executorService = this.executorService;
+        if (executorService == null) {
+            return;
+        }
+        int index;
+        synchronized (scalingLock) {
+            if (consumerCount >= scaling.getMaxConsumers()) {
+                return;
+            }
+            consumerCount++;
+            index = nextConsumerIndex++;
+            logScalingEvent(reason);
+        }
+        try {
+            executorService.execute(new Consumer(index));
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    /**
+     * Remove the current consumer, unless the minimum has been reached
+     * @return true if the current consumer should exit
+     */
+    private boolean scaleDown() {
+        synchronized (scalingLock) {
+            if (consumerCount <= scaling.getMinConsumers()) {
+                return false;
+            }
+            consumerCount--;
+            logScalingEvent(ScalingEvent.Reason.IDLE);
+            return true;
+        }
+    }
+
+    /**
+     * Must be invoked holding {@link #scalingLock}
+     */
+    private void logScalingEvent(ScalingEvent.Reason reason) {
+        ScalingEvent event = new ScalingEvent(currentTimeMillis(), reason, consumerCount, queue.size());
+        scalingLog.add(event);
+        log.info(event.toString());
+    }
+
+    /**
+     * Stop all consumer threads immediately, discarding any pending tasks.
+     * @see #stopNow()
      */
     public void stop() {
-        this.executorService.shutdown();
-        //this.executorService.shutdownNow();
+        stopNow();
+    }
+
+    /**
+     * Wait until all tasks with no delay have been executed, including tasks posted in the meantime, then stop.
+     * Tasks that could not be executed in time are discarded.
+     * @return the tasks that were not executed, including delayed tasks
+     */
+    public List<Task> drainAndStop(int timeoutInMillis) {
+        try {
+            waitUntilEmpty(timeoutInMillis);
+        } catch (TimeoutException e) {
+            log.warn("Could not drain the queue, stopping anyway: " + e.getMessage());
+        }
+        return stopNow();
     }
 
     /**
-     * Execute the task immediately unless delaySeconds is != null.
+     * Interrupt all consumer threads and wait until they exit. Tasks that have not been executed are removed
+     * from this instance, which can be started again, and the status of tracked tasks is forgotten.
+     * @return the tasks that were not executed: waiting, spilled to disk, delayed or interrupted during execution
+     */
+    public synchronized List<Task> stopNow() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            try {
+                if (!executorService.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    log.warn("Consumer threads did not stop after " + STOP_TIMEOUT + "ms");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            executorService = null;
+        }
+        synchronized (scalingLock) {
+            consumerCount = 0;
+        }
+        postTimes.clear();
+        clearTaskStatus();
+
+        List<Task> interrupted = new ArrayList<Task>(interruptedTasks);
+        interruptedTasks.clear();
+        List<Task> waiting = queue.drain();
+        synchronized (busyKeys) {
+            for (Queue<Task> tasks : busyKeys.values()) {
+                waiting.addAll(tasks);
+            }
+            busyKeys.clear();
+        }
+        List<Task> spilled = drainSpilledTasks();
+        List<Task> delayed = removeDelayedTasks();
+        if (permits != null) {
+            // the queue is empty, so all slots are free
+            permits.drainPermits();
+            permits.release(capacity);
+        }
+
+        List<Task> dropped = new ArrayList<Task>(interrupted.size() + waiting.size() + spilled.size() + delayed.size());
+        dropped.addAll(interrupted);
+        dropped.addAll(waiting);
+        dropped.addAll(spilled);
+        dropped.addAll(delayed);
+        droppedTaskCount.addAndGet(dropped.size());
+        if (!dropped.isEmpty()) {
+            Multiset<String> classes = TreeMultiset.create();
+            for (Task task : dropped) {
+                classes.add(task.getClass().getSimpleName());
+            }
+            log.warn("Stopped with " + dropped.size() + " tasks not executed (" + interrupted.size() + " interrupted, " +
+                    waiting.size() + " waiting, " + spilled.size() + " spilled, " + delayed.size() + " delayed): " + classes);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the tasks removed from the overflow file, which is deleted
+     */
+    private List<Task> drainSpilledTasks() {
+        List<Task> tasks = new ArrayList<Task>();
+        synchronized (spillLock) {
+            if (spillQueue == null) {
+                return tasks;
+            }
+            try {
+                for (String line = spillQueue.poll(); line != null; line = spillQueue.poll()) {
+                    tasks.add(unspillTask(line));
+                }
+                spillQueue.close();
+            } catch (IOException e) {
+                log.warn("Cannot read the overflow file", e);
+            }
+            spillQueue = null;
+        }
+        return tasks;
+    }
+
+    /**
+     * @return true if the consumer threads have been started and not stopped
+     */
+    public synchronized boolean isRunning() {
+        return executorService != null;
+    }
+
+    /**
+     * @return the number of tasks discarded when stopping this instance
+     */
+    public int getDroppedTaskCount() {
+        return droppedTaskCount.get();
+    }
+
+    /**
+     * Execute the task immediately unless it has a delay or an ETA in the future.
      * Recursive invocation of this method (a task pushing another task into the queue) will store the task for
      * serial execution. This method will return immediately.
      * @param task
      */
     @Override
-    public void post(Task task) {
-        try {
-            if (delaySeconds != null && task.getDelaySeconds() == 0) {
-                task.withDelaySeconds(delaySeconds);
+    public TaskHandle post(Task task) {
+        if (delaySeconds != null && task.getDelaySeconds() == 0 && task.getEtaMillis() == 0) {
+            task.withDelaySeconds(delaySeconds);
+        }
+        boolean delayed = isDelayed(task);
+        boolean spill = false;
+        if (delayed) {
+            if (capacity > 0 && getDelayedTaskCount() >= capacity) {
+                // delayed tasks are only executed on demand, so waiting for room could block forever
+                reject(task);
             }
-            incQueuedTaskCount(task.getQueueName());
+        } else if (permits != null) {
+            spill = !acquirePermit(task);
+        }
+        try {
             if (task.getTaskName() != null) {
                 addTombstone(task.getTaskName());
             }
-            if (task.getDelaySeconds() > 0) {
-                pushDelayedTask(task);
-            } else {
-                queue.putFirst(task);
+        } catch (RuntimeException e) {
+            if (!delayed && !spill && permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+        incQueuedTaskCount(task.getQueueName());
+        TaskHandle handle = taskPosted(task);
+        if (delayed) {
+            pushDelayedTask(task);
+        } else if (spill) {
+            spillTask(task);
+        } else {
+            putTask(task, System.nanoTime());
+        }
+        return handle;
+    }
+
+    /**
+     * Reserve a slot in the queue for a task, according to the overflow policy
+     * @return true if the slot was reserved, false if the task should be spilled to disk
+     */
+    private boolean acquirePermit(Task task) {
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                if (!permits.tryAcquire(BLOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    reject(task);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (overflowPolicy == OverflowPolicy.REJECT) {
+            reject(task);
+        }
+        return false;
+    }
+
+    private void reject(Task task) {
+        rejectedTaskCount.incrementAndGet();
+        throw new TransientFailureException("Queue is full, rejected " + task.getClass().getName());
+    }
+
+    /**
+     * @param postNanos the value of {@link System#nanoTime()} when the task was posted
+     */
+    private void putTask(Task task, long postNanos) {
+        if (isScaling()) {
+            postTimes.put(task, postNanos);
+        }
+        queue.put(task);
+        int size = queue.size();
+        for (int max = maxReadyTaskCount.get(); size > max && !maxReadyTaskCount.compareAndSet(max, size); max = maxReadyTaskCount.get()) {
+            // retry
+        }
+        if (isScaling() && size > getConsumerCount() * scaling.getTargetBacklog()) {
+            scaleUp(ScalingEvent.Reason.BACKLOG);
+        }
+    }
+
+    /**
+     * Store a task in the overflow file, together with its ordinal and post time. The task is read back
+     * as a new instance, see {@link #unspillTask(String)}.
+     */
+    private void spillTask(Task task) {
+        try {
+            synchronized (spillLock) {
+                if (spillQueue == null) {
+                    spillQueue = new SpillQueue();
+                }
+                spillQueue.add(getOrdinal(task) + "\t" + System.nanoTime() + "\t" + toJson(task));
             }
-        } catch (InterruptedException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // a consumer may have freed a slot before the task was stored
+        unspillTasks();
+    }
+
+    /**
+     * Move tasks from the overflow file to memory while there is room
+     */
+    private void unspillTasks() {
+        while (true) {
+            String line;
+            Task task;
+            try {
+                synchronized (spillLock) {
+                    // stopNow() may have drained and closed the overflow file
+                    if (spillQueue == null || spillQueue.size() == 0 || !permits.tryAcquire()) {
+                        return;
+                    }
+                    try {
+                        line = spillQueue.poll();
+                        task = unspillTask(line);
+                    } catch (IOException | RuntimeException e) {
+                        permits.release();
+                        throw e;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            putTask(task, getPostNanos(line));
+        }
+    }
+
+    /**
+     * Deserialize a task read from the overflow file, moving the state of the original task to the new instance
+     */
+    private Task unspillTask(String line) throws IOException {
+        int tab = line.indexOf('\t');
+        int secondTab = line.indexOf('\t', tab + 1);
+        Task task = fromJson(line.substring(secondTab + 1));
+        taskReloaded(task, Integer.parseInt(line.substring(0, tab)), getPostNanos(line));
+        return task;
+    }
+
+    /**
+     * @return the post time stored in a line of the overflow file
+     */
+    private static long getPostNanos(String line) {
+        int tab = line.indexOf('\t');
+        return Long.parseLong(line.substring(tab + 1, line.indexOf('\t', tab + 1)));
+    }
+
+    /**
+     * Release the slot of a task taken from the queue
+     */
+    private void taskTaken() {
+        if (permits != null) {
+            permits.release();
+            unspillTasks();
+        }
+    }
+
+    /**
+     * Consumer threads retry failed tasks until they succeed, ignoring {@link #withRetries(int)}
+     */
+    @Override
+    protected boolean isRetried(Task task, int attempt) {
+        return currentConsumer.get() != null || super.isRetried(task, attempt);
+    }
+
+    /**
+     * @return true if the consumer threads are being stopped
+     */
+    private boolean isStopping() {
+        return Thread.currentThread().isInterrupted() || executorService == null || executorService.isShutdown();
     }
 
     /**
@@ -98,11 +535,11 @@ public class MockAsyncQueueService extends AbstractMockQueueServiceImpl<MockAsyn
     public void waitUntilEmpty(int timeoutInMillis) throws TimeoutException {
         Stopwatch watch = Stopwatch.createStarted();
         do {
-            if (getCompletedTaskCount() + getDelayedTaskCount() == getQueuedTaskCount()) {
+            if (getCompletedTaskCount() + getDelayedTaskCount() + getDroppedTaskCount() == getQueuedTaskCount()) {
                 return;
             }
         } while (watch.elapsed(TimeUnit.MILLISECONDS) < timeoutInMillis);
-        throw new TimeoutException("Timeout waiting for " + (getQueuedTaskCount() - getCompletedTaskCount()) + " queue tasks to complete.");
+        throw new TimeoutException("Timeout waiting for " + (getQueuedTaskCount() - getCompletedTaskCount() - getDroppedTaskCount()) + " queue tasks to complete.");
     }
 
     /**
@@ -118,39 +555,389 @@ public class MockAsyncQueueService extends AbstractMockQueueServiceImpl<MockAsyn
         }
     }
 
+    /**
+     * Invokes waitUntilEmpty(1000), then executes the delayed tasks that match the filter.
+     */
+    @Override
+    public void runTasks(TaskFilter filter) {
+        try {
+            waitUntilEmpty(1000);
+            super.runTasks(filter);
+        } catch (TimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the tasks that match the filter and are waiting in memory, including tasks waiting for another
+     * task with the same affinity key. Spilled tasks are not included.
+     */
+    @Override
+    protected List<Task> getReadyTasks(TaskFilter filter) {
+        List<Task> ready = findTasks(queue.snapshot(), filter);
+        synchronized (busyKeys) {
+            for (Queue<Task> tasks : busyKeys.values()) {
+                ready.addAll(findTasks(tasks, filter));
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Invokes waitUntilEmpty(1000), then executes the delayed tasks that are due.
+     */
+    @Override
+    public void runDueDelayedTasks() {
+        try {
+            waitUntilEmpty(1000);
+            super.runDueDelayedTasks();
+        } catch (TimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Limit the number of tasks waiting for execution, to behave like a capacity-constrained system under stress.
+     * Delayed tasks are limited separately to the same capacity, and are always rejected when full since they are
+     * only executed on demand. Tasks waiting for another task with the same affinity key count against the capacity.
+     * Should be invoked before posting any task.
+     * @param capacity the maximum number of tasks waiting in memory
+     * @param overflowPolicy what to do with posted tasks when the queue is full
+     */
+    public MockAsyncQueueService withCapacity(int capacity, OverflowPolicy overflowPolicy) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.permits = new Semaphore(capacity);
+        return this;
+    }
+
+    /**
+     * @return the number of tasks waiting for execution in memory, excluding delayed and spilled tasks
+     */
+    public int getReadyTaskCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return the maximum number of tasks that have been waiting for execution in memory at the same time
+     */
+    public int getMaxReadyTaskCount() {
+        return maxReadyTaskCount.get();
+    }
+
+    /**
+     * @return the number of tasks waiting for execution in the overflow file
+     */
+    public int getSpilledTaskCount() {
+        return spillQueue == null? 0 : spillQueue.size();
+    }
+
+    /**
+     * @return the number of tasks rejected because the queue was full
+     */
+    public int getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
+
+    /**
+     * Run consumers on virtual threads if the JVM supports them (Java 21 or later), and platform threads
+     * otherwise. Consumers blocked waiting for tasks or executing I/O do not hold an OS thread, so thousands of
+     * concurrent executions can be simulated with <code>new MockAsyncQueueService(5000).withVirtualThreads()</code>.
+     * Should be invoked before {@link #start()}.
+     */
+    public MockAsyncQueueService withVirtualThreads() {
+        Preconditions.checkState(executorService == null, "Already started");
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Add and remove consumer threads depending on the backlog, instead of using a fixed number of threads.
+     * Scaling does not apply with {@link #withSeededScheduling(long)} or {@link #withScheduleReplay(ScheduleLog)},
+     * which execute one task at a time anyway. Should be invoked before {@link #start()}.
+     */
+    public MockAsyncQueueService withScaling(ScalingOptions scaling) {
+        Preconditions.checkState(executorService == null, "Already started");
+        this.scaling = scaling;
+        return this;
+    }
+
+    /**
+     * @return the number of consumer threads currently running, 0 if stopped
+     */
+    public int getConsumerCount() {
+        synchronized (scalingLock) {
+            return consumerCount;
+        }
+    }
+
+    /**
+     * @return the consumers added and removed since this instance was created, in chronological order
+     */
+    public List<ScalingEvent> getScalingLog() {
+        return ImmutableList.copyOf(scalingLog);
+    }
+
+    /**
+     * Set the number of times that tasks of a lower priority may be skipped in favor of higher priority tasks,
+     * before one of them is executed anyway. Default is {@value #DEFAULT_STARVATION_LIMIT}.
+     */
+    public MockAsyncQueueService withStarvationLimit(int starvationLimit) {
+        queue.setStarvationLimit(starvationLimit);
+        return this;
+    }
+
+    /**
+     * Execute one task at a time, choosing the next task from the queue at random.
+     * The same seed will produce the same execution order, as long as the same tasks are posted in the same order.
+     * Should be invoked before posting any task.
+     */
+    public MockAsyncQueueService withSeededScheduling(long seed) {
+        trackOrdinals();
+        this.scheduleRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * Execute one task at a time, following the executions recorded in a previous run: each task is executed
+     * by the same consumer thread, and the executions that failed fail again with a {@link ReplayedFailureException}
+     * instead of executing the task.
+     * If an expected task is not posted, or the expected consumer is not available, it is skipped after a short wait.
+     * Should be invoked before posting any task.
+     * @see #withScheduleRecording()
+     */
+    public MockAsyncQueueService withScheduleReplay(ScheduleLog scheduleLog) {
+        trackOrdinals();
+        this.replayEntries = scheduleLog.getEntries(CONSUMER_THREAD_NAME);
+        this.replayPosition = 0;
+        return withInterceptor(new ReplayInterceptor());
+    }
+
+    /**
+     * Match the execution of tasks by consumers with the replayed schedule, including executions of tasks
+     * by other tasks
+     */
+    @Override
+    public void run(Task task) {
+        if (replayEntries != null && currentConsumer.get() != null) {
+            replayedEntry = nextReplayedEntry(task);
+        }
+        super.run(task);
+    }
+
+    /**
+     * Consume the replayed execution of a task. Must be invoked holding scheduleLock.
+     * @return the replayed execution, null if the next one is for another task
+     */
+    private ScheduleLog.Entry nextReplayedEntry(Task task) {
+        if (replayPosition < replayEntries.size()) {
+            ScheduleLog.Entry entry = replayEntries.get(replayPosition);
+            if (entry.getOrdinal() == getOrdinal(task)) {
+                replayPosition++;
+                return entry;
+            }
+        }
+        log.warn("Schedule replay diverged: task #" + getOrdinal(task) + " was not expected to execute now");
+        return null;
+    }
+
+    /**
+     * Choose the next task to execute when execution is scheduled. Must be invoked holding scheduleLock.
+     */
+    private Task nextScheduledTask() throws InterruptedException {
+        while (replayEntries != null && replayPosition < replayEntries.size()) {
+            final ScheduleLog.Entry entry = awaitReplayTurn();
+            if (entry == null) {
+                break;
+            }
+            queue.awaitNotEmpty();
+            Task task = queue.poll(new Predicate<Task>() {
+                @Override
+                public boolean apply(Task task) {
+                    return getOrdinal(task) == entry.getOrdinal();
+                }
+            }, REPLAY_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (task != null) {
+                return task;
+            }
+            log.warn("Schedule replay diverged: task #" + entry.getOrdinal() + " has not been posted");
+            replayPosition++;
+            replayTurn.signalAll();
+        }
+        queue.awaitNotEmpty();
+        if (scheduleRandom != null) {
+            List<Task> candidates = queue.snapshot();
+            Task task = candidates.get(scheduleRandom.nextInt(candidates.size()));
+            if (queue.remove(task)) {
+                return task;
+            }
+        }
+        return queue.take();
+    }
+
+    /**
+     * Wait until the next replayed execution was recorded by the current consumer thread, or a short time
+     * without progress if that consumer does not take it. Must be invoked holding scheduleLock.
+     * @return the next replayed execution, null if there are no more
+     */
+    private ScheduleLog.Entry awaitReplayTurn() throws InterruptedException {
+        String threadName = Thread.currentThread().getName();
+        int position = -1;
+        long nanos = 0;
+        while (replayPosition < replayEntries.size()) {
+            ScheduleLog.Entry entry = replayEntries.get(replayPosition);
+            if (entry.getThreadName().equals(threadName)) {
+                return entry;
+            }
+            if (position != replayPosition) {
+                position = replayPosition;
+                nanos = TimeUnit.MILLISECONDS.toNanos(REPLAY_TIMEOUT);
+            } else if (nanos <= 0) {
+                log.warn("Schedule replay diverged: " + entry + " is executed on " + threadName);
+                return entry;
+            }
+            nanos = replayTurn.awaitNanos(nanos);
+        }
+        return null;
+    }
+
+    /**
+     * Fail the executions that failed in the replayed schedule
+     */
+    private class ReplayInterceptor implements TaskInterceptor {
+
+        @Override
+        public boolean appliesTo(Class<? extends Task> taskClass) {
+            return true;
+        }
+
+        @Override
+        public void intercept(TaskInvocation invocation) {
+            ScheduleLog.Entry entry = replayedEntry;
+            replayedEntry = null;
+            if (entry != null && entry.getFailure() != null) {
+                throw new ReplayedFailureException(entry);
+            }
+            invocation.proceed();
+        }
+
+    }
+
     /**
      * Consume tasks until the executor is stopped
      */
     private class Consumer implements Runnable {
 
+        /** the index of this consumer, used to name the thread */
+        private final int index;
+
+        private Consumer(int index) {
+            this.index = index;
+        }
+
         @Override
         public void run() {
+            Thread.currentThread().setName(CONSUMER_THREAD_NAME + index);
+            currentConsumer.set(this);
             try {
                 while (true) {
-                    Task task = queue.take();
-                    int attempts = 0;
-                    boolean failed = true;
-
-                    while (failed) {
+                    if (isScaling()) {
+                        Task task = queue.poll(scaling.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
+                        if (task != null) {
+                            checkLatency(task);
+                            consume(task);
+                        } else if (scaleDown()) {
+                            return;
+                        }
+                    } else if (scheduleRandom == null && replayEntries == null) {
+                        consume(queue.take());
+                    } else {
+                        scheduleLock.lockInterruptibly();
                         try {
-                            MockAsyncQueueService.this.run(task);
-                            failed = false;
-
-                        } catch (Exception e) {
-                            if (e instanceof InterruptedException) {
-                                throw (InterruptedException) e;
-                            }
-                            log.error(e.toString(), e);
-
-                            // exponential back-off, max 5 seconds
-                            int delay = Math.min(attempts++ * 2000, 5000);
-                            log.info("Retrying in " + (delay / 1000) + "s");
-                            Thread.sleep(delay);
+                            consume(nextScheduledTask());
+                        } finally {
+                            replayTurn.signalAll();
+                            scheduleLock.unlock();
                         }
                     }
                 }
             } catch (InterruptedException e) {
                 return;
+            } finally {
+                currentConsumer.remove();
+            }
+        }
+
+        /**
+         * Add a consumer if the task has been waiting too long
+         */
+        private void checkLatency(Task task) {
+            Long postTime = postTimes.remove(task);
+            if (postTime != null && System.nanoTime() - postTime > TimeUnit.MILLISECONDS.toNanos(scaling.getMaxPendingLatencyMillis())) {
+                scaleUp(ScalingEvent.Reason.LATENCY);
+            }
+        }
+
+        /**
+         * Execute a task taken from the queue. If another consumer is executing a task with the same affinity key,
+         * the task is left for that consumer to execute next, and keeps its slot in the queue until then.
+         */
+        private void consume(Task task) throws InterruptedException {
+            String key = task.getAffinityKey();
+            if (key == null) {
+                taskTaken();
+                execute(task);
+                return;
+            }
+            synchronized (busyKeys) {
+                Queue<Task> waiting = busyKeys.get(key);
+                if (waiting != null) {
+                    waiting.add(task);
+                    return;
+                }
+                busyKeys.put(key, new LinkedList<Task>());
+            }
+            while (task != null) {
+                taskTaken();
+                execute(task);
+                synchronized (busyKeys) {
+                    task = busyKeys.get(key).poll();
+                    if (task == null) {
+                        busyKeys.remove(key);
+                    }
+                }
+            }
+        }
+
+        private void execute(Task task) throws InterruptedException {
+            int attempts = 0;
+            boolean failed = true;
+
+            try {
+                while (failed) {
+                    try {
+                        ((AbstractTask) task).setExecutionCount(attempts);
+                        MockAsyncQueueService.this.run(task);
+                        failed = false;
+
+                    } catch (Exception e) {
+                        if (e instanceof InterruptedException || isStopping()) {
+                            // the task may have swallowed the interruption
+                            throw new InterruptedException("Stopped while executing " + task.getClass().getName());
+                        }
+                        log.error(e.toString(), e);
+
+                        // exponential back-off, max 5 seconds
+                        int delay = Math.min(attempts++ * 2000, 5000);
+                        log.info("Retrying in " + (delay / 1000) + "s");
+                        Thread.sleep(delay);
+                    }
+                }
+            } finally {
+                if (failed) {
+                    interruptedTasks.add(task);
+                }
             }
         }
     }
@@ -4,17 +4,26 @@ import org.queue4gae.queue.*;
 
 import javax.inject.Singleton;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Intended for testing your Task classes.
  * Invoking {@link #post(org.queue4gae.queue.Task)} will execute Task.run() synchronously and return.
+ * The status of tracked tasks is recorded in memory, see {@link #withStatusTracking()}.
  */
 @Singleton
 public class MockQueueService extends AbstractMockQueueServiceImpl<MockQueueService> {
 
     /** our queue of tasks */
-    protected Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    protected Queue<Task> tasks = newTaskIndex();
+
+    /** true while some thread is executing the queued tasks */
+    private final AtomicBoolean executing = new AtomicBoolean();
+
+    @Override
+    protected List<Task> getReadyTasks(TaskFilter filter) {
+        return findTasks(tasks, filter);
+    }
 
     /**
      * Add a task to the internal queue representation
@@ -24,31 +33,41 @@ public class MockQueueService extends AbstractMockQueueServiceImpl<MockQueueServ
     }
 
     /**
-     * Execute the task immediately unless delaySeconds is != null.
+     * Execute the task immediately unless it has a delay or an ETA in the future.
      * Recursive invocation of this method (a task pushing another task into the queue) will store the task for
      * serial execution. This method will not return until the last task has finished.
      * @param task
      */
     @Override
-    public void post(Task task) {
+    public TaskHandle post(Task task) {
         if (task.getTaskName() != null) {
             addTombstone(task.getTaskName());
         }
 
         incQueuedTaskCount(task.getQueueName());
-        if (delaySeconds != null && task.getDelaySeconds() == 0) {
+        if (delaySeconds != null && task.getDelaySeconds() == 0 && task.getEtaMillis() == 0) {
             task.withDelaySeconds(delaySeconds);
         }
+        TaskHandle handle = taskPosted(task);
 
-        if (task.getDelaySeconds() == 0) {
+        if (!isDelayed(task)) {
+            if (deferToNextWave(tasks, task)) {
+                return handle;
+            }
             pushTask(task);
-            if (tasks.size() == 1) {
-                // we are the first level of post(), not a recursive task-starts-task scenario
-                serializeExecutionOfTasks(tasks, Task.class);
+            // only the first level of post() executes tasks, not a recursive task-starts-task scenario.
+            // Check again after finishing, in case a task was pushed by another thread meanwhile
+            while (!tasks.isEmpty() && executing.compareAndSet(false, true)) {
+                try {
+                    serializeExecutionOfTasks(tasks, Task.class);
+                } finally {
+                    executing.set(false);
+                }
             }
         } else {
             pushDelayedTask(task);
         }
+        return handle;
     }
 
 
@@ -0,0 +1,25 @@
+package org.queue4gae.queue.mock;
+
+/**
+ * What {@link MockAsyncQueueService} does with a posted task when the queue is full.
+ * @see MockAsyncQueueService#withCapacity(int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the poster until there is room in the queue. If a task cannot be queued after
+     * {@link MockAsyncQueueService#BLOCK_TIMEOUT} milliseconds (e.g. because all consumers are
+     * blocked posting more tasks) it is rejected.
+     */
+    BLOCK,
+
+    /** Reject the task, throwing a {@link com.google.appengine.api.taskqueue.TransientFailureException} */
+    REJECT,
+
+    /**
+     * Serialize the task into an overflow file on disk. Spilled tasks are moved back to memory as soon as
+     * there is room, and are executed as new instances deserialized from JSON.
+     */
+    SPILL
+
+}
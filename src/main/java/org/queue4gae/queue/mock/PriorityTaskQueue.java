@@ -0,0 +1,239 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Predicate;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskPriority;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The tasks waiting to be executed by {@link MockAsyncQueueService}, with one lane per {@link TaskPriority}.
+ * Tasks are taken from the lane with the highest priority, and the most recently posted task of a lane goes first.
+ * To avoid starvation, a lane that has been skipped a number of times while holding tasks is served next
+ * regardless of its priority.
+ */
+class PriorityTaskQueue {
+
+    /** the tasks of each priority, indexed by ordinal */
+    private final List<LinkedList<Task>> lanes = new ArrayList<LinkedList<Task>>();
+
+    /** the number of times each lane has been skipped while holding tasks */
+    private final int[] skipped;
+
+    /** the number of times a lane can be skipped before being served */
+    private volatile int starvationLimit;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /** signalled to all waiting threads when a task is added */
+    private final Condition added = lock.newCondition();
+
+    /** total number of tasks in all lanes */
+    private int size;
+
+    PriorityTaskQueue(int starvationLimit) {
+        this.starvationLimit = starvationLimit;
+        for (int i = 0; i < TaskPriority.values().length; i++) {
+            lanes.add(new LinkedList<Task>());
+        }
+        this.skipped = new int[lanes.size()];
+    }
+
+    /**
+     * Add a task in front of its lane
+     */
+    void put(Task task) {
+        lock.lock();
+        try {
+            lanes.get(task.getPriority().ordinal()).addFirst(task);
+            size++;
+            notEmpty.signal();
+            added.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next task to execute, waiting if necessary until there is one
+     */
+    Task take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            awaitTask();
+            return removeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next task to execute, waiting up to the given time until there is one
+     * @return the task, null if the time elapsed without any task to execute
+     */
+    Task poll(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the first task accepted by a predicate, highest priority first, waiting up to the given time
+     * until one is added
+     * @return the task, null if the time elapsed without any matching task
+     */
+    Task poll(Predicate<? super Task> predicate, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (true) {
+                for (LinkedList<Task> lane : lanes) {
+                    for (Iterator<Task> it = lane.iterator(); it.hasNext(); ) {
+                        Task task = it.next();
+                        if (predicate.apply(task)) {
+                            it.remove();
+                            size--;
+                            return task;
+                        }
+                    }
+                }
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = added.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next task to execute. Must be invoked holding the lock, with at least one task in the queue.
+     */
+    private Task removeNext() {
+        int next = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty() && (next == -1 || skipped[i] >= starvationLimit && skipped[i] > skipped[next])) {
+                next = i;
+            }
+        }
+        for (int i = 0; i < lanes.size(); i++) {
+            if (i == next) {
+                skipped[i] = 0;
+            } else if (!lanes.get(i).isEmpty()) {
+                skipped[i]++;
+            }
+        }
+        return removeFirst(lanes.get(next));
+    }
+
+    /**
+     * Wait until there is at least one task
+     */
+    void awaitNotEmpty() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            awaitTask();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitTask() throws InterruptedException {
+        while (size == 0) {
+            notEmpty.await();
+        }
+    }
+
+    private Task removeFirst(LinkedList<Task> lane) {
+        size--;
+        return lane.removeFirst();
+    }
+
+    /**
+     * Remove a task, compared by identity
+     * @return true if the task was found
+     */
+    boolean remove(Task task) {
+        lock.lock();
+        try {
+            for (Iterator<Task> it = lanes.get(task.getPriority().ordinal()).iterator(); it.hasNext(); ) {
+                if (it.next() == task) {
+                    it.remove();
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the tasks in all lanes, highest priority first
+     */
+    List<Task> snapshot() {
+        lock.lock();
+        try {
+            List<Task> tasks = new ArrayList<Task>(size);
+            for (LinkedList<Task> lane : lanes) {
+                tasks.addAll(lane);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all tasks
+     * @return the removed tasks, highest priority first
+     */
+    List<Task> drain() {
+        lock.lock();
+        try {
+            List<Task> tasks = snapshot();
+            for (LinkedList<Task> lane : lanes) {
+                lane.clear();
+            }
+            size = 0;
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setStarvationLimit(int starvationLimit) {
+        this.starvationLimit = starvationLimit;
+    }
+
+}
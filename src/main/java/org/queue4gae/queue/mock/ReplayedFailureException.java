@@ -0,0 +1,20 @@
+package org.queue4gae.queue.mock;
+
+/**
+ * Thrown instead of executing a task when replaying a {@link ScheduleLog}, if the recorded execution failed
+ */
+public class ReplayedFailureException extends RuntimeException {
+
+    /** the class name of the recorded exception */
+    private final String failure;
+
+    ReplayedFailureException(ScheduleLog.Entry entry) {
+        super("Replaying failure of " + entry);
+        this.failure = entry.getFailure();
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.queue4gae.queue.mock;
+
+/**
+ * A consumer added or removed by {@link MockAsyncQueueService} when scaling is enabled
+ * @see ScalingOptions
+ */
+public class ScalingEvent {
+
+    /** why the number of consumers changed */
+    public enum Reason {
+
+        /** too many waiting tasks per consumer */
+        BACKLOG,
+
+        /** a task waited too long before execution */
+        LATENCY,
+
+        /** a consumer had nothing to do */
+        IDLE
+    }
+
+    /** when the event happened, in milliseconds since the epoch */
+    private final long timeMillis;
+
+    private final Reason reason;
+
+    /** the number of consumers after the event */
+    private final int consumers;
+
+    /** the number of tasks waiting in memory when the event happened */
+    private final int backlog;
+
+    ScalingEvent(long timeMillis, Reason reason, int consumers, int backlog) {
+        this.timeMillis = timeMillis;
+        this.reason = reason;
+        this.consumers = consumers;
+        this.backlog = backlog;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public String toString() {
+        return (reason == Reason.IDLE? "Removed consumer (" : "Added consumer (") + reason + "), now " + consumers +
+                " consumers and " + backlog + " waiting tasks";
+    }
+
+}
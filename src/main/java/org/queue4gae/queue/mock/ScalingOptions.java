@@ -0,0 +1,97 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures how {@link MockAsyncQueueService} adds and removes consumer threads depending on the backlog,
+ * similar to the way App Engine starts and stops instances of an automatically scaled module.
+ * A consumer is added when there are more than {@link #withTargetBacklog(int) targetBacklog} waiting tasks
+ * per consumer, or when a task has been waiting longer than {@link #withMaxPendingLatency(long, TimeUnit) maxPendingLatency}.
+ * A consumer is removed when it has been idle for {@link #withIdleTimeout(long, TimeUnit) idleTimeout}.
+<pre>
+queue = new MockAsyncQueueService().withScaling(new ScalingOptions(1, 20).withTargetBacklog(5));
+</pre>
+ */
+public class ScalingOptions {
+
+    /** default value for {@link #withTargetBacklog(int)} */
+    public static final int DEFAULT_TARGET_BACKLOG = 10;
+
+    /** default value for {@link #withMaxPendingLatency(long, TimeUnit)}, in milliseconds */
+    public static final long DEFAULT_MAX_PENDING_LATENCY = 1000;
+
+    /** default value for {@link #withIdleTimeout(long, TimeUnit)}, in milliseconds */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+
+    /** the number of consumers that are never removed */
+    private final int minConsumers;
+
+    /** the maximum number of consumers */
+    private final int maxConsumers;
+
+    /** the number of waiting tasks per consumer that triggers a new consumer */
+    private int targetBacklog = DEFAULT_TARGET_BACKLOG;
+
+    /** the time a task may wait before a new consumer is added, in milliseconds */
+    private long maxPendingLatencyMillis = DEFAULT_MAX_PENDING_LATENCY;
+
+    /** the time a consumer may be idle before it is removed, in milliseconds */
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT;
+
+    public ScalingOptions(int minConsumers, int maxConsumers) {
+        Preconditions.checkArgument(minConsumers > 0, "minConsumers must be positive");
+        Preconditions.checkArgument(maxConsumers >= minConsumers, "maxConsumers must be at least minConsumers");
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+    }
+
+    /**
+     * Set the number of waiting tasks per consumer above which a consumer is added. Default is {@value #DEFAULT_TARGET_BACKLOG}.
+     */
+    public ScalingOptions withTargetBacklog(int targetBacklog) {
+        Preconditions.checkArgument(targetBacklog > 0, "targetBacklog must be positive");
+        this.targetBacklog = targetBacklog;
+        return this;
+    }
+
+    /**
+     * Set the time a task may wait for execution before a consumer is added. Default is {@value #DEFAULT_MAX_PENDING_LATENCY} ms.
+     */
+    public ScalingOptions withMaxPendingLatency(long latency, TimeUnit unit) {
+        Preconditions.checkArgument(latency > 0, "latency must be positive");
+        this.maxPendingLatencyMillis = unit.toMillis(latency);
+        return this;
+    }
+
+    /**
+     * Set the time a consumer may wait without tasks before it is removed. Default is {@value #DEFAULT_IDLE_TIMEOUT} ms.
+     */
+    public ScalingOptions withIdleTimeout(long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+        this.idleTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public int getMinConsumers() {
+        return minConsumers;
+    }
+
+    public int getMaxConsumers() {
+        return maxConsumers;
+    }
+
+    public int getTargetBacklog() {
+        return targetBacklog;
+    }
+
+    public long getMaxPendingLatencyMillis() {
+        return maxPendingLatencyMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+}
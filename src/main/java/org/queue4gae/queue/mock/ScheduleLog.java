@@ -0,0 +1,171 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * The record of task executions in a mock queue service: the execution order, the thread that executed each
+ * task and the failures, if any. Each task is identified by its ordinal, the order in which it was posted.
+ * A recorded log can be written to a file and replayed later using
+ * {@link MockAsyncQueueService#withScheduleReplay(ScheduleLog)}.
+ *
+ * The file format is a compact text file. Task class names are declared once:
+ * <pre>
+ * C	0	com.acme.MyTask
+ * E	{ordinal}	{class index}	{thread name}	{failure class name, or "-" if successful}
+ * </pre>
+ */
+public class ScheduleLog {
+
+    /** marks a successful execution in the log file */
+    private static final String SUCCESS = "-";
+
+    /** the executions, in the order they were started */
+    private final List<Entry> entries = Collections.synchronizedList(new ArrayList<Entry>());
+
+    /**
+     * Register the start of a task execution
+     * @param ordinal the task ordinal
+     * @param taskClass the class of the task being executed
+     * @return the created entry
+     */
+    Entry start(int ordinal, String taskClass) {
+        Entry entry = new Entry(ordinal, taskClass, Thread.currentThread().getName(), null);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * @return the recorded executions, in the order they were started
+     */
+    public List<Entry> getEntries() {
+        synchronized (entries) {
+            return ImmutableList.copyOf(entries);
+        }
+    }
+
+    /**
+     * @return the recorded executions by threads whose name starts with the provided prefix, in the order they
+     * were started. Retries of the same task are included.
+     */
+    List<Entry> getEntries(String threadNamePrefix) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : getEntries()) {
+            if (entry.getThreadName().startsWith(threadNamePrefix)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write this log to a file
+     */
+    public void write(File file) throws IOException {
+        Map<String, Integer> classes = new HashMap<String, Integer>();
+        PrintWriter writer = new PrintWriter(Files.newWriter(file, Charsets.UTF_8));
+        try {
+            for (Entry entry : getEntries()) {
+                Integer classIndex = classes.get(entry.getTaskClass());
+                if (classIndex == null) {
+                    classIndex = classes.size();
+                    classes.put(entry.getTaskClass(), classIndex);
+                    writer.println("C\t" + classIndex + "\t" + entry.getTaskClass());
+                }
+                String failure = entry.getFailure();
+                writer.println("E\t" + entry.getOrdinal() + "\t" + classIndex + "\t" + entry.getThreadName() + "\t" + (failure == null? SUCCESS : failure));
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Error writing " + file);
+        }
+    }
+
+    /**
+     * Read a log previously saved using {@link #write(File)}
+     */
+    public static ScheduleLog read(File file) throws IOException {
+        ScheduleLog log = new ScheduleLog();
+        Map<String, String> classes = new HashMap<String, String>();
+        Splitter splitter = Splitter.on('\t');
+        BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                List<String> fields = splitter.splitToList(line);
+                if ("C".equals(fields.get(0))) {
+                    classes.put(fields.get(1), fields.get(2));
+                } else if ("E".equals(fields.get(0))) {
+                    String failure = fields.get(4);
+                    log.entries.add(new Entry(Integer.parseInt(fields.get(1)), classes.get(fields.get(2)), fields.get(3), SUCCESS.equals(failure)? null : failure));
+                } else {
+                    throw new IOException("Unrecognized line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return log;
+    }
+
+    /**
+     * One execution of a task
+     */
+    public static class Entry {
+
+        /** the order in which the task was posted, starting at 0 */
+        private final int ordinal;
+
+        /** the task class name */
+        private final String taskClass;
+
+        /** the name of the thread that executed the task */
+        private final String threadName;
+
+        /** the class name of the exception thrown by the task, null if none */
+        private volatile String failure;
+
+        Entry(int ordinal, String taskClass, String threadName, String failure) {
+            this.ordinal = ordinal;
+            this.taskClass = taskClass;
+            this.threadName = threadName;
+            this.failure = failure;
+        }
+
+        void failed(Throwable e) {
+            // keep the original failure when replaying a log
+            this.failure = e instanceof ReplayedFailureException? ((ReplayedFailureException) e).getFailure() : e.getClass().getName();
+        }
+
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        public String getTaskClass() {
+            return taskClass;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + ordinal + " " + taskClass + " on " + threadName + (failure == null? "" : " failed with " + failure);
+        }
+    }
+
+}
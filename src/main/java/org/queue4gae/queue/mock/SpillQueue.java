@@ -0,0 +1,82 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+/**
+ * A FIFO queue of text lines stored in a temporary file, used to keep tasks out of memory.
+ * The file is truncated every time the queue is emptied, and deleted by {@link #close()}.
+ */
+class SpillQueue {
+
+    private final File file;
+
+    private BufferedWriter writer;
+
+    private BufferedReader reader;
+
+    /** the number of lines written and not read yet */
+    private int size;
+
+    SpillQueue() throws IOException {
+        this.file = File.createTempFile("queue4gae-spill", ".jsonl");
+        file.deleteOnExit();
+        open();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+    }
+
+    /**
+     * Append a line. It must not contain line terminators.
+     */
+    synchronized void add(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+        size++;
+    }
+
+    /**
+     * @return the oldest line, or null if the queue is empty
+     */
+    synchronized String poll() throws IOException {
+        if (size == 0) {
+            return null;
+        }
+        String line = reader.readLine();
+        if (--size == 0) {
+            // reclaim disk space
+            close();
+            open();
+        }
+        return line;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Close and delete the file
+     */
+    synchronized void close() throws IOException {
+        writer.close();
+        reader.close();
+        size = 0;
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+}
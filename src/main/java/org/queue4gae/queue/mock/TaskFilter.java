@@ -0,0 +1,101 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Predicate;
+import org.queue4gae.queue.Task;
+
+/**
+ * Selects pending tasks of the mock queue services by queue name, task class, tag and task name.
+ * Attributes that are not set match any task. Tasks without a queue name belong to the "default" queue.
+<pre>
+List&lt;Task&gt; pending = queueService.getPendingTasks(new TaskFilter().withQueueName("mail").withTag("user-1"));
+queueService.runTasks(new TaskFilter().withTaskClass(SendMailTask.class));
+</pre>
+ */
+public class TaskFilter implements Predicate<Task> {
+
+    private String queueName;
+
+    /** tasks of this class or any subclass match */
+    private Class<? extends Task> taskClass;
+
+    private String tag;
+
+    private String taskName;
+
+    public TaskFilter withQueueName(String queueName) {
+        this.queueName = queueName;
+        return this;
+    }
+
+    /**
+     * Match tasks of this class, including subclasses
+     */
+    public TaskFilter withTaskClass(Class<? extends Task> taskClass) {
+        this.taskClass = taskClass == Task.class? null : taskClass;
+        return this;
+    }
+
+    public TaskFilter withTag(String tag) {
+        this.tag = tag;
+        return this;
+    }
+
+    public TaskFilter withTaskName(String taskName) {
+        this.taskName = taskName;
+        return this;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public Class<? extends Task> getTaskClass() {
+        return taskClass;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getTaskName() {
+        return taskName;
+    }
+
+    /**
+     * @return true if this filter matches all tasks
+     */
+    boolean isEmpty() {
+        return queueName == null && taskClass == null && tag == null && taskName == null;
+    }
+
+    @Override
+    public boolean apply(Task task) {
+        return matches(getQueueName(task), task.getClass(), task.getTag(), task.getTaskName());
+    }
+
+    /**
+     * @return the queue name of the task, or the default queue if it has none
+     */
+    static String getQueueName(Task task) {
+        return task.getQueueName() == null? AbstractMockQueueServiceImpl.DEFAULT_QUEUE_NAME : task.getQueueName();
+    }
+
+    boolean matches(String queueName, Class<?> taskClass, String tag, String taskName) {
+        return (this.queueName == null || this.queueName.equals(queueName))
+                && (this.taskClass == null || this.taskClass.isAssignableFrom(taskClass))
+                && (this.tag == null || this.tag.equals(tag))
+                && (this.taskName == null || this.taskName.equals(taskName));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).omitNullValues()
+                .add("queueName", queueName)
+                .add("taskClass", taskClass == null? null : taskClass.getName())
+                .add("tag", tag)
+                .add("taskName", taskName)
+                .toString();
+    }
+
+}
@@ -0,0 +1,295 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Function;
+import org.queue4gae.queue.Task;
+
+import java.util.*;
+
+/**
+ * A queue of tasks indexed by queue name, task class, tag and task name, so that the tasks matching a
+ * {@link TaskFilter} can be found without scanning all of them. Tasks are sorted by a key calculated when they
+ * are added, and tasks with the same key keep the order in which they were added.
+ * The key and attributes of each task are indexed when it is added, and later changes to the task are ignored.
+ * The same instance may be added more than once. This class is thread-safe. Iterators work on a snapshot of the queue.
+ */
+public class TaskIndex extends AbstractQueue<Task> {
+
+    /** calculates the sort key of each task when it is added */
+    private final Function<? super Task, Long> sortKey;
+
+    /** all tasks, in order */
+    private final NavigableSet<Entry> entries = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int result = Long.compare(e1.sortKey, e2.sortKey);
+            return result != 0? result : Long.compare(e1.sequence, e2.sequence);
+        }
+    });
+
+    /** the entries of each task, in the order they were added. Tasks are compared by identity */
+    private final Map<Task, List<Entry>> tasks = new IdentityHashMap<Task, List<Entry>>();
+
+    private final Map<String, Set<Entry>> byQueueName = new HashMap<String, Set<Entry>>();
+
+    /** entries indexed by the exact class of the task */
+    private final Map<Class<?>, Set<Entry>> byClass = new HashMap<Class<?>, Set<Entry>>();
+
+    private final Map<String, Set<Entry>> byTag = new HashMap<String, Set<Entry>>();
+
+    private final Map<String, Set<Entry>> byTaskName = new HashMap<String, Set<Entry>>();
+
+    /** the sequence number of the next task added */
+    private long nextSequence;
+
+    /**
+     * @param sortKey calculates the key used to sort each task when it is added
+     */
+    public TaskIndex(Function<? super Task, Long> sortKey) {
+        this.sortKey = sortKey;
+    }
+
+    @Override
+    public synchronized boolean offer(Task task) {
+        Entry entry = new Entry(task, sortKey.apply(task), nextSequence++);
+        entries.add(entry);
+        List<Entry> taskEntries = tasks.get(task);
+        if (taskEntries == null) {
+            taskEntries = new ArrayList<Entry>(1);
+            tasks.put(task, taskEntries);
+        }
+        taskEntries.add(entry);
+        put(byQueueName, entry.queueName, entry);
+        put(byClass, entry.taskClass, entry);
+        put(byTag, entry.tag, entry);
+        put(byTaskName, entry.taskName, entry);
+        return true;
+    }
+
+    @Override
+    public synchronized Task poll() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        unindex(entry);
+        return entry.task;
+    }
+
+    @Override
+    public synchronized Task peek() {
+        return entries.isEmpty()? null : entries.first().task;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove the first entry added for the task
+     */
+    @Override
+    public synchronized boolean remove(Object o) {
+        List<Entry> taskEntries = tasks.get(o);
+        return taskEntries != null && removeEntry(taskEntries.get(0));
+    }
+
+    private synchronized boolean removeEntry(Entry entry) {
+        if (!entries.remove(entry)) {
+            return false;
+        }
+        unindex(entry);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        return tasks.containsKey(o);
+    }
+
+    /**
+     * @return a snapshot of the tasks in order. Removing a task through the iterator removes it from this queue
+     */
+    @Override
+    public synchronized Iterator<Task> iterator() {
+        final Iterator<Entry> snapshot = new ArrayList<Entry>(entries).iterator();
+        return new Iterator<Task>() {
+
+            private Entry current;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public Task next() {
+                current = snapshot.next();
+                return current.task;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                removeEntry(current);
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * @return the tasks that match the filter, in order
+     */
+    public synchronized List<Task> find(TaskFilter filter) {
+        return toTasks(findEntries(filter));
+    }
+
+    /**
+     * Remove the tasks that match the filter
+     * @return the tasks removed, in order
+     */
+    public synchronized List<Task> removeMatching(TaskFilter filter) {
+        List<Entry> found = findEntries(filter);
+        for (Entry entry : found) {
+            entries.remove(entry);
+            unindex(entry);
+        }
+        return toTasks(found);
+    }
+
+    /**
+     * Remove the tasks whose sort key is less than or equal to the provided value
+     * @return the tasks removed, in order
+     */
+    public synchronized List<Task> removeUntil(long maxSortKey) {
+        List<Task> removed = new ArrayList<Task>();
+        while (!entries.isEmpty() && entries.first().sortKey <= maxSortKey) {
+            Entry entry = entries.pollFirst();
+            unindex(entry);
+            removed.add(entry.task);
+        }
+        return removed;
+    }
+
+    /**
+     * Look up the smallest index that applies to the filter, and check the rest of attributes of its entries.
+     * Must be invoked holding the lock.
+     */
+    private List<Entry> findEntries(TaskFilter filter) {
+        if (filter.isEmpty()) {
+            return new ArrayList<Entry>(entries);
+        }
+        Collection<Entry> candidates = null;
+        if (filter.getTaskName() != null) {
+            candidates = smallest(candidates, get(byTaskName, filter.getTaskName()));
+        }
+        if (filter.getTag() != null) {
+            candidates = smallest(candidates, get(byTag, filter.getTag()));
+        }
+        if (filter.getQueueName() != null) {
+            candidates = smallest(candidates, get(byQueueName, filter.getQueueName()));
+        }
+        if (filter.getTaskClass() != null && (candidates == null || !candidates.isEmpty())) {
+            // the number of distinct classes is small compared to the number of tasks
+            List<Entry> ofClass = new ArrayList<Entry>();
+            for (Map.Entry<Class<?>, Set<Entry>> classEntries : byClass.entrySet()) {
+                if (filter.getTaskClass().isAssignableFrom(classEntries.getKey())) {
+                    ofClass.addAll(classEntries.getValue());
+                }
+            }
+            candidates = smallest(candidates, ofClass);
+        }
+        List<Entry> found = new ArrayList<Entry>();
+        for (Entry entry : candidates) {
+            if (filter.matches(entry.queueName, entry.taskClass, entry.tag, entry.taskName)) {
+                found.add(entry);
+            }
+        }
+        Collections.sort(found, entries.comparator());
+        return found;
+    }
+
+    private void unindex(Entry entry) {
+        List<Entry> taskEntries = tasks.get(entry.task);
+        taskEntries.remove(entry);
+        if (taskEntries.isEmpty()) {
+            tasks.remove(entry.task);
+        }
+        remove(byQueueName, entry.queueName, entry);
+        remove(byClass, entry.taskClass, entry);
+        remove(byTag, entry.tag, entry);
+        remove(byTaskName, entry.taskName, entry);
+    }
+
+    private static <K> void put(Map<K, Set<Entry>> index, K key, Entry entry) {
+        if (key == null) {
+            return;
+        }
+        Set<Entry> keyEntries = index.get(key);
+        if (keyEntries == null) {
+            keyEntries = new HashSet<Entry>();
+            index.put(key, keyEntries);
+        }
+        keyEntries.add(entry);
+    }
+
+    private static <K> void remove(Map<K, Set<Entry>> index, K key, Entry entry) {
+        if (key == null) {
+            return;
+        }
+        Set<Entry> keyEntries = index.get(key);
+        if (keyEntries != null && keyEntries.remove(entry) && keyEntries.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static <K> Collection<Entry> get(Map<K, Set<Entry>> index, K key) {
+        Set<Entry> keyEntries = index.get(key);
+        return keyEntries == null? Collections.<Entry>emptySet() : keyEntries;
+    }
+
+    private static Collection<Entry> smallest(Collection<Entry> c1, Collection<Entry> c2) {
+        return c1 == null || c2.size() < c1.size()? c2 : c1;
+    }
+
+    private static List<Task> toTasks(List<Entry> entries) {
+        List<Task> result = new ArrayList<Task>(entries.size());
+        for (Entry entry : entries) {
+            result.add(entry.task);
+        }
+        return result;
+    }
+
+    /**
+     * A task and the attributes it was indexed with. Entries are compared by identity
+     */
+    private static class Entry {
+
+        private final Task task;
+
+        private final long sortKey;
+
+        private final long sequence;
+
+        private final String queueName;
+
+        private final Class<?> taskClass;
+
+        private final String tag;
+
+        private final String taskName;
+
+        private Entry(Task task, long sortKey, long sequence) {
+            this.task = task;
+            this.sortKey = sortKey;
+            this.sequence = sequence;
+            this.queueName = TaskFilter.getQueueName(task);
+            this.taskClass = task.getClass();
+            this.tag = task.getTag();
+            this.taskName = task.getTaskName();
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package org.queue4gae.queue.mock;
+
+import org.queue4gae.queue.Task;
+
+/**
+ * Receives notifications about the lifecycle of tasks handled by a mock queue service.
+ * Used internally to instrument the mock services, e.g. by {@link LoadGenerator}.
+ */
+interface TaskListener {
+
+    /**
+     * Invoked when a task has been accepted by {@link org.queue4gae.queue.QueueService#post}, before it is
+     * available to be executed.
+     */
+    void taskPosted(Task task);
+
+    /**
+     * Invoked when a posted task has been replaced by a copy deserialized from JSON, e.g. after being spilled
+     * to disk. The copy is executed instead of the posted instance.
+     * @param postNanos the value of {@link System#nanoTime()} when the original task was posted
+     */
+    void taskReloaded(Task copy, long postNanos);
+
+    /**
+     * Invoked when a task has completed successfully. The task instance is the one that was posted,
+     * or its copy if it was reloaded.
+     */
+    void taskCompleted(Task task);
+
+}
@@ -0,0 +1,80 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Collects time samples and calculates simple statistics over them.
+ * The unit of the samples is up to the caller. This class is thread-safe.
+ */
+public class TimingStatistics {
+
+    /** the samples collected so far. Only the first {@link #count} values are used */
+    private long[] samples = new long[64];
+
+    /** number of samples collected */
+    private int count;
+
+    /** sum of all samples */
+    private long total;
+
+    /** the maximum sample collected */
+    private long max;
+
+    /**
+     * Add a new sample
+     */
+    public synchronized void add(long value) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = value;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return the number of samples collected
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the maximum sample value, 0 if no samples have been collected
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the average sample value, 0 if no samples have been collected
+     */
+    public synchronized double getMean() {
+        return count == 0? 0 : (double) total / count;
+    }
+
+    /**
+     * Calculate a percentile using the nearest-rank method.
+     * @param percentile a value between 0 and 100, e.g. 99 for the 99th percentile
+     * @return the sample value at the provided percentile, 0 if no samples have been collected
+     */
+    public synchronized long getPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100: %s", percentile);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + count + ", mean=" + Math.round(getMean()) + ", p50=" + getPercentile(50) +
+                ", p95=" + getPercentile(95) + ", p99=" + getPercentile(99) + ", max=" + max;
+    }
+
+}
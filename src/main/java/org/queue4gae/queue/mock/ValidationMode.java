@@ -0,0 +1,18 @@
+package org.queue4gae.queue.mock;
+
+/**
+ * Controls when the mock queue services check that tasks can be serialized and deserialized as JSON before
+ * executing them.
+ */
+public enum ValidationMode {
+
+    /** Serialize and deserialize every task, and execute the deserialized copy. This is the default. */
+    ALWAYS,
+
+    /** Serialize and deserialize only the first task of each class. The rest are executed as they were posted. */
+    FIRST_PER_CLASS,
+
+    /** Execute tasks as they were posted, without serializing them */
+    NEVER
+
+}
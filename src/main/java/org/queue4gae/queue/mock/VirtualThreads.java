@@ -0,0 +1,100 @@
+package org.queue4gae.queue.mock;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates consumer threads as virtual threads when the JVM supports them (Java 21 or later). The methods
+ * are looked up using reflection, so this library can still be compiled and executed with Java 7.
+ */
+final class VirtualThreads {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /** the builder of virtual threads returned by Thread.ofVirtual(), null if not supported */
+    private static final Object BUILDER;
+
+    /** Thread.Builder.factory() */
+    private static final Method FACTORY;
+
+    static {
+        Object builder = null;
+        Method factory = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+        } catch (ReflectiveOperationException e) {
+            // not supported, or a preview feature that has not been enabled
+            builder = null;
+        }
+        BUILDER = builder;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads
+     */
+    static boolean isSupported() {
+        return BUILDER != null;
+    }
+
+    /**
+     * @param virtual true to create virtual threads if supported
+     * @return a factory of virtual threads, or {@link ThreadManager#currentRequestThreadFactory()} if not requested
+     * or not supported
+     */
+    static ThreadFactory consumerThreadFactory(boolean virtual) {
+        if (!virtual) {
+            return ThreadManager.currentRequestThreadFactory();
+        }
+        if (!isSupported()) {
+            log.warn("Virtual threads are not supported by this JVM, using platform threads");
+            return ThreadManager.currentRequestThreadFactory();
+        }
+        try {
+            return new EnvironmentThreadFactory((ThreadFactory) FACTORY.invoke(BUILDER), ApiProxy.getCurrentEnvironment());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies the App Engine environment of the thread that creates the factory to each new thread, as
+     * {@link ThreadManager#currentRequestThreadFactory()} does, so that tasks can invoke App Engine services
+     */
+    private static class EnvironmentThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory delegate;
+
+        private final ApiProxy.Environment environment;
+
+        private EnvironmentThreadFactory(ThreadFactory delegate, ApiProxy.Environment environment) {
+            this.delegate = delegate;
+            this.environment = environment;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return delegate.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        runnable.run();
+                    } finally {
+                        ApiProxy.clearEnvironmentForCurrentThread();
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.queue4gae.queue.mock;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Ticker that only advances when told to. Use it with the mock queue services and {@link org.queue4gae.queue.CursorTask}
+ * to simulate long executions and delayed tasks without actually waiting.
+<pre>
+VirtualTicker ticker = new VirtualTicker();
+queueService.withTicker(ticker);
+queueService.post(new MyTask().withDelaySeconds(3600));
+
+ticker.advance(1, TimeUnit.HOURS);
+queueService.runDueDelayedTasks();
+</pre>
+ */
+public class VirtualTicker extends Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    /**
+     * Move the time forward
+     */
+    public VirtualTicker advance(long time, TimeUnit unit) {
+        nanos.addAndGet(unit.toNanos(time));
+        return this;
+    }
+
+    @Override
+    public long read() {
+        return nanos.get();
+    }
+
+}
@@ -0,0 +1,19 @@
+package org.queue4gae.queue.mock;
+
+import org.queue4gae.queue.Task;
+
+/**
+ * Creates the tasks to be posted by a {@link LoadGenerator}.
+ * Tasks may post other tasks when executed (fan-out, CursorTask continuations, etc), and all of them will be
+ * included in the final {@link LoadReport}.
+ */
+public interface Workload {
+
+    /**
+     * Create a new task to post.
+     * @param index the number of tasks created so far by this workload, starting at 0
+     * @return the task to post
+     */
+    Task createTask(int index);
+
+}
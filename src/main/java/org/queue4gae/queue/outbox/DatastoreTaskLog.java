@@ -0,0 +1,159 @@
+package org.queue4gae.queue.outbox;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A task log stored in the datastore. If there is an active transaction, tasks are stored as part of it,
+ * so they are committed atomically with the business data. All entries appended in the same transaction
+ * share a parent key, so they add a single entity group to the transaction (which must be cross-group
+ * if it also modifies business data).
+ * <p>
+ * Entries read by {@link #readPending(int)} are leased, so that the flushers of other instances do not post
+ * them at the same time. Entries that are not acknowledged before the lease expires are returned again.
+ * Entries are read in the order they became available, as long as the clocks of the instances are reasonably
+ * synchronized. Since the query is eventually consistent, entries that were just appended may only be read
+ * by a later flush.
+ */
+public class DatastoreTaskLog implements TaskLog {
+
+    /** the entity kind used to store tasks */
+    public static final String KIND = "Queue4GaeOutbox";
+
+    /** the kind of the parent keys of tasks. These entities are never stored */
+    public static final String PARENT_KIND = "Queue4GaeOutboxGroup";
+
+    /** default value for {@link #withLease(long, TimeUnit)}, in milliseconds */
+    public static final long DEFAULT_LEASE = 60000;
+
+    private static final String PAYLOAD = "payload";
+
+    /** the time when the entry can be read, after it was created or its lease expires */
+    private static final String AVAILABLE = "available";
+
+    private final DatastoreService datastore;
+
+    /** the time that entries stay leased after being read, in milliseconds */
+    private long leaseMillis = DEFAULT_LEASE;
+
+    public DatastoreTaskLog() {
+        this(DatastoreServiceFactory.getDatastoreService());
+    }
+
+    public DatastoreTaskLog(DatastoreService datastore) {
+        this.datastore = datastore;
+    }
+
+    /**
+     * Set the time that entries stay leased after being read. Should be longer than the time needed to post them.
+     * Default is one minute.
+     */
+    public DatastoreTaskLog withLease(long duration, TimeUnit unit) {
+        this.leaseMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    @Override
+    public void append(List<String> payloads) {
+        Transaction transaction = datastore.getCurrentTransaction(null);
+        Key parent = KeyFactory.createKey(PARENT_KIND, transaction == null? UUID.randomUUID().toString() : transaction.getId());
+        long now = System.currentTimeMillis();
+        List<Entity> entities = new ArrayList<Entity>(payloads.size());
+        for (String payload : payloads) {
+            Entity entity = new Entity(KIND, parent);
+            entity.setUnindexedProperty(PAYLOAD, new Text(payload));
+            entity.setProperty(AVAILABLE, now);
+            entities.add(entity);
+        }
+        datastore.put(transaction, entities);
+    }
+
+    /**
+     * @return the oldest entries that are not leased, leasing them
+     */
+    @Override
+    public List<Entry> readPending(int max) {
+        long now = System.currentTimeMillis();
+        Query query = new Query(KIND)
+                .setFilter(new Query.FilterPredicate(AVAILABLE, Query.FilterOperator.LESS_THAN_OR_EQUAL, now))
+                .addSort(AVAILABLE)
+                .setKeysOnly();
+        Map<Key, List<Key>> groups = new LinkedHashMap<Key, List<Key>>();
+        for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withLimit(max))) {
+            Key parent = entity.getKey().getParent();
+            List<Key> keys = groups.get(parent);
+            if (keys == null) {
+                keys = new ArrayList<Key>();
+                groups.put(parent, keys);
+            }
+            keys.add(entity.getKey());
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (List<Key> keys : groups.values()) {
+            for (Entity entity : lease(keys, now)) {
+                entries.add(new Entry(KeyFactory.keyToString(entity.getKey()), ((Text) entity.getProperty(PAYLOAD)).getValue()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Lease the entries of an entity group that are still available
+     * @return the leased entries, empty if another instance leased them first
+     */
+    private Collection<Entity> lease(List<Key> keys, long now) {
+        Transaction tx = datastore.beginTransaction();
+        try {
+            List<Entity> leased = new ArrayList<Entity>(keys.size());
+            for (Entity entity : datastore.get(tx, keys).values()) {
+                // acknowledged or leased since the query was executed
+                if ((Long) entity.getProperty(AVAILABLE) <= now) {
+                    entity.setProperty(AVAILABLE, now + leaseMillis);
+                    leased.add(entity);
+                }
+            }
+            datastore.put(tx, leased);
+            tx.commit();
+            return leased;
+        } catch (ConcurrentModificationException e) {
+            return new ArrayList<Entity>();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+
+    @Override
+    public void acknowledge(Collection<String> ids) {
+        List<Key> keys = new ArrayList<Key>(ids.size());
+        for (String id : ids) {
+            keys.add(KeyFactory.stringToKey(id));
+        }
+        datastore.delete((Transaction) null, keys);
+    }
+
+    /**
+     * @return the number of entries that have not been acknowledged, including leased entries
+     */
+    public int getPendingCount() {
+        return datastore.prepare(new Query(KIND).setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+}
@@ -0,0 +1,198 @@
+package org.queue4gae.queue.outbox;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A write-ahead log stored in a local file. Tasks and acknowledgements are appended as lines, and every append
+ * is forced to disk before returning. A line that was not completely written before a crash is discarded
+ * when the log is opened again. The file is truncated when all entries are acknowledged, and compacted
+ * when it accumulates too many acknowledged entries.
+ * Since AppEngine instances do not share a file system, this is intended for tests and for
+ * servers with local persistent storage. Pending entries are also kept in memory.
+ * <pre>
+ * P	{id}	{task JSON}
+ * A	{id}
+ * </pre>
+ */
+public class FileTaskLog implements TaskLog {
+
+    /** the number of acknowledged entries that will trigger a compaction of the file */
+    private static final int COMPACTION_THRESHOLD = 10000;
+
+    private static final CharMatcher DIGITS = CharMatcher.inRange('0', '9');
+
+    private final File file;
+
+    private FileChannel channel;
+
+    /** entries not acknowledged yet, in order */
+    private final Map<String, String> pending = new LinkedHashMap<String, String>();
+
+    /** the id of the next appended entry */
+    private long nextId;
+
+    /** the number of acknowledged entries in the file */
+    private int acknowledged;
+
+    /**
+     * Open a log, recovering the entries that were not acknowledged
+     */
+    public FileTaskLog(File file) throws IOException {
+        this.file = file;
+        long length = file.exists()? recover() : 0;
+        this.channel = new FileOutputStream(file, true).getChannel();
+        if (channel.size() > length) {
+            // cut off the partial line, so that the next line is not appended to it
+            channel.truncate(length);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Read the entries of the file, ignoring a last line without line terminator
+     * @return the length of the file up to the end of the last complete line, in bytes
+     */
+    private long recover() throws IOException {
+        byte[] content = Files.toByteArray(file);
+        int start = 0;
+        for (int end = 0; end < content.length; end++) {
+            if (content[end] == '\n') {
+                recover(new String(content, start, end - start, Charsets.UTF_8));
+                start = end + 1;
+            }
+        }
+        return start;
+    }
+
+    private void recover(String line) {
+        int tab = line.indexOf('\t', 2);
+        if (line.startsWith("P\t") && tab > 0 && isId(line.substring(2, tab))) {
+            String id = line.substring(2, tab);
+            pending.put(id, line.substring(tab + 1));
+            nextId = Math.max(nextId, Long.parseLong(id) + 1);
+        } else if (line.startsWith("A\t") && isId(line.substring(2))) {
+            pending.remove(line.substring(2));
+            acknowledged++;
+        }
+    }
+
+    private static boolean isId(String id) {
+        return !id.isEmpty() && DIGITS.matchesAllOf(id);
+    }
+
+    @Override
+    public synchronized void append(List<String> payloads) {
+        StringBuilder lines = new StringBuilder();
+        List<String> ids = new ArrayList<String>(payloads.size());
+        for (String payload : payloads) {
+            String id = String.valueOf(nextId++);
+            ids.add(id);
+            lines.append("P\t").append(id).append('\t').append(payload).append('\n');
+        }
+        write(lines);
+        for (int i = 0; i < ids.size(); i++) {
+            pending.put(ids.get(i), payloads.get(i));
+        }
+    }
+
+    @Override
+    public synchronized List<Entry> readPending(int max) {
+        List<Entry> entries = new ArrayList<Entry>(Math.min(max, pending.size()));
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            if (entries.size() == max) {
+                break;
+            }
+            entries.add(new Entry(entry.getKey(), entry.getValue()));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized void acknowledge(Collection<String> ids) {
+        StringBuilder lines = new StringBuilder();
+        for (String id : ids) {
+            if (pending.remove(id) != null) {
+                lines.append("A\t").append(id).append('\n');
+                acknowledged++;
+            }
+        }
+        try {
+            if (pending.isEmpty()) {
+                channel.truncate(0);
+                channel.force(true);
+                acknowledged = 0;
+            } else if (acknowledged > COMPACTION_THRESHOLD) {
+                compact();
+            } else {
+                write(lines);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Rewrite the file with the pending entries only
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel tmpChannel = new FileOutputStream(tmp).getChannel();
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, String> entry : pending.entrySet()) {
+                lines.append("P\t").append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+            }
+            write(tmpChannel, lines);
+        } finally {
+            tmpChannel.close();
+        }
+        channel.close();
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        channel = new FileOutputStream(file, true).getChannel();
+        acknowledged = 0;
+    }
+
+    private void write(CharSequence lines) {
+        try {
+            write(channel, lines);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void write(FileChannel channel, CharSequence lines) throws IOException {
+        ByteBuffer buffer = Charsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Close the file. Pending entries will be recovered the next time the log is opened.
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the number of entries not acknowledged yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+}
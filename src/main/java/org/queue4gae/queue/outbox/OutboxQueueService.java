@@ -0,0 +1,231 @@
+package org.queue4gae.queue.outbox;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.QueueServiceImpl;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A QueueService that stores tasks in a {@link TaskLog} before posting them, so that tasks are not lost if the
+ * instance dies before they reach the queue. Tasks are posted in batches by {@link #flush()}, which may be
+ * invoked explicitly (e.g. at the end of each request) or periodically by a background flusher.
+ * Tasks that were appended but not acknowledged are posted again when the flusher is started, which means
+ * that a task may be posted more than once: use task names or deduplication
+ * ({@link org.queue4gae.queue.QueueOptions#withDeduplication(int)}) if that is a problem.
+<pre>
+OutboxQueueService outbox = new OutboxQueueService(queueServiceImpl, new DatastoreTaskLog());
+outbox.setObjectMapper(objectMapper);
+outbox.start(1, TimeUnit.SECONDS);
+</pre>
+ */
+public class OutboxQueueService implements QueueService {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxQueueService.class);
+
+    /** the queue service that will receive the tasks */
+    private final QueueService delegate;
+
+    private final TaskLog taskLog;
+
+    private ObjectMapper objectMapper;
+
+    /** the creator of the flusher thread. If null, a background thread will be used */
+    private ThreadFactory threadFactory;
+
+    private ScheduledExecutorService flusher;
+
+    /** if not null, attaches trace metadata to tasks when they are appended to the log */
+    private Tracer tracer;
+
+    public OutboxQueueService(QueueService delegate, TaskLog taskLog) {
+        this.delegate = delegate;
+        this.taskLog = taskLog;
+    }
+
+    /**
+     * Store the task in the log. The task will be posted by the next {@link #flush()}
+     * @return a handle without status, since the task has not been posted yet
+     */
+    @Override
+    public TaskHandle post(Task task) {
+        postAll(ImmutableList.of(task));
+        return new TaskHandle(task.getTaskName(), task.getEtaMillis(), null, null);
+    }
+
+    /**
+     * Store the tasks in the log with a single append. The tasks will be posted by the next {@link #flush()}
+     */
+    @Override
+    public void postAll(Iterable<? extends Task> tasks) {
+        try {
+            List<String> payloads = new ArrayList<String>();
+            for (Task task : tasks) {
+                if (tracer != null) {
+                    tracer.attach(task);
+                }
+                payloads.add(objectMapper.writeValueAsString(task));
+            }
+            taskLog.append(payloads);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void run(Task task) {
+        delegate.run(task);
+    }
+
+    /**
+     * Attach trace metadata when tasks are appended to the log, so that the enqueue time includes the time
+     * spent in the log. The delegate keeps the metadata when posting them.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Post all pending tasks in the log, in batches of up to {@value QueueServiceImpl#MAX_BATCH_SIZE} tasks,
+     * and acknowledge them. Tasks are posted separately for each queue, and only the tasks of queues that
+     * accepted them are acknowledged; the rest will be posted again by the next flush.
+     * @return the number of tasks posted
+     */
+    public synchronized int flush() {
+        int count = 0;
+        List<TaskLog.Entry> entries;
+        do {
+            entries = taskLog.readPending(QueueServiceImpl.MAX_BATCH_SIZE);
+            if (entries.isEmpty()) {
+                break;
+            }
+            Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+            List<String> unreadable = new ArrayList<String>();
+            for (TaskLog.Entry entry : entries) {
+                try {
+                    Task task = objectMapper.readValue(entry.getPayload(), AbstractTask.class);
+                    Batch batch = batches.get(task.getQueueName());
+                    if (batch == null) {
+                        batch = new Batch();
+                        batches.put(task.getQueueName(), batch);
+                    }
+                    batch.tasks.add(task);
+                    batch.ids.add(entry.getId());
+                } catch (IOException e) {
+                    log.error("Discarding unreadable task " + entry.getId() + ": " + entry.getPayload(), e);
+                    unreadable.add(entry.getId());
+                }
+            }
+            if (!unreadable.isEmpty()) {
+                taskLog.acknowledge(unreadable);
+            }
+            RuntimeException failure = null;
+            for (Batch batch : batches.values()) {
+                try {
+                    delegate.postAll(batch.tasks);
+                } catch (TaskAlreadyExistsException e) {
+                    // posted before a crash, or a duplicate name. The rest of tasks have been posted
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    continue;
+                }
+                taskLog.acknowledge(batch.ids);
+                count += batch.tasks.size();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } while (entries.size() == QueueServiceImpl.MAX_BATCH_SIZE);
+        return count;
+    }
+
+    /**
+     * Post any task left by a previous execution, then start flushing the log periodically
+     * @param interval the time between flushes
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        Preconditions.checkState(flusher == null, "Already started");
+        int replayed = flush();
+        if (replayed > 0) {
+            log.info("Replayed " + replayed + " tasks from the task log");
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(threadFactory == null? ThreadManager.backgroundThreadFactory() : threadFactory);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    // keep the flusher alive, the tasks will be posted next time
+                    log.error("Error flushing the task log", e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stop the background flusher, and post any pending task
+     */
+    public void stop() {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = this.flusher;
+            this.flusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Set the creator of the flusher thread. Default is {@link ThreadManager#backgroundThreadFactory()},
+     * which requires a backend or manually scaled module.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    @Inject
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * The tasks read from the log for the same queue
+     */
+    private static class Batch {
+
+        private final List<Task> tasks = new ArrayList<Task>();
+
+        private final List<String> ids = new ArrayList<String>();
+
+    }
+
+}
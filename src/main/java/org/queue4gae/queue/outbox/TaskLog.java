@@ -0,0 +1,59 @@
+package org.queue4gae.queue.outbox;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Durable storage for tasks that have not been posted to the queue yet.
+ * Implementations must be thread-safe.
+ * @see OutboxQueueService
+ */
+public interface TaskLog {
+
+    /**
+     * Durably store tasks. When this method returns, the tasks must survive a crash of the instance.
+     * @param payloads the tasks serialized as JSON
+     */
+    void append(List<String> payloads);
+
+    /**
+     * Implementations shared by several instances should lease the returned entries, so that they are not
+     * returned to other instances unless the lease expires before they are acknowledged.
+     * @param max the maximum number of entries to return
+     * @return the oldest entries that have not been acknowledged
+     */
+    List<Entry> readPending(int max);
+
+    /**
+     * Remove entries that have been posted to the queue
+     * @param ids the ids of the entries, as returned by {@link #readPending(int)}
+     */
+    void acknowledge(Collection<String> ids);
+
+    /**
+     * A task stored in the log
+     */
+    class Entry {
+
+        private final String id;
+
+        private final String payload;
+
+        public Entry(String id, String payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the task serialized as JSON
+         */
+        public String getPayload() {
+            return payload;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.queue4gae.queue.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps finished spans in memory. Intended for testing.
+ */
+public class InMemorySpanExporter implements SpanExporter {
+
+    private final List<Span> spans = new CopyOnWriteArrayList<Span>();
+
+    @Override
+    public void export(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * @return the spans exported so far, in the order they finished
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    /**
+     * @return the spans of the given trace, in the order they finished
+     */
+    public List<Span> getSpans(String traceId) {
+        List<Span> result = new ArrayList<Span>();
+        for (Span span : spans) {
+            if (span.getTraceId().equals(traceId)) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        spans.clear();
+    }
+
+}
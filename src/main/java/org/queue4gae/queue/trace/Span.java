@@ -0,0 +1,105 @@
+package org.queue4gae.queue.trace;
+
+/**
+ * The execution of a task or request, as recorded by a {@link Tracer}
+ */
+public class Span {
+
+    private final String traceId;
+
+    private final String spanId;
+
+    /** the ID of the span that posted or invoked this one, null for the first span of a trace */
+    private final String parentSpanId;
+
+    /** the task class, or the name provided to {@link Tracer#startSpan(String)} */
+    private final String name;
+
+    /** the queue of the task, null if not a task */
+    private final String queueName;
+
+    /** the name of the span that posted the task, if known */
+    private final String producer;
+
+    /** the time the task waited in the queue before starting, in milliseconds. 0 if not posted to a queue */
+    private final long dwellMillis;
+
+    /** when this span started, in milliseconds since the epoch */
+    private final long startMillis;
+
+    /** used to measure the duration of this span */
+    private final long startNanos = System.nanoTime();
+
+    private long durationMillis;
+
+    /** the class of the exception thrown, null if finished successfully */
+    private String error;
+
+    /** the span that was current before this one started, restored when it finishes */
+    final Span previous;
+
+    Span(String traceId, String spanId, String parentSpanId, String name, String queueName, String producer,
+         long dwellMillis, long startMillis, Span previous) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.queueName = queueName;
+        this.producer = producer;
+        this.dwellMillis = dwellMillis;
+        this.startMillis = startMillis;
+        this.previous = previous;
+    }
+
+    void finish(Throwable failure) {
+        this.durationMillis = (System.nanoTime() - startNanos) / 1000000;
+        this.error = failure == null? null : failure.getClass().getName();
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public String getProducer() {
+        return producer;
+    }
+
+    public long getDwellMillis() {
+        return dwellMillis;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + traceId + "/" + spanId + (parentSpanId == null? "" : " parent=" + parentSpanId)
+                + " dwell=" + dwellMillis + "ms duration=" + durationMillis + "ms" + (error == null? "" : " error=" + error);
+    }
+
+}
@@ -0,0 +1,14 @@
+package org.queue4gae.queue.trace;
+
+/**
+ * Receives the spans finished by a {@link Tracer}, e.g. to send them to a tracing backend.
+ * Implementations must be thread-safe.
+ */
+public interface SpanExporter {
+
+    /**
+     * Export a finished span. Exceptions thrown here are logged and do not affect the execution of tasks.
+     */
+    void export(Span span);
+
+}
@@ -0,0 +1,155 @@
+package org.queue4gae.queue.trace;
+
+import com.google.common.base.Preconditions;
+import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInvocation;
+import org.queue4gae.queue.TraceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Links the execution of each task with the request or task that posted it. When a task is posted, the
+ * QueueService attaches the current trace and the enqueue time to its payload. When it is executed, a span
+ * is recorded with the time spent waiting in the queue and the time spent executing, and sent to the
+ * {@link SpanExporter}. Spans of tasks posted by other tasks have the producer span as parent.
+<pre>
+Tracer tracer = new Tracer(exporter);
+queueService.setTracer(tracer);
+
+// in the request that posts tasks
+Span span = tracer.startSpan("/import");
+try {
+    queueService.post(new ImportTask());
+} finally {
+    tracer.finishSpan(span);
+}
+</pre>
+ */
+public class Tracer implements TaskInterceptor {
+
+    private final SpanExporter exporter;
+
+    /** the span being executed by the current thread, if any */
+    private final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    public Tracer(SpanExporter exporter) {
+        this.exporter = Preconditions.checkNotNull(exporter);
+    }
+
+    /**
+     * Attach the current trace to a task that is about to be posted. Outside of any span, a task that already
+     * carries a trace keeps it (e.g. when it is posted again from a durable log), and other tasks start a new trace.
+     * This method should be called internally by the QueueService.
+     */
+    public void attach(Task task) {
+        AbstractTask abstractTask = (AbstractTask) task;
+        Span span = currentSpan.get();
+        long now = System.currentTimeMillis();
+        if (span != null) {
+            abstractTask.setTraceContext(new TraceContext(span.getTraceId(), span.getSpanId(), span.getName(), now));
+        } else if (abstractTask.getTraceContext() == null) {
+            abstractTask.setTraceContext(new TraceContext(newId(2), null, null, now));
+        }
+    }
+
+    /**
+     * Start a span in the current thread, e.g. for the request that will post tasks. The span is a child
+     * of the current span, if any.
+     */
+    public Span startSpan(String name) {
+        Span parent = currentSpan.get();
+        Span span = parent == null?
+                new Span(newId(2), newId(1), null, name, null, null, 0, System.currentTimeMillis(), null) :
+                new Span(parent.getTraceId(), newId(1), parent.getSpanId(), name, null, parent.getName(), 0, System.currentTimeMillis(), parent);
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Finish a span started with {@link #startSpan(String)} and export it
+     */
+    public void finishSpan(Span span) {
+        finishSpan(span, null);
+    }
+
+    /**
+     * @return the span being executed by the current thread, null if none
+     */
+    public Span getCurrentSpan() {
+        return currentSpan.get();
+    }
+
+    @Override
+    public boolean appliesTo(Class<? extends Task> taskClass) {
+        return true;
+    }
+
+    /**
+     * Execute the task as a span. Tasks posted to a queue are children of the span that posted them,
+     * and tasks executed directly by other tasks are children of the current span.
+     */
+    @Override
+    public void intercept(TaskInvocation invocation) {
+        Task task = invocation.getTask();
+        TraceContext context = ((AbstractTask) task).getTraceContext();
+        String name = task.getClass().getName();
+        long now = System.currentTimeMillis();
+        Span previous = currentSpan.get();
+        Span span;
+        if (context != null) {
+            span = new Span(context.getTraceId(), newId(1), context.getSpanId(), name, task.getQueueName(), context.getProducer(),
+                    Math.max(0, now - context.getEnqueuedMillis()), now, previous);
+        } else if (previous != null) {
+            span = new Span(previous.getTraceId(), newId(1), previous.getSpanId(), name, task.getQueueName(), previous.getName(), 0, now, previous);
+        } else {
+            span = new Span(newId(2), newId(1), null, name, task.getQueueName(), null, 0, now, null);
+        }
+        currentSpan.set(span);
+        Throwable failure = null;
+        try {
+            invocation.proceed();
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            finishSpan(span, failure);
+        }
+    }
+
+    private void finishSpan(Span span, Throwable failure) {
+        span.finish(failure);
+        if (span.previous == null) {
+            currentSpan.remove();
+        } else {
+            currentSpan.set(span.previous);
+        }
+        try {
+            exporter.export(span);
+        } catch (RuntimeException e) {
+            log.error("Cannot export span " + span, e);
+        }
+    }
+
+    /**
+     * @return a random hexadecimal identifier of the given number of 64-bit words
+     */
+    private static String newId(int words) {
+        Random random = ThreadLocalRandom.current();
+        StringBuilder id = new StringBuilder(words * 16);
+        for (int i = 0; i < words; i++) {
+            id.append(String.format("%016x", random.nextLong()));
+        }
+        return id.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.queue4gae.queue.workflow;
+
+import com.google.appengine.api.datastore.*;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+/**
+ * A counter of completed tasks, split into a number of shards to avoid contention on a single entity.
+ * Each task is counted only once, even if it is executed more than once: a marker entity is stored for
+ * each counted task in the same entity group as its shard.
+ */
+public class ShardedCounter {
+
+    /** the kind of shard entities */
+    public static final String SHARD_KIND = "Queue4GaeCounterShard";
+
+    /** the kind of marker entities, child of shard entities */
+    public static final String MARKER_KIND = "Queue4GaeCounterMarker";
+
+    /** the property used to store the count of each shard */
+    private static final String COUNT_PROPERTY = "count";
+
+    /** number of times a transaction will be retried in case of contention */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final DatastoreService datastoreService = DatastoreServiceFactory.getDatastoreService();
+
+    /** the name of this counter */
+    private final String name;
+
+    /** the number of shards */
+    private final int shards;
+
+    public ShardedCounter(String name, int shards) {
+        this.name = name;
+        this.shards = shards;
+    }
+
+    /**
+     * Count a task. Invoking this method again with the same index does nothing.
+     * @param index the index of the task to count, starting at 0
+     */
+    public void increment(int index) {
+        Key shardKey = getShardKey(index % shards);
+        Key markerKey = KeyFactory.createKey(shardKey, MARKER_KIND, index + 1);
+        for (int attempt = 1; ; attempt++) {
+            Transaction tx = datastoreService.beginTransaction();
+            try {
+                try {
+                    datastoreService.get(tx, markerKey);
+                    // already counted
+                    tx.rollback();
+                    return;
+                } catch (EntityNotFoundException e) {
+                    // not counted yet
+                }
+                Entity shard;
+                try {
+                    shard = datastoreService.get(tx, shardKey);
+                } catch (EntityNotFoundException e) {
+                    shard = new Entity(shardKey);
+                    shard.setUnindexedProperty(COUNT_PROPERTY, 0L);
+                }
+                shard.setUnindexedProperty(COUNT_PROPERTY, (Long) shard.getProperty(COUNT_PROPERTY) + 1);
+                datastoreService.put(tx, shard);
+                datastoreService.put(tx, new Entity(markerKey));
+                tx.commit();
+                return;
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks counted, adding all shards
+     */
+    public long getCount() {
+        long count = 0;
+        for (Entity shard : datastoreService.get(getShardKeys()).values()) {
+            count += (Long) shard.getProperty(COUNT_PROPERTY);
+        }
+        return count;
+    }
+
+    /**
+     * Delete all shards and markers of this counter
+     */
+    public void delete() {
+        List<Key> keys = new ArrayList<Key>();
+        for (Key shardKey : getShardKeys()) {
+            Query query = new Query(MARKER_KIND).setAncestor(shardKey).setKeysOnly();
+            for (Entity marker : datastoreService.prepare(query).asIterable()) {
+                keys.add(marker.getKey());
+            }
+            keys.add(shardKey);
+        }
+        datastoreService.delete(keys);
+    }
+
+    private List<Key> getShardKeys() {
+        List<Key> keys = new ArrayList<Key>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(getShardKey(i));
+        }
+        return keys;
+    }
+
+    private Key getShardKey(int shard) {
+        return KeyFactory.createKey(SHARD_KIND, name + "-" + shard);
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.queue4gae.queue.workflow;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Executes tasks in a sequence of steps. Each step may be a single task or a group of tasks executed in parallel,
+ * and will only start when all the tasks of the previous step have completed.
+<pre>
+new Workflow(queueService, objectMapper)
+    .then(new PrepareTask())
+    .fanOut(processTasks)
+    .join(new ReportTask())
+    .start();
+</pre>
+ * The tasks of the steps after the first one are stored in the datastore when the workflow starts, so the
+ * payload of each task does not grow with the size of the workflow.
+ * Completion of parallel tasks is tracked using a {@link ShardedCounter}, so that thousands of tasks finishing
+ * at the same time do not contend for a single entity.
+ * Tasks are executed using {@link QueueService#run}, so a task that re-posts itself (like a CursorTask that
+ * runs out of time) completes its step when its first execution finishes.
+ */
+public class Workflow {
+
+    /** default number of counter shards for each parallel step */
+    public static final int DEFAULT_SHARDS = 20;
+
+    private final QueueService queueService;
+
+    /** serializes the tasks of the steps after the first one. Must be configured like the one used by the QueueService */
+    private final ObjectMapper objectMapper;
+
+    /** the steps of this workflow, in order */
+    private final List<List<Task>> steps = new ArrayList<List<Task>>();
+
+    /** the unique id of this workflow, used to name tasks and counters */
+    private String id = UUID.randomUUID().toString();
+
+    /** number of counter shards for each parallel step */
+    private int shards = DEFAULT_SHARDS;
+
+    public Workflow(QueueService queueService, ObjectMapper objectMapper) {
+        this.queueService = queueService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Add a step with a single task
+     */
+    public Workflow then(Task task) {
+        steps.add(ImmutableList.of(task));
+        return this;
+    }
+
+    /**
+     * Add a step with tasks that will be executed in parallel
+     */
+    public Workflow fanOut(Collection<? extends Task> tasks) {
+        Preconditions.checkArgument(!tasks.isEmpty(), "Cannot fan out an empty collection of tasks");
+        steps.add(ImmutableList.<Task>copyOf(tasks));
+        return this;
+    }
+
+    /**
+     * Add a task to be executed when all tasks of the previous step have completed.
+     * This is the same as {@link #then(Task)}, and reads better after {@link #fanOut(Collection)}
+     */
+    public Workflow join(Task callback) {
+        return then(callback);
+    }
+
+    /**
+     * Set the unique id of this workflow, used to name its tasks. By default a random UUID is used.
+     */
+    public Workflow withId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * Set the number of counter shards used to track the completion of each parallel step.
+     * Default is {@value #DEFAULT_SHARDS}.
+     */
+    public Workflow withShards(int shards) {
+        Preconditions.checkArgument(shards > 0, "shards must be positive");
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * Store the tasks of the rest of steps, and post the tasks of the first step
+     * @return the workflow id
+     */
+    public String start() {
+        Preconditions.checkState(!steps.isEmpty(), "The workflow has no steps");
+        List<Integer> stepSizes = new ArrayList<Integer>(steps.size());
+        WorkflowPlan plan = new WorkflowPlan(objectMapper, id);
+        for (int step = 0; step < steps.size(); step++) {
+            stepSizes.add(steps.get(step).size());
+            if (step > 0) {
+                plan.save(step, steps.get(step));
+            }
+        }
+        queueService.postAll(WorkflowTask.createStep(id, 0, shards, stepSizes, steps.get(0)));
+        return id;
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.queue4gae.queue.workflow;
+
+import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Lists;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.Task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tasks of the steps of a workflow, stored in the datastore when the workflow starts so that each
+ * posted task only carries its own position instead of the rest of the workflow.
+ * Each task is stored in its own entity, named after the workflow id, the step and its index in the step.
+ */
+class WorkflowPlan {
+
+    /** the kind of the entities that store each task */
+    public static final String TASK_KIND = "Queue4GaeWorkflowTask";
+
+    private static final String PAYLOAD_PROPERTY = "payload";
+
+    /** the maximum number of entities read or written in a single call */
+    private static final int BATCH_SIZE = 500;
+
+    private final DatastoreService datastoreService = DatastoreServiceFactory.getDatastoreService();
+
+    private final ObjectMapper objectMapper;
+
+    /** the unique id of the workflow */
+    private final String workflowId;
+
+    WorkflowPlan(ObjectMapper objectMapper, String workflowId) {
+        this.objectMapper = objectMapper;
+        this.workflowId = workflowId;
+    }
+
+    /**
+     * Store the tasks of a step
+     */
+    void save(int step, List<Task> tasks) {
+        try {
+            List<Entity> entities = new ArrayList<Entity>(tasks.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                Entity entity = new Entity(getKey(step, i));
+                entity.setUnindexedProperty(PAYLOAD_PROPERTY, new Text(objectMapper.writeValueAsString(tasks.get(i))));
+                entities.add(entity);
+            }
+            for (List<Entity> batch : Lists.partition(entities, BATCH_SIZE)) {
+                datastoreService.put((Transaction) null, batch);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param size the number of tasks of the step
+     * @return the tasks of the step, or null if the plan has already been deleted
+     */
+    List<Task> load(int step, int size) {
+        try {
+            List<Task> tasks = new ArrayList<Task>(size);
+            for (List<Key> batch : Lists.partition(getKeys(step, size), BATCH_SIZE)) {
+                Map<Key, Entity> entities = datastoreService.get((Transaction) null, batch);
+                for (Key key : batch) {
+                    Entity entity = entities.get(key);
+                    if (entity == null) {
+                        return null;
+                    }
+                    tasks.add(objectMapper.readValue(((Text) entity.getProperty(PAYLOAD_PROPERTY)).getValue(), AbstractTask.class));
+                }
+            }
+            return tasks;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delete the tasks of all steps after the first one, which is posted directly
+     * @param stepSizes the number of tasks of each step
+     */
+    void delete(List<Integer> stepSizes) {
+        List<Key> keys = new ArrayList<Key>();
+        for (int step = 1; step < stepSizes.size(); step++) {
+            keys.addAll(getKeys(step, stepSizes.get(step)));
+        }
+        for (List<Key> batch : Lists.partition(keys, BATCH_SIZE)) {
+            datastoreService.delete((Transaction) null, batch);
+        }
+    }
+
+    private List<Key> getKeys(int step, int size) {
+        List<Key> keys = new ArrayList<Key>(size);
+        for (int i = 0; i < size; i++) {
+            keys.add(getKey(step, i));
+        }
+        return keys;
+    }
+
+    private Key getKey(int step, int index) {
+        return KeyFactory.createKey(TASK_KIND, workflowId + "-" + step + "-" + index);
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.queue4gae.queue.workflow;
+
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.common.base.Preconditions;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.queue4gae.queue.AbstractTask;
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.InjectionService;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes one of the tasks of a {@link Workflow} step. When all the tasks of the step have completed,
+ * reads the tasks of the next step from the {@link WorkflowPlan} and posts them, or deletes the plan
+ * if this was the last step.
+ * Tasks of the next step are named after the workflow id, so they are only posted once even if this task
+ * is executed more than once. Requires an ObjectMapper and the InjectionService itself, injected by the InjectionService.
+ * The wrapped task is injected and executed directly, so interceptors only wrap the WorkflowTask.
+ */
+public class WorkflowTask extends InjectedTask {
+
+    /** the workflow id */
+    @JsonProperty
+    private String workflowId;
+
+    /** the index of the current step */
+    @JsonProperty
+    private int step;
+
+    /** the index of this task in the current step */
+    @JsonProperty
+    private int index;
+
+    /** the number of tasks in each step */
+    @JsonProperty
+    private List<Integer> stepSizes;
+
+    /** the number of counter shards for parallel steps */
+    @JsonProperty
+    private int shards;
+
+    /** the task to execute */
+    @JsonProperty
+    private Task task;
+
+    /** reads the tasks of the next step */
+    private transient ObjectMapper objectMapper;
+
+    /** injects the wrapped task */
+    private transient InjectionService injectionService;
+
+    private WorkflowTask() {
+        // for jackson
+    }
+
+    /**
+     * Create the tasks of a workflow step
+     * @param stepSizes the number of tasks in each step of the workflow
+     * @param currentStep the tasks of the step to create
+     */
+    static List<Task> createStep(String workflowId, int step, int shards, List<Integer> stepSizes, List<Task> currentStep) {
+        List<Task> result = new ArrayList<Task>(currentStep.size());
+        for (int i = 0; i < currentStep.size(); i++) {
+            Task task = currentStep.get(i);
+            WorkflowTask workflowTask = new WorkflowTask();
+            workflowTask.withQueueName(task.getQueueName())
+                    .withTag(task.getTag())
+                    .withDelaySeconds(task.getDelaySeconds())
+                    .withEta(task.getEtaMillis())
+                    .withAffinityKey(task.getAffinityKey())
+                    .withPriority(task.getPriority());
+            workflowTask.workflowId = workflowId;
+            workflowTask.step = step;
+            workflowTask.index = i;
+            workflowTask.stepSizes = stepSizes;
+            workflowTask.shards = shards;
+            workflowTask.task = task;
+            if (step > 0) {
+                workflowTask.withTaskName(workflowId + "-" + step + "-" + i);
+            }
+            result.add(workflowTask);
+        }
+        return result;
+    }
+
+    @Override
+    public void run(QueueService queueService) {
+        // QueueService.run() would count the wrapped task as one more executed task
+        Preconditions.checkState(injectionService != null, "No InjectionService has been injected into WorkflowTask");
+        injectionService.injectMembers(task);
+        ((AbstractTask) task).run(queueService);
+        int stepSize = stepSizes.get(step);
+        ShardedCounter counter = null;
+        if (stepSize > 1) {
+            counter = new ShardedCounter(workflowId + "-" + step, shards);
+            counter.increment(index);
+            if (counter.getCount() < stepSize) {
+                return;
+            }
+        }
+        if (step == stepSizes.size() - 1) {
+            getPlan().delete(stepSizes);
+        } else {
+            postNextStep(queueService);
+        }
+        if (counter != null) {
+            counter.delete();
+        }
+    }
+
+    private void postNextStep(QueueService queueService) {
+        List<Task> nextStep = getPlan().load(step + 1, stepSizes.get(step + 1));
+        if (nextStep == null) {
+            // the workflow has already finished, and this is a late retry
+            return;
+        }
+        try {
+            queueService.postAll(createStep(workflowId, step + 1, shards, stepSizes, nextStep));
+        } catch (TaskAlreadyExistsException e) {
+            // the next step was already posted by another task of this step, or by a previous execution of this one
+        }
+    }
+
+    private WorkflowPlan getPlan() {
+        Preconditions.checkState(objectMapper != null, "No ObjectMapper has been injected into WorkflowTask");
+        return new WorkflowPlan(objectMapper, workflowId);
+    }
+
+    @Inject
+    @JsonIgnore
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Inject
+    @JsonIgnore
+    public void setInjectionService(InjectionService injectionService) {
+        this.injectionService = injectionService;
+    }
+
+    public String getWorkflowId() {
+        return workflowId;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+}
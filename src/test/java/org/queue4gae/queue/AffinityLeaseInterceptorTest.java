@@ -0,0 +1,123 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.VisibilityChecker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.mock.MockInjectionService;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AffinityLeaseInterceptorTest {
+
+    private static final String QUEUE_NAME = "default";
+
+    private static final String LEASE_KEY = "queue4gae-affinity-foo";
+
+    private LocalServiceTestHelper helper;
+
+    private QueueServiceImpl queueService;
+
+    private MemcacheService memcache;
+
+    static int executed;
+
+    @Before
+    public void setupServices() {
+        helper = new LocalServiceTestHelper(
+                new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true),
+                new LocalMemcacheServiceTestConfig()
+        );
+        helper.setUp();
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+
+        queueService = new QueueServiceImpl();
+        queueService.setObjectMapper(objectMapper);
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setTaskUrl("/task");
+        queueService.addInterceptor(new AffinityLeaseInterceptor());
+        memcache = MemcacheServiceFactory.getMemcacheService();
+        executed = 0;
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * A task that cannot get the lease is posted again with a short countdown
+     */
+    @Test
+    public void testDefer() {
+        memcache.put(LEASE_KEY, "other");
+        long start = System.currentTimeMillis();
+        queueService.run(new CountTask().withAffinityKey("foo").withTaskName("named"));
+        assertEquals(0, executed);
+        List<QueueStateInfo.TaskStateInfo> tasks = getTasks();
+        assertEquals(1, tasks.size());
+        assertTrue(tasks.get(0).getEtaMillis() >= start + AffinityLeaseInterceptor.DEFAULT_DEFER_DELAY);
+
+        memcache.delete(LEASE_KEY);
+        queueService.run(new CountTask().withAffinityKey("foo"));
+        assertEquals(1, executed);
+        assertFalse(memcache.contains(LEASE_KEY));
+    }
+
+    /**
+     * Tasks executed by a task with the same key are not deferred
+     */
+    @Test
+    public void testNested() {
+        queueService.run(new NestedTask().withAffinityKey("foo"));
+        assertEquals(2, executed);
+        assertEquals(0, getTasks().size());
+    }
+
+    private List<QueueStateInfo.TaskStateInfo> getTasks() {
+        LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        return taskQueue.getQueueStateInfo().get(QUEUE_NAME).getTaskInfo();
+    }
+
+    public static class CountTask extends InjectedTask {
+
+        public CountTask() {
+            super(QUEUE_NAME);
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            executed++;
+        }
+    }
+
+    public static class NestedTask extends CountTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            assertTrue(memcache().contains(LEASE_KEY));
+            super.run(queueService);
+            queueService.run(new CountTask().withAffinityKey("foo"));
+        }
+
+        private MemcacheService memcache() {
+            return MemcacheServiceFactory.getMemcacheService();
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.queue4gae.queue;
 
 import com.google.appengine.api.datastore.*;
+import com.google.common.collect.ImmutableList;
 import org.codehaus.jackson.annotate.JsonAutoDetect;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.introspect.VisibilityChecker;
@@ -10,6 +11,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.queue4gae.queue.mock.MockInjectionService;
 import org.queue4gae.queue.mock.MockQueueService;
+import org.queue4gae.queue.mock.VirtualTicker;
+
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -23,6 +27,8 @@ public class CursorTaskTest extends AbstractTest {
 
     private DatastoreService ds;
 
+    private static VirtualTicker ticker = new VirtualTicker();
+
     @Before
     public void setupServices() {
         ds = DatastoreServiceFactory.getDatastoreService();
@@ -77,6 +83,32 @@ public class CursorTaskTest extends AbstractTest {
         checkData();
     }
 
+    /**
+     * Uses a virtual clock where each runQuery() takes five minutes, so each post can process two rows
+     */
+    @Test
+    public void testVirtualClock() throws Exception {
+        initData();
+        queueService.withTicker(ticker);
+        queueService.post(new SlowRowTask());
+        assertEquals(2, queueService.getQueuedTaskCount());
+        assertEquals(2, queueService.getCompletedTaskCount());
+        checkData();
+    }
+
+    /**
+     * Writes rows using the mutation buffer, two rows per batch and re-posting after each runQuery()
+     */
+    @Test
+    public void testMutationBuffer() throws Exception {
+        initData();
+        Key tmpKey = ds.put(new Entity("tmp"));
+        queueService.post(new BufferedRowTask(tmpKey).withMutationBatchSize(2));
+        assertEquals(2, queueService.getCompletedTaskCount());
+        checkData();
+        assertTrue(ds.get(ImmutableList.of(tmpKey)).isEmpty());
+    }
+
     @Test(expected = RuntimeException.class)
     public void testUnserializableTask() {
         queueService.post(new UnserializableTask());
@@ -150,4 +182,61 @@ public class CursorTaskTest extends AbstractTest {
         }
     }
 
+    /**
+     * Process two rows per runQuery() using the mutation buffer, and delete an entity at the end
+     */
+    public static class BufferedRowTask extends CursorTask {
+
+        private Key deleteKey;
+
+        private BufferedRowTask() {
+            super("foobar-queue");
+        }
+
+        private BufferedRowTask(Key deleteKey) {
+            this();
+            this.deleteKey = deleteKey;
+        }
+
+        @Override
+        protected Cursor runQuery(Cursor startCursor) {
+            DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+            Query q = new Query(KIND);
+            QueryResultIterator<Entity> iterator = ds.prepare(q).asQueryResultIterator(
+                    startCursor == null? FetchOptions.Builder.withDefaults() : FetchOptions.Builder.withStartCursor(startCursor)
+            );
+            for (int i = 0; i < 2 && iterator.hasNext(); i++) {
+                Entity e = iterator.next();
+                e.setProperty("processed", true);
+                getMutations().put(e);
+            }
+            if (iterator.hasNext()) {
+                return iterator.getCursor();
+            }
+            getMutations().delete(deleteKey);
+            return null;
+        }
+
+        @Override
+        boolean queueTimeOut() {
+            return true;
+        }
+    }
+
+    /**
+     * Process one row and advance the virtual clock to simulate five minutes of work
+     */
+    public static class SlowRowTask extends OneRowTask {
+
+        private SlowRowTask() {
+            super(false);
+        }
+
+        @Override
+        protected Cursor runQuery(Cursor startCursor) {
+            ticker.advance(5, TimeUnit.MINUTES);
+            return super.runQuery(startCursor);
+        }
+    }
+
 }
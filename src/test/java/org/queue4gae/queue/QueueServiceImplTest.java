@@ -0,0 +1,479 @@
+package org.queue4gae.queue;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskQueuePb;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.VisibilityChecker;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.mock.MockInjectionService;
+import org.queue4gae.queue.mock.VirtualTicker;
+import org.queue4gae.queue.trace.InMemorySpanExporter;
+import org.queue4gae.queue.trace.Span;
+import org.queue4gae.queue.trace.Tracer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueueServiceImplTest {
+
+    private static final String QUEUE_NAME = "default";
+
+    private static final String BULK_QUEUE_NAME = "bulk";
+
+    private LocalServiceTestHelper helper;
+
+    private QueueServiceImpl queueService;
+
+    private ObjectMapper objectMapper;
+
+    @Before
+    public void setupServices() {
+        helper = new LocalServiceTestHelper(
+                new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true),
+                new LocalDatastoreServiceTestConfig().setNoStorage(true)
+        );
+        helper.setUp();
+
+        objectMapper = new ObjectMapper();
+        objectMapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+
+        queueService = new QueueServiceImpl();
+        queueService.setObjectMapper(objectMapper);
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setTaskUrl("/task");
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDefaultOptions() {
+        queueService.post(new EmptyTask());
+        QueueStateInfo.TaskStateInfo info = getTasks().get(0);
+        assertEquals("/task", info.getUrl());
+        assertEquals("POST", info.getMethod());
+        assertTrue(info.getBody().contains(EmptyTask.class.getName()));
+    }
+
+    @Test
+    public void testQueueOptions() {
+        queueService.registerQueue(QUEUE_NAME, new QueueOptions()
+                .withUrl("/custom")
+                .withTarget("backend.queue4gae-tests.appspot.com")
+                .withRetryOptions(RetryOptions.Builder.withTaskRetryLimit(3))
+                .withCountdownMillis(60000)
+        );
+        long now = System.currentTimeMillis();
+        queueService.post(new EmptyTask().withTaskName("template"));
+        queueService.post(new EmptyTask().withTaskName("override").withDelaySeconds(3600));
+
+        for (QueueStateInfo.TaskStateInfo info : getTasks()) {
+            assertEquals("/custom", info.getUrl());
+            boolean hasTarget = false;
+            for (QueueStateInfo.HeaderWrapper header : info.getHeaders()) {
+                hasTarget |= header.getKey().equals(QueueOptions.TARGET_HEADER) && header.getValue().equals("backend.queue4gae-tests.appspot.com");
+            }
+            assertTrue(hasTarget);
+            long delay = info.getEtaMillis() - now;
+            if (info.getTaskName().equals("template")) {
+                assertTrue(delay > 50000 && delay < 70000);
+            } else {
+                assertTrue(delay > 3590000);
+            }
+        }
+    }
+
+    @Test
+    public void testDeduplication() {
+        // all posts fall in the same window
+        queueService.setClock(new VirtualTicker());
+        queueService.registerQueue(QUEUE_NAME, new QueueOptions().withDeduplication(60));
+        queueService.post(new ContentTask("foo"));
+        queueService.post(new ContentTask("foo"));
+        queueService.post(new ContentTask("bar"));
+        queueService.post(new ContentTask("bar").withTaskName("named"));
+        assertEquals(3, getTasks().size());
+
+        // an empty local cache relies on the Task Queue Service to detect duplicates
+        queueService.setDeduplicationCacheSize(10);
+        queueService.post(new ContentTask("foo"));
+        assertEquals(3, getTasks().size());
+
+        // tasks posted in a transaction cannot be named
+        Transaction tx = DatastoreServiceFactory.getDatastoreService().beginTransaction();
+        queueService.post(new ContentTask("foo"));
+        tx.commit();
+        int deduplicated = 0;
+        for (QueueStateInfo.TaskStateInfo info : getTasks()) {
+            if (info.getTaskName().startsWith("dedup-")) {
+                deduplicated++;
+            }
+        }
+        assertEquals(4, getTasks().size());
+        assertEquals(2, deduplicated);
+    }
+
+    /**
+     * Trace metadata is attached to the payload, but does not affect deduplication
+     */
+    @Test
+    public void testTracing() throws Exception {
+        InMemorySpanExporter exporter = new InMemorySpanExporter();
+        Tracer tracer = new Tracer(exporter);
+        queueService.setTracer(tracer);
+        queueService.registerQueue(QUEUE_NAME, new QueueOptions().withDeduplication(60));
+
+        Span request = tracer.startSpan("request");
+        queueService.post(new ContentTask("foo"));
+        queueService.post(new ContentTask("foo"));
+        tracer.finishSpan(request);
+        assertEquals(1, getTasks().size());
+        String body = getTasks().get(0).getBody();
+        assertTrue(body.contains(request.getSpanId()));
+
+        queueService.run(objectMapper.readValue(body, AbstractTask.class));
+        Span span = exporter.getSpans().get(1);
+        assertEquals(ContentTask.class.getName(), span.getName());
+        assertEquals(request.getTraceId(), span.getTraceId());
+        assertEquals(request.getSpanId(), span.getParentSpanId());
+        assertEquals("request", span.getProducer());
+    }
+
+    @Test
+    public void testStatusTracking() throws Exception {
+        queueService.setStatusStore(new DatastoreTaskStatusStore());
+        TaskHandle handle = queueService.post(new ContentTask("foo"));
+        assertTrue(handle.isTracked());
+        assertEquals(getTasks().get(0).getTaskName(), handle.getTaskName());
+        assertEquals(TaskStatus.State.QUEUED, handle.getStatus().getState());
+
+        AbstractTask task = objectMapper.readValue(getTasks().get(0).getBody(), AbstractTask.class);
+        queueService.run(task);
+        TaskStatus status = handle.await(1, TimeUnit.SECONDS);
+        assertEquals(TaskStatus.State.SUCCEEDED, status.getState());
+        assertEquals(1, status.getAttempts());
+
+        // sampled out, unless requested explicitly
+        queueService.setStatusSampleRate(0);
+        assertFalse(queueService.post(new ContentTask("bar")).isTracked());
+        assertTrue(queueService.post(new ContentTask("bar").withStatusTracking()).isTracked());
+    }
+
+    /**
+     * The status is written after adding the task, in the current transaction, and does not overwrite an attempt
+     */
+    @Test
+    public void testStatusAfterAdd() throws Exception {
+        DatastoreTaskStatusStore statusStore = new DatastoreTaskStatusStore();
+        queueService.setStatusStore(statusStore);
+        FailingDelegate delegate = new FailingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(delegate);
+        try {
+            delegate.failures = 1;
+            ContentTask failed = new ContentTask("foo");
+            assertPostFails(failed);
+            assertNull(statusStore.get(failed.getStatusId()));
+        } finally {
+            ApiProxy.setDelegate(delegate.delegate);
+        }
+
+        Transaction tx = DatastoreServiceFactory.getDatastoreService().beginTransaction();
+        TaskHandle handle = queueService.post(new ContentTask("foo"));
+        assertNull(handle.getStatus());
+        tx.commit();
+        assertEquals(TaskStatus.State.QUEUED, handle.getStatus().getState());
+
+        // the task started before its status was written
+        AbstractTask task = objectMapper.readValue(getTasks().get(0).getBody(), AbstractTask.class);
+        task.setExecutionCount(1);
+        queueService.run(task);
+        statusStore.queued(ImmutableList.of(handle.getStatusId()));
+        TaskStatus status = handle.getStatus();
+        assertEquals(TaskStatus.State.SUCCEEDED, status.getState());
+        assertEquals(2, status.getAttempts());
+    }
+
+    @Test
+    public void testLanes() {
+        // the local Task Queue Service only knows about the default queue, so use it as the lane
+        queueService.registerQueue(BULK_QUEUE_NAME, new QueueOptions()
+                .withUrl("/custom")
+                .withLane(TaskPriority.HIGH, QUEUE_NAME)
+        );
+        queueService.postAll(ImmutableList.of(
+                new EmptyTask(),
+                new EmptyTask().withQueueName(BULK_QUEUE_NAME).withPriority(TaskPriority.HIGH)
+        ));
+        List<QueueStateInfo.TaskStateInfo> tasks = getTasks();
+        assertEquals(2, tasks.size());
+
+        // the lane inherits the options of its queue, unless registered separately
+        Set<String> urls = new HashSet<String>();
+        for (QueueStateInfo.TaskStateInfo info : tasks) {
+            urls.add(info.getUrl());
+        }
+        assertEquals(ImmutableSet.of("/task", "/custom"), urls);
+    }
+
+    /**
+     * A batch that fails does not prevent posting the batches of other queues
+     */
+    @Test
+    public void testPartialFailure() {
+        queueService.registerQueue(BULK_QUEUE_NAME, new QueueOptions().withLane(TaskPriority.HIGH, QUEUE_NAME));
+        queueService.post(new EmptyTask().withTaskName("duplicate"));
+        try {
+            queueService.postAll(ImmutableList.of(
+                    new EmptyTask().withTaskName("duplicate"),
+                    new EmptyTask().withQueueName(BULK_QUEUE_NAME).withPriority(TaskPriority.HIGH)
+            ));
+            Assert.fail("The named task should have been rejected");
+        } catch (TaskAlreadyExistsException e) {
+            // expected
+        }
+        assertEquals(2, getTasks().size());
+    }
+
+    @Test
+    public void testEnqueueRate() {
+        queueService.registerQueue(QUEUE_NAME, new QueueOptions().withEnqueueRate(5));
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            queueService.post(new EmptyTask());
+        }
+        assertEquals(3, getTasks().size());
+        assertEquals(2, queueService.getThrottledPostCount());
+        assertTrue(System.currentTimeMillis() - start >= 350);
+    }
+
+    /**
+     * Transient failures of named tasks are retried, and posts fail fast while the circuit breaker is open
+     */
+    @Test
+    public void testRetriesAndCircuitBreaker() {
+        VirtualTicker ticker = new VirtualTicker();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, TimeUnit.MINUTES).withTicker(ticker);
+        queueService.setPostRetries(2, 1, TimeUnit.MILLISECONDS);
+        queueService.setCircuitBreaker(circuitBreaker);
+        FailingDelegate delegate = new FailingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(delegate);
+        try {
+            delegate.failures = 1;
+            queueService.post(new EmptyTask().withTaskName("retried"));
+            assertEquals(1, getTasks().size());
+            assertEquals(1, queueService.getRetriedPostCount());
+
+            delegate.failures = 2;
+            assertPostFails(new EmptyTask().withTaskName("failed"));
+            assertEquals(1, queueService.getFailedPostCount());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+            // the service is not invoked while the circuit is open
+            assertPostFails(new EmptyTask());
+            assertEquals(1, queueService.getShedPostCount());
+            assertEquals(0, delegate.failures);
+
+            ticker.advance(1, TimeUnit.MINUTES);
+            queueService.post(new EmptyTask());
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            assertEquals(2, getTasks().size());
+        } finally {
+            ApiProxy.setDelegate(delegate.delegate);
+        }
+    }
+
+    /**
+     * A probe that does not report its outcome does not keep the circuit half open forever
+     */
+    @Test
+    public void testCircuitBreakerProbe() {
+        VirtualTicker ticker = new VirtualTicker();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, TimeUnit.MINUTES).withTicker(ticker);
+        circuitBreaker.failure();
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+
+        // the probe ended without reaching the service
+        circuitBreaker.abort();
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+
+        // the probe did not report anything
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        circuitBreaker.abort();
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    /**
+     * An attempt that fails after adding the task is not retried for unnamed tasks, which would be added twice.
+     * Named tasks are retried, and the handle describes the task added by the failed attempt.
+     */
+    @Test
+    public void testLostResponse() {
+        queueService.setPostRetries(2, 1, TimeUnit.MILLISECONDS);
+        FailingDelegate delegate = new FailingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(delegate);
+        try {
+            delegate.lostResponses = 1;
+            assertPostFails(new EmptyTask());
+            assertEquals(1, getTasks().size());
+            assertEquals(0, queueService.getRetriedPostCount());
+
+            delegate.lostResponses = 1;
+            TaskHandle handle = queueService.post(new EmptyTask().withTaskName("lost").withDelaySeconds(60));
+            assertEquals(2, getTasks().size());
+            assertEquals(1, queueService.getRetriedPostCount());
+            assertEquals("lost", handle.getTaskName());
+            assertTrue(handle.getEtaMillis() > System.currentTimeMillis());
+        } finally {
+            ApiProxy.setDelegate(delegate.delegate);
+        }
+    }
+
+    private void assertPostFails(Task task) {
+        try {
+            queueService.post(task);
+            Assert.fail("The post should have failed");
+        } catch (TransientFailureException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Fails a number of calls to the Task Queue Service with a transient error
+     */
+    private static class FailingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+        private int failures;
+
+        /** the number of calls that fail after being executed */
+        private int lostResponses;
+
+        private FailingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        private boolean fail(String packageName) {
+            if (packageName.equals("taskqueue") && failures > 0) {
+                failures--;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean loseResponse(String packageName) {
+            if (packageName.equals("taskqueue") && lostResponses > 0) {
+                lostResponses--;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName, byte[] request) {
+            if (fail(packageName)) {
+                throw new ApiProxy.ApplicationException(TaskQueuePb.TaskQueueServiceError.ErrorCode.TRANSIENT_ERROR.getValue());
+            }
+            byte[] response = delegate.makeSyncCall(environment, packageName, methodName, request);
+            if (loseResponse(packageName)) {
+                throw new ApiProxy.ApplicationException(TaskQueuePb.TaskQueueServiceError.ErrorCode.TRANSIENT_ERROR.getValue());
+            }
+            return response;
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName, String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            if (fail(packageName)) {
+                return Futures.immediateFailedFuture(new ApiProxy.ApplicationException(TaskQueuePb.TaskQueueServiceError.ErrorCode.TRANSIENT_ERROR.getValue()));
+            }
+            Future<byte[]> response = delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+            if (loseResponse(packageName)) {
+                Futures.getUnchecked(response);
+                return Futures.immediateFailedFuture(new ApiProxy.ApplicationException(TaskQueuePb.TaskQueueServiceError.ErrorCode.TRANSIENT_ERROR.getValue()));
+            }
+            return response;
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    private List<QueueStateInfo.TaskStateInfo> getTasks() {
+        LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        return taskQueue.getQueueStateInfo().get(QUEUE_NAME).getTaskInfo();
+    }
+
+    public static class ContentTask extends InjectedTask {
+
+        private String content;
+
+        private ContentTask() {
+        }
+
+        public ContentTask(String content) {
+            super(QUEUE_NAME);
+            this.content = content;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+        }
+    }
+
+    public static class EmptyTask extends InjectedTask {
+
+        public EmptyTask() {
+            super(QUEUE_NAME);
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.mock.MockInjectionService;
+import org.queue4gae.queue.mock.MockQueueService;
+import org.queue4gae.queue.mock.VirtualTicker;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecurringTaskTest extends AbstractTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private MockQueueService queueService;
+
+    private VirtualTicker ticker;
+
+    /** the time of the mock, in nanoseconds since the epoch */
+    private Ticker clock;
+
+    static List<Long> slots;
+
+    @Before
+    public void setupServices() {
+        ticker = new VirtualTicker();
+        queueService = new MockQueueService();
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setObjectMapper(objectMapper);
+        queueService.withTicker(ticker);
+        // start at a minute boundary, a slot of fixed-rate schedules of one minute
+        ticker.advance(60000 - queueService.currentTimeMillis() % 60000, TimeUnit.MILLISECONDS);
+        clock = new Ticker() {
+            @Override
+            public long read() {
+                return TimeUnit.MILLISECONDS.toNanos(queueService.currentTimeMillis());
+            }
+        };
+        slots = new ArrayList<Long>();
+    }
+
+    /**
+     * Slots are calculated from the schedule even if executions are late, and missed slots are skipped
+     */
+    @Test
+    public void testFixedRate() {
+        queueService.post(new SlotTask().withFixedRate(1, TimeUnit.MINUTES));
+        long start = slots.get(0);
+        assertEquals(1, queueService.getDelayedTaskCount());
+
+        ticker.advance(61, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        ticker.advance(5, TimeUnit.MINUTES);
+        queueService.runDueDelayedTasks();
+        assertEquals(3, slots.size());
+        assertEquals(start + 60000, (long) slots.get(1));
+        assertEquals(start + 120000, (long) slots.get(2));
+
+        // the slots until minute 7 have been skipped
+        ticker.advance(58, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(3, slots.size());
+        ticker.advance(1, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(start + 7 * 60000, (long) slots.get(3));
+        assertEquals(1, queueService.getDelayedTaskCount());
+    }
+
+    /**
+     * Two executions of the same slot post the next slot only once
+     */
+    @Test
+    public void testDuplicateSlot() {
+        queueService.post(new SlotTask().withFixedRate(1, TimeUnit.MINUTES));
+        queueService.post(new SlotTask().withFixedRate(1, TimeUnit.MINUTES));
+        assertEquals(2, slots.size());
+        assertEquals(1, queueService.getDelayedTaskCount());
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        queueService.runDueDelayedTasks();
+        assertEquals(3, slots.size());
+        assertEquals(1, queueService.getDelayedTaskCount());
+    }
+
+    /**
+     * Instances that schedule the task at different times do not fork the schedule
+     */
+    @Test
+    public void testScheduleTwice() {
+        long start = queueService.currentTimeMillis();
+        ticker.advance(10, TimeUnit.SECONDS);
+        new SlotTask().<SlotTask>withFixedRate(1, TimeUnit.MINUTES).<SlotTask>withClock(clock).schedule(queueService);
+        ticker.advance(20, TimeUnit.SECONDS);
+        new SlotTask().<SlotTask>withFixedRate(1, TimeUnit.MINUTES).<SlotTask>withClock(clock).schedule(queueService);
+        assertEquals(1, queueService.getDelayedTaskCount());
+
+        ticker.advance(30, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(start + 60000, (long) slots.get(0));
+        assertEquals(1, queueService.getDelayedTaskCount());
+
+        // slots relative to an explicit start
+        new SlotTask().<SlotTask>withFixedRate(1, TimeUnit.MINUTES, start + 15000).<SlotTask>withScheduleName("offset")
+                .<SlotTask>withClock(clock).schedule(queueService);
+        ticker.advance(15, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(start + 75000, (long) slots.get(1));
+    }
+
+    @Test
+    public void testEta() {
+        queueService.post(new SlotTask().withFixedRate(1, TimeUnit.HOURS).withEta(queueService.currentTimeMillis() + 30000));
+        assertEquals(0, slots.size());
+        ticker.advance(30, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(1, slots.size());
+    }
+
+    @Test
+    public void testCronExpression() {
+        // Friday evening, next slot is Monday morning
+        assertEquals(utc(2013, 5, 20, 9, 0), new CronExpression("*/15 9-17 * * 1-5").next(utc(2013, 5, 17, 17, 50), UTC));
+        assertEquals(utc(2013, 5, 17, 17, 45), new CronExpression("*/15 9-17 * * 1-5").next(utc(2013, 5, 17, 17, 30), UTC));
+        assertEquals(utc(2016, 2, 29, 0, 0), new CronExpression("0 0 29 2 *").next(utc(2013, 3, 1, 0, 0), UTC));
+        // day of month or day of week
+        assertEquals(utc(2013, 5, 3, 12, 0), new CronExpression("0 12 13 * 5").next(utc(2013, 5, 1, 0, 0), UTC));
+        assertEquals(utc(2013, 5, 5, 0, 0), new CronExpression("0 0 * * 7").next(utc(2013, 5, 1, 0, 0), UTC));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCronExpression() {
+        new CronExpression("61 * * * *");
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.clear();
+        c.set(year, month - 1, day, hour, minute);
+        return c.getTimeInMillis();
+    }
+
+    public static class SlotTask extends RecurringTask {
+
+        @Override
+        protected void runSlot(long slotMillis) {
+            slots.add(slotMillis);
+        }
+    }
+
+}
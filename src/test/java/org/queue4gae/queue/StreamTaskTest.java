@@ -0,0 +1,103 @@
+package org.queue4gae.queue;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.mock.MockInjectionService;
+import org.queue4gae.queue.mock.MockQueueService;
+import org.queue4gae.queue.mock.VirtualTicker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamTaskTest extends AbstractTest {
+
+    private static final int LINE_COUNT = 25;
+
+    private MockQueueService queueService;
+
+    private File file;
+
+    private static VirtualTicker ticker = new VirtualTicker();
+
+    static List<String> lines;
+
+    @Before
+    public void setupServices() throws IOException {
+        queueService = new MockQueueService();
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setObjectMapper(objectMapper);
+
+        // includes multi-byte characters, windows line terminators, an empty line and no final line terminator
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            contents.append(i == 10? "" : "l\u00ednea " + i).append(i % 2 == 0? "\r\n" : "\n");
+        }
+        contents.setLength(contents.length() - 1);
+        file = File.createTempFile("stream", ".csv");
+        Files.write(contents, file, Charsets.UTF_8);
+        lines = new ArrayList<String>();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testRunSinglePost() {
+        queueService.post(new LineTask(file, 0).withChunkSize(16));
+        assertEquals(1, queueService.getCompletedTaskCount());
+        checkLines();
+    }
+
+    /**
+     * Uses a virtual clock where each line takes one minute, so each post can process ten lines
+     */
+    @Test
+    public void testRunMultiplePost() {
+        queueService.withTicker(ticker);
+        queueService.post(new LineTask(file, 1).withChunkSize(16));
+        assertEquals(3, queueService.getCompletedTaskCount());
+        checkLines();
+    }
+
+    private void checkLines() {
+        assertEquals(LINE_COUNT, lines.size());
+        for (int i = 0; i < LINE_COUNT; i++) {
+            assertEquals(i == 10? "" : "l\u00ednea " + i, lines.get(i));
+        }
+    }
+
+    public static class LineTask extends StreamTask {
+
+        /** the minutes that each line takes to process, according to the virtual clock */
+        @JsonProperty
+        private int minutesPerLine;
+
+        private LineTask() {
+            // for jackson
+        }
+
+        private LineTask(File file, int minutesPerLine) {
+            super("default", new FileStreamSource(file));
+            this.minutesPerLine = minutesPerLine;
+        }
+
+        @Override
+        protected void processLine(String line, long lineNumber) {
+            assertEquals(lines.size(), lineNumber);
+            lines.add(line);
+            ticker.advance(minutesPerLine, TimeUnit.MINUTES);
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.queue4gae.queue.mock;
+
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.QueueService;
+
+/**
+ * Posts a number of children that do nothing
+ */
+public class FanOutTask extends InjectedTask {
+
+    private int children;
+
+    private FanOutTask() {
+        // for jackson
+    }
+
+    FanOutTask(int children) {
+        this.children = children;
+    }
+
+    @Override
+    public void run(QueueService queueService) {
+        for (int i = 0; i < children; i++) {
+            queueService.post(new FanOutTask(0));
+        }
+    }
+}
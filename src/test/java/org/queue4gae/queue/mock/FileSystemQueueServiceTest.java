@@ -0,0 +1,195 @@
+package org.queue4gae.queue.mock;
+
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.io.Files;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.VisibilityChecker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.QueueService;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FileSystemQueueServiceTest {
+
+    private LocalServiceTestHelper helper;
+
+    private File root;
+
+    /** two instances sharing the same directory, like two JVMs would */
+    private FileSystemQueueService first;
+
+    private FileSystemQueueService second;
+
+    static ConcurrentMap<Integer, AtomicInteger> executions = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    @Before
+    public void setupServices() {
+        helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+        helper.setUp();
+        root = Files.createTempDir();
+        first = createQueueService();
+        second = createQueueService();
+        executions.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        first.stop();
+        second.stop();
+        helper.tearDown();
+        deleteRecursively(root);
+    }
+
+    private FileSystemQueueService createQueueService() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+        FileSystemQueueService queueService = new FileSystemQueueService(root, 2)
+                .withLease(200, TimeUnit.MILLISECONDS)
+                .withPollInterval(5, TimeUnit.MILLISECONDS)
+                .withRetries(2, 10, TimeUnit.MILLISECONDS);
+        queueService.setObjectMapper(objectMapper);
+        queueService.setInjectionService(new MockInjectionService());
+        return queueService;
+    }
+
+    @Test
+    public void testSharedQueue() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            first.post(new CountedTask(i));
+        }
+        first.start();
+        second.start();
+        first.waitUntilEmpty(5000);
+        assertEquals(20, executions.size());
+        for (AtomicInteger count : executions.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(20, first.getCompletedTaskCount() + second.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testTaskNames() {
+        first.post(new CountedTask(1).withTaskName("foo"));
+        try {
+            second.post(new CountedTask(1).withTaskName("foo"));
+            fail("Accepted a duplicated task name");
+        } catch (TaskAlreadyExistsException e) {
+            assertEquals(1, second.getPendingTaskCount());
+        }
+    }
+
+    /**
+     * A consumer claims a task and dies before executing it. Another consumer executes it once the lease expires.
+     */
+    @Test
+    public void testExpiredLease() throws Exception {
+        first.post(new CountedTask(1));
+        assertNotNull(first.claim());
+        second.start();
+        Thread.sleep(100);
+        assertTrue(executions.isEmpty());
+        second.waitUntilEmpty(2000);
+        assertEquals(1, executions.get(1).get());
+    }
+
+    /**
+     * Attempts with an expired lease count towards the maximum number of attempts
+     */
+    @Test
+    public void testExpiredLeaseAttempts() throws Exception {
+        first.post(new CountedTask(1));
+        assertNotNull(first.claim());
+        Thread.sleep(250);
+        // the expired attempt is retried after the retry delay
+        assertNull(first.claim());
+        Thread.sleep(20);
+        assertNotNull(first.claim());
+        Thread.sleep(250);
+        assertNull(first.claim());
+        assertEquals(1, first.getFailedTaskCount());
+        assertEquals(0, first.getPendingTaskCount());
+    }
+
+    /**
+     * The name of a task that cannot be stored is released
+     */
+    @Test
+    public void testFailedPost() {
+        try {
+            first.post(new UnserializableTask().withTaskName("foo"));
+            fail("Posted a task that cannot be serialized");
+        } catch (RuntimeException e) {
+            assertEquals(0, first.getPendingTaskCount());
+        }
+        first.post(new CountedTask(1).withTaskName("foo"));
+        assertEquals(1, first.getPendingTaskCount());
+    }
+
+    @Test
+    public void testFailedTask() throws Exception {
+        second.start();
+        second.post(new FailingTask());
+        second.waitUntilEmpty(2000);
+        assertEquals(1, second.getFailedTaskCount());
+        assertEquals(0, second.getCompletedTaskCount());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static class CountedTask extends InjectedTask {
+
+        private int id;
+
+        private CountedTask() {
+            // for jackson
+        }
+
+        private CountedTask(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            executions.putIfAbsent(id, new AtomicInteger());
+            executions.get(id).incrementAndGet();
+        }
+    }
+
+    public static class UnserializableTask extends InjectedTask {
+
+        private Object value = new Object();
+
+        @Override
+        public void run(QueueService queueService) {
+        }
+    }
+
+    public static class FailingTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            throw new RuntimeException("bazzinga!");
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.queue4gae.queue.mock;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.VisibilityChecker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.Task;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    private MockAsyncQueueService queue;
+
+    private ObjectMapper objectMapper;
+
+    private LocalServiceTestHelper helper;
+
+    @Before
+    public void setupServices() {
+        objectMapper = new ObjectMapper();
+        objectMapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
+
+        helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+        helper.setUp();
+
+        queue = new MockAsyncQueueService(4);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+    }
+
+    @After
+    public void tearDown() {
+        queue.stop();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testFanOutAndDuplicates() throws Exception {
+        LoadReport report = new LoadGenerator(queue)
+                .withRate(200)
+                .withDuration(500, TimeUnit.MILLISECONDS)
+                .withSampleInterval(50, TimeUnit.MILLISECONDS)
+                .run(new Workload() {
+                    @Override
+                    public Task createTask(int index) {
+                        // each pair of tasks share the same name, so one of them is a duplicate
+                        return new FanOutTask(3).withTaskName("fanout-" + (index / 2));
+                    }
+                });
+
+        // 100 tasks created, 50 duplicates, 50 accepted that post 3 children each
+        assertEquals(50, report.getDuplicateCount());
+        assertEquals(200, report.getPostedCount());
+        assertEquals(200, report.getCompletedCount());
+        assertEquals(200, report.getLatency().getCount());
+        assertTrue(report.getThroughput() > 0);
+        assertFalse(report.getBacklog().isEmpty());
+    }
+
+    @Test
+    public void testSpilledTasksLatency() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService(1).withCapacity(5, OverflowPolicy.SPILL);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+
+        LoadReport report = new LoadGenerator(queue)
+                .withRate(200)
+                .withDuration(200, TimeUnit.MILLISECONDS)
+                .run(new Workload() {
+                    @Override
+                    public Task createTask(int index) {
+                        return new FanOutTask(10);
+                    }
+                });
+
+        // spilled tasks are executed as copies, but their latency is still measured
+        assertTrue(queue.getMaxReadyTaskCount() <= 5);
+        assertEquals(report.getCompletedCount(), report.getLatency().getCount());
+    }
+
+}
@@ -1,8 +1,11 @@
 package org.queue4gae.queue.mock;
 
 import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import org.codehaus.jackson.annotate.JsonAutoDetect;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.introspect.VisibilityChecker;
@@ -14,13 +17,30 @@ import org.junit.Test;
 import org.queue4gae.queue.InjectedTask;
 import org.queue4gae.queue.QueueService;
 import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.TaskPriority;
+import org.queue4gae.queue.TaskStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MockAsyncQueueServiceTest {
 
@@ -30,9 +50,11 @@ public class MockAsyncQueueServiceTest {
 
     private LocalServiceTestHelper helper;
 
+    private ObjectMapper objectMapper;
+
     @Before
     public void setupServices() {
-        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper = new ObjectMapper();
         objectMapper.setVisibilityChecker(VisibilityChecker.Std.defaultInstance().withFieldVisibility(JsonAutoDetect.Visibility.ANY));
         objectMapper.registerModule(new GaeJacksonModule());
 
@@ -122,6 +144,461 @@ public class MockAsyncQueueServiceTest {
         assertEquals(2, teardownInvocations.get());
     }
 
+    @Test
+    public void testScheduleRecordAndReplay() throws Exception {
+        List<Integer> recorded = executionOrder(newScheduledQueue().withSeededScheduling(42).withScheduleRecording());
+        assertEquals(11, recorded.size());
+        assertEquals(recorded, executionOrder(newScheduledQueue().withSeededScheduling(42).withScheduleRecording()));
+
+        File file = File.createTempFile("schedule", ".log");
+        try {
+            queue.getScheduleLog().write(file);
+            ScheduleLog replayed = ScheduleLog.read(file);
+            assertEquals(recorded.size(), replayed.getEntries().size());
+            assertEquals(recorded, executionOrder(newScheduledQueue().withScheduleReplay(replayed).withScheduleRecording()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testScheduleReplayConsumersAndFailures() throws Exception {
+        FlakyTask.failing = true;
+        List<String> recorded = executions(newScheduledQueue().withSeededScheduling(7).withScheduleRecording());
+        assertEquals(9, recorded.size());
+
+        // the failures are injected, the tasks do not fail by themselves any more
+        FlakyTask.failing = false;
+        ScheduleLog scheduleLog = queue.getScheduleLog();
+        assertEquals(recorded, executions(newScheduledQueue().withScheduleReplay(scheduleLog).withScheduleRecording()));
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService(1).withStarvationLimit(3);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+
+        PriorityTask.executed.clear();
+        queue.post(new PriorityTask(6));
+        queue.waitUntilEmpty(2000);
+
+        // low priority tasks are executed after skipping them three times
+        assertEquals("NORMAL HIGH HIGH HIGH LOW HIGH HIGH HIGH LOW LOW LOW LOW LOW", Joiner.on(' ').join(PriorityTask.executed));
+    }
+
+    @Test
+    public void testCapacityReject() throws Exception {
+        startGatedQueue(OverflowPolicy.REJECT);
+        queue.post(new FanOutTask(0));
+        queue.post(new FanOutTask(0));
+        try {
+            queue.post(new FanOutTask(0));
+            Assert.fail("Accepted a task with a full queue");
+        } catch (TransientFailureException e) {
+            assertEquals(1, queue.getRejectedTaskCount());
+            assertEquals(3, queue.getQueuedTaskCount());
+        }
+        GateTask.open.countDown();
+        queue.waitUntilEmpty(1000);
+        assertEquals(3, queue.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testCapacityBlock() throws Exception {
+        startGatedQueue(OverflowPolicy.BLOCK);
+        queue.post(new FanOutTask(0));
+        queue.post(new FanOutTask(0));
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                GateTask.open.countDown();
+            }
+        }, 100);
+
+        // blocks until the gate is open
+        queue.post(new FanOutTask(0));
+        queue.waitUntilEmpty(1000);
+        assertEquals(4, queue.getCompletedTaskCount());
+        assertEquals(0, queue.getRejectedTaskCount());
+    }
+
+    /**
+     * Tasks waiting for another task with the same affinity key keep their slot
+     */
+    @Test
+    public void testCapacityWithAffinityKey() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService(2).withCapacity(2, OverflowPolicy.REJECT);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+        GateTask.started = new CountDownLatch(1);
+        GateTask.open = new CountDownLatch(1);
+        queue.post(new GateTask().withAffinityKey("k"));
+        GateTask.started.await();
+
+        queue.post(new FanOutTask(0).withAffinityKey("k"));
+        queue.post(new FanOutTask(0).withAffinityKey("k"));
+        for (int i = 0; i < 100 && queue.getReadyTaskCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.getReadyTaskCount());
+        try {
+            queue.post(new FanOutTask(0).withAffinityKey("k"));
+            Assert.fail("The queue should be full");
+        } catch (TransientFailureException e) {
+            assertEquals(1, queue.getRejectedTaskCount());
+        }
+        GateTask.open.countDown();
+        queue.waitUntilEmpty(1000);
+        assertEquals(3, queue.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testCapacitySpill() throws Exception {
+        startGatedQueue(OverflowPolicy.SPILL);
+        for (int i = 0; i < 20; i++) {
+            queue.post(new FanOutTask(0));
+        }
+        assertEquals(2, queue.getReadyTaskCount());
+        assertEquals(18, queue.getSpilledTaskCount());
+        GateTask.open.countDown();
+        queue.waitUntilEmpty(2000);
+        assertEquals(21, queue.getCompletedTaskCount());
+        assertEquals(0, queue.getSpilledTaskCount());
+        assertEquals(2, queue.getMaxReadyTaskCount());
+    }
+
+    @Test
+    public void testDrainAndStop() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            queue.post(new MyTask(i));
+        }
+        assertTrue(queue.drainAndStop(2000).isEmpty());
+        assertEquals(5, queue.getCompletedTaskCount());
+        assertFalse(queue.isRunning());
+        assertNoConsumerThreads();
+    }
+
+    @Test
+    public void testStopNowAndRestart() throws Exception {
+        startGatedQueue(OverflowPolicy.SPILL);
+        for (int i = 0; i < 3; i++) {
+            queue.post(new FanOutTask(0));
+        }
+        queue.post(new FanOutTask(0).withDelaySeconds(60));
+
+        // the gate task is interrupted, two tasks are waiting, one is spilled and one is delayed
+        List<Task> dropped = queue.stopNow();
+        assertEquals(5, dropped.size());
+        assertTrue(dropped.get(0) instanceof GateTask);
+        assertEquals(5, queue.getDroppedTaskCount());
+        assertEquals(0, queue.getDelayedTaskCount());
+        assertNoConsumerThreads();
+
+        queue.start();
+        queue.post(new FanOutTask(0));
+        queue.waitUntilEmpty(1000);
+        assertEquals(1, queue.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testTaskHandle() throws Exception {
+        GateTask.started = new CountDownLatch(1);
+        GateTask.open = new CountDownLatch(1);
+        TaskHandle handle = queue.post(new GateTask().withStatusTracking());
+        GateTask.started.await();
+        assertEquals(TaskStatus.State.RUNNING, handle.getStatus().getState());
+        try {
+            handle.await(10, TimeUnit.MILLISECONDS);
+            Assert.fail("The task should not have finished");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        GateTask.open.countDown();
+        TaskStatus status = handle.await(1, TimeUnit.SECONDS);
+        assertEquals(TaskStatus.State.SUCCEEDED, status.getState());
+        assertEquals(1, status.getAttempts());
+    }
+
+    /**
+     * Tasks with the same affinity key are executed one at a time, tasks with different keys are not
+     */
+    @Test
+    public void testAffinityKey() throws Exception {
+        KeyTask.reset();
+        for (int i = 0; i < 10; i++) {
+            queue.post(new KeyTask().withAffinityKey("a"));
+            queue.post(new KeyTask().withAffinityKey("b"));
+            queue.post(new KeyTask());
+        }
+        queue.waitUntilEmpty(5000);
+        assertEquals(30, queue.getCompletedTaskCount());
+        assertEquals(1, KeyTask.maxSameKey.get());
+        assertTrue(KeyTask.maxRunning.get() > 1);
+    }
+
+    /**
+     * Consumers are added while the backlog grows, and removed when idle
+     */
+    @Test
+    public void testScaling() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService().withScaling(new ScalingOptions(1, 3).withTargetBacklog(2).withIdleTimeout(50, TimeUnit.MILLISECONDS));
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+        assertEquals(1, queue.getConsumerCount());
+        GateTask.started = new CountDownLatch(1);
+        GateTask.open = new CountDownLatch(1);
+        queue.post(new GateTask());
+        GateTask.started.await();
+        for (int i = 0; i < 20; i++) {
+            queue.post(new FanOutTask(0));
+        }
+        GateTask.open.countDown();
+        queue.waitUntilEmpty(2000);
+        assertEquals(ScalingEvent.Reason.BACKLOG, queue.getScalingLog().get(0).getReason());
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.getConsumerCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.getConsumerCount());
+        int consumers = 1;
+        for (ScalingEvent event : queue.getScalingLog()) {
+            consumers += event.getReason() == ScalingEvent.Reason.IDLE? -1 : 1;
+            assertEquals(consumers, event.getConsumers());
+            assertTrue(consumers <= 3);
+        }
+        assertEquals(ScalingEvent.Reason.IDLE, Iterables.getLast(queue.getScalingLog()).getReason());
+    }
+
+    /**
+     * Scheduled executions keep the initial consumers, whatever the backlog
+     */
+    @Test
+    public void testScalingWithSeededScheduling() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService().withScaling(new ScalingOptions(1, 3).withTargetBacklog(1)).withSeededScheduling(42);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+        for (int i = 0; i < 10; i++) {
+            queue.post(new FanOutTask(0));
+        }
+        queue.waitUntilEmpty(2000);
+        assertEquals(1, queue.getConsumerCount());
+        assertTrue(queue.getScalingLog().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScalingOptions() {
+        new ScalingOptions(1, 3).withMaxPendingLatency(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Falls back to platform threads if the JVM does not support virtual threads
+     */
+    @Test
+    public void testVirtualThreads() throws Exception {
+        queue.stop();
+        queue = new MockAsyncQueueService(200).withVirtualThreads();
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+        for (int i = 0; i < 50; i++) {
+            queue.post(new FanOutTask(0));
+        }
+        queue.waitUntilEmpty(2000);
+        assertEquals(50, queue.getCompletedTaskCount());
+        assertTrue(queue.drainAndStop(1000).isEmpty());
+        assertNoConsumerThreads();
+    }
+
+    private void assertNoConsumerThreads() throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(MockAsyncQueueService.CONSUMER_THREAD_NAME)) {
+                // a terminated executor may still have workers about to exit
+                thread.join(1000);
+                assertFalse(thread.isAlive());
+            }
+        }
+    }
+
+    /**
+     * Start a queue with one consumer and capacity for two tasks, and block the consumer until the gate is open
+     */
+    private void startGatedQueue(OverflowPolicy policy) throws InterruptedException {
+        queue.stop();
+        queue = new MockAsyncQueueService(1).withCapacity(2, policy);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        queue.start();
+        GateTask.started = new CountDownLatch(1);
+        GateTask.open = new CountDownLatch(1);
+        queue.post(new GateTask());
+        GateTask.started.await();
+    }
+
+    private MockAsyncQueueService newScheduledQueue() {
+        queue.stop();
+        queue = new MockAsyncQueueService(3);
+        queue.setInjectionService(new MockInjectionService());
+        queue.setObjectMapper(objectMapper);
+        return queue;
+    }
+
+    /**
+     * Post a task that posts ten more, and return the ordinals in order of execution
+     */
+    private List<Integer> executionOrder(MockAsyncQueueService queue) throws TimeoutException {
+        queue.start();
+        queue.post(new FanOutTask(10));
+        queue.waitUntilEmpty(2000);
+        List<Integer> ordinals = new ArrayList<Integer>();
+        for (ScheduleLog.Entry entry : queue.getScheduleLog().getEntries()) {
+            assertTrue(entry.getThreadName().startsWith(MockAsyncQueueService.CONSUMER_THREAD_NAME));
+            ordinals.add(entry.getOrdinal());
+        }
+        return ordinals;
+    }
+
+    /**
+     * Post six tasks, half of them failing once, and return the executions in the order they were started
+     */
+    private List<String> executions(MockAsyncQueueService queue) throws TimeoutException {
+        queue.start();
+        for (int i = 0; i < 6; i++) {
+            queue.post(new FlakyTask(i));
+        }
+        queue.waitUntilEmpty(2000);
+        List<String> executions = new ArrayList<String>();
+        for (ScheduleLog.Entry entry : queue.getScheduleLog().getEntries()) {
+            executions.add(entry.toString());
+        }
+        return executions;
+    }
+
+    /**
+     * Fails the first execution of tasks with an even id, while {@link #failing} is true
+     */
+    public static class FlakyTask extends InjectedTask {
+
+        static volatile boolean failing;
+
+        private static final Set<Integer> failed = Collections.synchronizedSet(new HashSet<Integer>());
+
+        private int id;
+
+        private FlakyTask() {
+            // for jackson
+        }
+
+        private FlakyTask(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            if (failing && id % 2 == 0 && failed.add(id)) {
+                throw new IllegalStateException("Flaky " + id);
+            }
+        }
+    }
+
+    /**
+     * Posts the same number of low and high priority tasks, and records the priority of executed tasks
+     */
+    public static class PriorityTask extends InjectedTask {
+
+        static List<TaskPriority> executed = Collections.synchronizedList(new ArrayList<TaskPriority>());
+
+        private int children;
+
+        private PriorityTask() {
+            // for jackson
+        }
+
+        private PriorityTask(int children) {
+            this.children = children;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            executed.add(getPriority());
+            for (int i = 0; i < children; i++) {
+                queueService.post(new PriorityTask(0).withPriority(TaskPriority.LOW));
+                queueService.post(new PriorityTask(0).withPriority(TaskPriority.HIGH));
+            }
+        }
+    }
+
+    public static class KeyTask extends InjectedTask {
+
+        static ConcurrentMap<String, AtomicInteger> running;
+
+        static AtomicInteger maxSameKey;
+
+        static AtomicInteger maxRunning;
+
+        static AtomicInteger totalRunning;
+
+        static void reset() {
+            running = new ConcurrentHashMap<String, AtomicInteger>();
+            running.put("a", new AtomicInteger());
+            running.put("b", new AtomicInteger());
+            maxSameKey = new AtomicInteger();
+            maxRunning = new AtomicInteger();
+            totalRunning = new AtomicInteger();
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            AtomicInteger sameKey = getAffinityKey() == null? null : running.get(getAffinityKey());
+            updateMax(maxRunning, totalRunning.incrementAndGet());
+            if (sameKey != null) {
+                updateMax(maxSameKey, sameKey.incrementAndGet());
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                totalRunning.decrementAndGet();
+                if (sameKey != null) {
+                    sameKey.decrementAndGet();
+                }
+            }
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            for (int current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+                // retry
+            }
+        }
+    }
+
+    public static class GateTask extends InjectedTask {
+
+        static CountDownLatch started;
+
+        static CountDownLatch open;
+
+        @Override
+        public void run(QueueService queueService) {
+            started.countDown();
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     public static class MyTask extends InjectedTask {
 
         private int id;
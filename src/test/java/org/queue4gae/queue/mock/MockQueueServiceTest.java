@@ -1,6 +1,10 @@
 package org.queue4gae.queue.mock;
 
 import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.DeadlineExceededException;
+import com.google.common.collect.ImmutableList;
 import org.codehaus.jackson.annotate.JsonAutoDetect;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.introspect.VisibilityChecker;
@@ -10,6 +14,16 @@ import org.junit.Test;
 import org.queue4gae.queue.AbstractTask;
 import org.queue4gae.queue.InjectedTask;
 import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.TaskInterceptor;
+import org.queue4gae.queue.TaskInvocation;
+import org.queue4gae.queue.TaskStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -72,6 +86,30 @@ public class MockQueueServiceTest {
         queueService.post(new FailOnceTask());
     }
 
+    /**
+     * Failed attempts are recorded as final only if the task will not be retried
+     */
+    @Test
+    public void statusAfterRetries() {
+        FailOnceTask.failed = false;
+        queueService.withRetries(1).withStatusTracking();
+        TaskHandle handle = queueService.post(new FailOnceTask());
+        assertEquals(TaskStatus.State.SUCCEEDED, handle.getStatus().getState());
+        assertEquals(2, handle.getStatus().getAttempts());
+
+        FailOnceTask.failed = false;
+        queueService.withRetries(0);
+        handle = queueService.post(new FailOnceTask().withDelaySeconds(60));
+        try {
+            queueService.runDelayedTasks();
+            fail("The task should have failed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(TaskStatus.State.FAILED, handle.getStatus().getState());
+        assertTrue(handle.getStatus().isDone());
+    }
+
     @Test
     public void delayedTasksOfType() {
         queueService.post(new DelayedTaskOfTypeA().withDelaySeconds(1));
@@ -82,6 +120,156 @@ public class MockQueueServiceTest {
         queueService.runDelayedTasks(DelayedTaskOfTypeB.class);
         assertEquals(0, queueService.getDelayedTaskCount());
     }
+
+    @Test
+    public void pendingTasks() {
+        Task first = new DelayedTaskOfTypeA().withTag("x").withDelaySeconds(60);
+        Task second = new DelayedTaskOfTypeB().withTag("x").withDelaySeconds(10);
+        Task third = new DelayedTaskOfTypeA().withTag("y").withTaskName("third").withDelaySeconds(30);
+        queueService.postAll(ImmutableList.of(first, second, third));
+
+        // sorted by due time
+        assertEquals(ImmutableList.of(second, third, first), queueService.getPendingTasks());
+        assertEquals(ImmutableList.of(second, first), queueService.getPendingTasks(new TaskFilter().withTag("x")));
+        assertEquals(ImmutableList.of(third, first), queueService.getPendingTasks(new TaskFilter().withTaskClass(DelayedTaskOfTypeA.class)));
+        assertEquals(ImmutableList.of(third), queueService.getPendingTasks(new TaskFilter().withTaskName("third")));
+        assertTrue(queueService.getPendingTasks(new TaskFilter().withQueueName("other")).isEmpty());
+
+        queueService.runTasks("default", DelayedTaskOfTypeA.class, "x");
+        assertEquals(ImmutableList.of(second, third), queueService.getPendingTasks());
+        queueService.runTasks(new TaskFilter().withTaskClass(InjectedTask.class).withTag("y"));
+        assertEquals(ImmutableList.of(second), queueService.getPendingTasks());
+        assertEquals(2, queueService.getCompletedTaskCount());
+    }
+
+    @Test
+    public void dueDelayedTasks() {
+        VirtualTicker ticker = new VirtualTicker();
+        queueService.withTicker(ticker);
+        queueService.post(new DelayedTask("hour").withDelaySeconds(3600));
+        queueService.post(new DelayedTask("minute").withDelaySeconds(60));
+
+        queueService.runDueDelayedTasks();
+        assertEquals(2, queueService.getDelayedTaskCount());
+
+        ticker.advance(61, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(1, queueService.getDelayedTaskCount());
+        assertEquals("minute", DelayedTask.lastValue);
+
+        ticker.advance(1, TimeUnit.HOURS);
+        queueService.runDueDelayedTasks();
+        assertEquals(0, queueService.getDelayedTaskCount());
+        assertEquals("hour", DelayedTask.lastValue);
+    }
+
+    /**
+     * The same instance may be posted again while it is waiting, with a different delay
+     */
+    @Test
+    public void duplicateDelayedTask() {
+        VirtualTicker ticker = new VirtualTicker();
+        queueService.withTicker(ticker);
+        DelayedTask task = new DelayedTask("again");
+        queueService.post(task.withDelaySeconds(60));
+        queueService.post(task.withDelaySeconds(3600));
+        assertEquals(2, queueService.getDelayedTaskCount());
+
+        ticker.advance(61, TimeUnit.SECONDS);
+        queueService.runDueDelayedTasks();
+        assertEquals(1, queueService.getDelayedTaskCount());
+        assertEquals(1, queueService.getCompletedTaskCount());
+
+        ticker.advance(1, TimeUnit.HOURS);
+        queueService.runDueDelayedTasks();
+        assertEquals(0, queueService.getDelayedTaskCount());
+        assertEquals(2, queueService.getCompletedTaskCount());
+    }
+
+    @Test
+    public void validationModes() {
+        IdentityTask task = new IdentityTask();
+        queueService.post(task);
+        assertNotSame(task, IdentityTask.lastExecuted);
+
+        queueService.withValidationMode(ValidationMode.FIRST_PER_CLASS);
+        task = new IdentityTask();
+        queueService.post(task);
+        assertNotSame(task, IdentityTask.lastExecuted);
+        task = new IdentityTask();
+        queueService.post(task);
+        assertSame(task, IdentityTask.lastExecuted);
+
+        queueService.withValidationMode(ValidationMode.NEVER);
+        task = new IdentityTask();
+        queueService.post(task);
+        assertSame(task, IdentityTask.lastExecuted);
+        assertEquals(4, queueService.getCompletedTaskCount());
+    }
+
+    @Test
+    public void parallelWaves() {
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+        helper.setUp();
+        try {
+            WaveTask.levels.clear();
+            queueService.withParallelExecution(4, 1234);
+            queueService.post(new WaveTask(0));
+            assertEquals(15, queueService.getCompletedTaskCount());
+
+            // a wave finishes before the tasks posted by it are started
+            assertEquals(15, WaveTask.levels.size());
+            for (int i = 1; i < WaveTask.levels.size(); i++) {
+                assertTrue(WaveTask.levels.get(i - 1) <= WaveTask.levels.get(i));
+            }
+        } finally {
+            helper.tearDown();
+        }
+    }
+
+    /**
+     * Interceptors are invoked in registration order, and only calculated once per task class
+     */
+    @Test
+    public void interceptors() {
+        aStarted = aFinished = bFinished = false;
+        List<String> events = new ArrayList<String>();
+        RecordingInterceptor all = new RecordingInterceptor("all", Task.class, events);
+        RecordingInterceptor a = new RecordingInterceptor("a", ATask.class, events);
+        queueService.withInterceptor(all).withInterceptor(a);
+        queueService.post(new ATask());
+        assertEquals(ImmutableList.of("all>ATask", "a>ATask", "a<ATask", "all<ATask", "all>BTask", "all<BTask"), events);
+
+        queueService.post(new ATask());
+        assertEquals(12, events.size());
+        assertEquals(2, a.classes);
+    }
+
+    /**
+     * A task that ignores its deadline is interrupted and fails, other tasks are only measured
+     */
+    @Test
+    public void deadlineWatchdog() {
+        DeadlineWatchdog watchdog = new DeadlineWatchdog()
+                .withDeadline(SleepTask.class, 50, TimeUnit.MILLISECONDS)
+                .withPolicy(DeadlinePolicy.INTERRUPT);
+        queueService.withInterceptor(watchdog);
+        queueService.post(new BTask());
+        try {
+            queueService.post(new SleepTask());
+            fail("The task should have exceeded its deadline");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(1, watchdog.getOverrunCount());
+        assertEquals(1, watchdog.getOverrunCount(SleepTask.class));
+        assertEquals(1, watchdog.getTimings(BTask.class).getCount());
+        assertTrue(watchdog.getTimings(SleepTask.class).getMax() < 5000);
+        // finished tasks do not keep their checks scheduled
+        assertEquals(0, DeadlineWatchdog.getPendingCheckCount());
+    }
+
 /*
     @Test(expected = IllegalArgumentException.class)
     public void namedTaskInTransaction() {
@@ -111,6 +299,18 @@ public class MockQueueServiceTest {
 
     }
 
+    public static class SleepTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                // ignore the interruption, like a task that does not check queryTimeOut()
+            }
+        }
+    }
+
     public static class TombstonedTask extends InjectedTask {
 
         @Override
@@ -174,5 +374,74 @@ public class MockQueueServiceTest {
 
     }
 
+    public static class WaveTask extends InjectedTask {
+
+        static List<Integer> levels = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private int level;
+
+        private WaveTask() {
+        }
+
+        private WaveTask(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            levels.add(level);
+            if (level < 3) {
+                queueService.post(new WaveTask(level + 1));
+                queueService.post(new WaveTask(level + 1));
+            }
+        }
+
+    }
+
+    public static class IdentityTask extends InjectedTask {
+
+        static IdentityTask lastExecuted;
+
+        @Override
+        public void run(QueueService queueService) {
+            lastExecuted = this;
+        }
+
+    }
+
+    public static class RecordingInterceptor implements TaskInterceptor {
+
+        private final String name;
+
+        private final Class<?> taskClass;
+
+        private final List<String> events;
+
+        /** the number of classes checked */
+        private int classes;
+
+        public RecordingInterceptor(String name, Class<?> taskClass, List<String> events) {
+            this.name = name;
+            this.taskClass = taskClass;
+            this.events = events;
+        }
+
+        @Override
+        public boolean appliesTo(Class<? extends Task> taskClass) {
+            classes++;
+            return this.taskClass.isAssignableFrom(taskClass);
+        }
+
+        @Override
+        public void intercept(TaskInvocation invocation) {
+            String taskName = invocation.getTask().getClass().getSimpleName();
+            events.add(name + ">" + taskName);
+            try {
+                invocation.proceed();
+            } finally {
+                events.add(name + "<" + taskName);
+            }
+        }
+    }
 
 }
@@ -0,0 +1,232 @@
+package org.queue4gae.queue.outbox;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.AbstractTest;
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.TaskHandle;
+import org.queue4gae.queue.mock.MockInjectionService;
+import org.queue4gae.queue.mock.MockQueueService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class OutboxQueueServiceTest extends AbstractTest {
+
+    private MockQueueService queueService;
+
+    private File file;
+
+    static int executed;
+
+    @Before
+    public void setupServices() throws IOException {
+        queueService = new MockQueueService();
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setObjectMapper(objectMapper);
+        file = File.createTempFile("outbox", ".log");
+        file.delete();
+        executed = 0;
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        FileTaskLog taskLog = new FileTaskLog(file);
+        OutboxQueueService outbox = createOutbox(taskLog);
+        for (int i = 0; i < 150; i++) {
+            outbox.post(new CountTask());
+        }
+        assertEquals(0, executed);
+        assertEquals(150, taskLog.getPendingCount());
+
+        assertEquals(150, outbox.flush());
+        assertEquals(150, executed);
+        assertEquals(0, taskLog.getPendingCount());
+        assertEquals(0, file.length());
+    }
+
+    /**
+     * Tasks appended by an instance that dies before flushing are posted when the log is opened again
+     */
+    @Test
+    public void testReplay() throws IOException {
+        FileTaskLog taskLog = new FileTaskLog(file);
+        OutboxQueueService outbox = createOutbox(taskLog);
+        outbox.post(new CountTask());
+        outbox.post(new CountTask());
+        outbox.flush();
+        outbox.post(new CountTask());
+        taskLog.close();
+        assertEquals(2, executed);
+
+        FileTaskLog recovered = new FileTaskLog(file);
+        assertEquals(1, recovered.getPendingCount());
+        outbox = createOutbox(recovered);
+        outbox.setThreadFactory(Executors.defaultThreadFactory());
+        outbox.start(1, TimeUnit.HOURS);
+        assertEquals(3, executed);
+        outbox.stop();
+        recovered.close();
+    }
+
+    /**
+     * Lines that were not completely written before a crash are discarded, and do not corrupt the next append
+     */
+    @Test
+    public void testPartialLines() throws IOException {
+        FileTaskLog taskLog = new FileTaskLog(file);
+        taskLog.append(ImmutableList.of("first", "second"));
+        taskLog.close();
+
+        // a partial acknowledgement, e.g. of entry 10 cut to entry 1
+        Files.append("A\t1", file, Charsets.UTF_8);
+        taskLog = new FileTaskLog(file);
+        assertEquals(2, taskLog.getPendingCount());
+        taskLog.append(ImmutableList.of("third"));
+        taskLog.close();
+
+        Files.append("P\t3\tfou", file, Charsets.UTF_8);
+        taskLog = new FileTaskLog(file);
+        assertEquals(3, taskLog.getPendingCount());
+        taskLog.append(ImmutableList.of("fifth"));
+        taskLog.close();
+
+        taskLog = new FileTaskLog(file);
+        List<String> payloads = new ArrayList<String>();
+        for (TaskLog.Entry entry : taskLog.readPending(10)) {
+            payloads.add(entry.getPayload());
+        }
+        assertEquals(ImmutableList.of("first", "second", "third", "fifth"), payloads);
+        taskLog.close();
+    }
+
+    /**
+     * Only the tasks of the queues that accepted them are acknowledged
+     */
+    @Test
+    public void testPartialFailure() throws IOException {
+        FileTaskLog taskLog = new FileTaskLog(file);
+        OutboxQueueService outbox = new OutboxQueueService(new FailingQueueService(queueService), taskLog);
+        outbox.setObjectMapper(objectMapper);
+        outbox.post(new CountTask().withQueueName(FailingQueueService.QUEUE_NAME));
+        outbox.post(new CountTask());
+        try {
+            outbox.flush();
+            fail("The flush should have failed");
+        } catch (TransientFailureException e) {
+            // expected
+        }
+        assertEquals(1, executed);
+        assertEquals(1, taskLog.getPendingCount());
+        taskLog.close();
+    }
+
+    @Test
+    public void testDatastoreTaskLog() {
+        DatastoreTaskLog taskLog = new DatastoreTaskLog();
+        OutboxQueueService outbox = createOutbox(taskLog);
+        for (int i = 0; i < 5; i++) {
+            outbox.post(new CountTask());
+        }
+        assertEquals(5, taskLog.getPendingCount());
+        assertEquals(5, outbox.flush());
+        assertEquals(5, executed);
+        assertEquals(0, taskLog.getPendingCount());
+    }
+
+    /**
+     * Tasks appended in a transaction use a single entity group, and are leased by the first instance that reads them
+     */
+    @Test
+    public void testDatastoreTaskLogLease() {
+        DatastoreTaskLog taskLog = new DatastoreTaskLog();
+        OutboxQueueService outbox = createOutbox(taskLog);
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < 30; i++) {
+            tasks.add(new CountTask());
+        }
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction tx = datastore.beginTransaction();
+        outbox.postAll(tasks);
+        tx.commit();
+
+        // expired leases are read again
+        DatastoreTaskLog expiring = new DatastoreTaskLog().withLease(0, TimeUnit.MILLISECONDS);
+        assertEquals(30, expiring.readPending(50).size());
+        assertEquals(30, taskLog.readPending(50).size());
+        assertEquals(0, new DatastoreTaskLog().readPending(50).size());
+        assertEquals(30, taskLog.getPendingCount());
+    }
+
+    private OutboxQueueService createOutbox(TaskLog taskLog) {
+        OutboxQueueService outbox = new OutboxQueueService(queueService, taskLog);
+        outbox.setObjectMapper(objectMapper);
+        return outbox;
+    }
+
+    /**
+     * Rejects the tasks posted to one queue
+     */
+    private static class FailingQueueService implements QueueService {
+
+        private static final String QUEUE_NAME = "failing";
+
+        private final QueueService delegate;
+
+        private FailingQueueService(QueueService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TaskHandle post(Task task) {
+            postAll(ImmutableList.of(task));
+            return new TaskHandle(null, 0, null, null);
+        }
+
+        @Override
+        public void postAll(Iterable<? extends Task> tasks) {
+            for (Task task : tasks) {
+                if (QUEUE_NAME.equals(task.getQueueName())) {
+                    throw new TransientFailureException("Cannot post to " + QUEUE_NAME);
+                }
+            }
+            delegate.postAll(tasks);
+        }
+
+        @Override
+        public void run(Task task) {
+            delegate.run(task);
+        }
+    }
+
+    public static class CountTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            executed++;
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.queue4gae.queue.trace;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.AbstractTest;
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.TraceContext;
+import org.queue4gae.queue.mock.MockInjectionService;
+import org.queue4gae.queue.mock.MockQueueService;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TracerTest extends AbstractTest {
+
+    private MockQueueService queueService;
+
+    private InMemorySpanExporter exporter;
+
+    private Tracer tracer;
+
+    @Before
+    public void setupServices() {
+        exporter = new InMemorySpanExporter();
+        tracer = new Tracer(exporter);
+        queueService = new MockQueueService();
+        queueService.setInjectionService(new MockInjectionService());
+        queueService.setObjectMapper(objectMapper);
+        queueService.withTracer(tracer);
+    }
+
+    /**
+     * Each task is a child of the span that posted it
+     */
+    @Test
+    public void testPropagation() {
+        Span request = tracer.startSpan("request");
+        queueService.post(new ProducerTask());
+        tracer.finishSpan(request);
+        assertNull(tracer.getCurrentSpan());
+
+        List<Span> spans = exporter.getSpans(request.getTraceId());
+        assertEquals(3, spans.size());
+        Span producer = spans.get(0);
+        Span consumer = spans.get(1);
+        assertEquals(ProducerTask.class.getName(), producer.getName());
+        assertEquals(request.getSpanId(), producer.getParentSpanId());
+        assertEquals("request", producer.getProducer());
+        assertEquals(ConsumerTask.class.getName(), consumer.getName());
+        assertEquals(producer.getSpanId(), consumer.getParentSpanId());
+        assertEquals(ProducerTask.class.getName(), consumer.getProducer());
+        assertEquals(request, spans.get(2));
+        assertNull(request.getParentSpanId());
+    }
+
+    /**
+     * Tasks posted outside of a span keep their trace metadata, and failures are recorded
+     */
+    @Test
+    public void testDwellTimeAndErrors() {
+        ConsumerTask task = new ConsumerTask();
+        task.setTraceContext(new TraceContext("trace", "parent", "producer", System.currentTimeMillis() - 5000));
+        queueService.post(task);
+        Span span = exporter.getSpans("trace").get(0);
+        assertEquals("parent", span.getParentSpanId());
+        assertEquals("producer", span.getProducer());
+        assertTrue(span.getDwellMillis() >= 5000);
+        assertNull(span.getError());
+
+        try {
+            queueService.post(new FailingTask());
+            fail("The task should fail");
+        } catch (IllegalStateException e) {
+            span = exporter.getSpans().get(1);
+            assertNull(span.getParentSpanId());
+            assertEquals(IllegalStateException.class.getName(), span.getError());
+            assertNull(tracer.getCurrentSpan());
+        }
+    }
+
+    public static class ProducerTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            queueService.post(new ConsumerTask());
+        }
+    }
+
+    public static class ConsumerTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+        }
+    }
+
+    public static class FailingTask extends InjectedTask {
+
+        @Override
+        public void run(QueueService queueService) {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+}
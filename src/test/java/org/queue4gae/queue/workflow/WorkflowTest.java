@@ -0,0 +1,131 @@
+package org.queue4gae.queue.workflow;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.junit.Before;
+import org.junit.Test;
+import org.queue4gae.queue.AbstractTest;
+import org.queue4gae.queue.InjectedTask;
+import org.queue4gae.queue.InjectionService;
+import org.queue4gae.queue.QueueService;
+import org.queue4gae.queue.Task;
+import org.queue4gae.queue.mock.MockAsyncQueueService;
+import org.queue4gae.queue.mock.MockQueueService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WorkflowTest extends AbstractTest {
+
+    private MockQueueService queueService;
+
+    static List<String> executed;
+
+    private final InjectionService injectionService = new InjectionService() {
+        @Override
+        public void injectMembers(Object instance) {
+            if (instance instanceof WorkflowTask) {
+                ((WorkflowTask) instance).setObjectMapper(objectMapper);
+                ((WorkflowTask) instance).setInjectionService(this);
+            }
+        }
+    };
+
+    @Before
+    public void setupQueueService() {
+        queueService = new MockQueueService();
+        queueService.setInjectionService(injectionService);
+        queueService.setObjectMapper(objectMapper);
+        executed = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test
+    public void testFanOutAndJoin() {
+        List<Task> process = new ArrayList<Task>();
+        for (int i = 0; i < 10; i++) {
+            process.add(new StepTask("process-" + i));
+        }
+        new Workflow(queueService, objectMapper)
+                .withShards(3)
+                .then(new StepTask("prepare"))
+                .fanOut(process)
+                .join(new StepTask("report"))
+                .start();
+
+        assertEquals(12, executed.size());
+        assertEquals("prepare", executed.get(0));
+        assertEquals("report", executed.get(11));
+        assertEquals(12, queueService.getCompletedTaskCount());
+        assertEquals(0, countPlanEntities());
+    }
+
+    @Test
+    public void testAsyncQueueService() throws Exception {
+        MockAsyncQueueService asyncQueueService = new MockAsyncQueueService(3);
+        asyncQueueService.setInjectionService(injectionService);
+        asyncQueueService.setObjectMapper(objectMapper);
+        asyncQueueService.start();
+        try {
+            new Workflow(asyncQueueService, objectMapper)
+                    .then(new StepTask("prepare"))
+                    .fanOut(Arrays.<Task>asList(new StepTask("a"), new StepTask("b"), new StepTask("c")))
+                    .join(new StepTask("report"))
+                    .start();
+
+            asyncQueueService.waitUntilEmpty(5000);
+            assertEquals(5, executed.size());
+            assertEquals("report", executed.get(4));
+            assertEquals(5, asyncQueueService.getQueuedTaskCount());
+            assertEquals(5, asyncQueueService.getCompletedTaskCount());
+            assertEquals(0, countPlanEntities());
+        } finally {
+            asyncQueueService.stop();
+        }
+    }
+
+    @Test
+    public void testDelayedStep() {
+        new Workflow(queueService, objectMapper)
+                .then(new StepTask("first"))
+                .then(new StepTask("second").withDelaySeconds(10))
+                .start();
+
+        assertEquals(1, executed.size());
+        assertEquals(1, countPlanEntities());
+        queueService.runDelayedTasks();
+        assertEquals(2, executed.size());
+        assertEquals("second", executed.get(1));
+        assertEquals(0, countPlanEntities());
+    }
+
+    private int countPlanEntities() {
+        Query query = new Query(WorkflowPlan.TASK_KIND).setKeysOnly();
+        return DatastoreServiceFactory.getDatastoreService().prepare(query).countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+    public static class StepTask extends InjectedTask {
+
+        @JsonProperty
+        private String name;
+
+        private StepTask() {
+            // for jackson
+        }
+
+        public StepTask(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run(QueueService queueService) {
+            executed.add(name);
+        }
+    }
+
+}